@@ -1,9 +1,10 @@
 const io = require('socket.io');
 const childProcess = require('child_process');
-const fs = require('fs');
+const http = require('http');
 
-const INFILE = "./tmp/constraint.ttl";
 const ONTOP_URL = 'http://localhost:8080/sparql';
+// Warm validation server (App serve <endpoint>), validates in a pipe to a local JVM when not set
+const SHACL_SERVER_URL = process.env.SHACL_SERVER_URL;
 
 const server = new io.Server(6777, {
   cors: {
@@ -17,89 +18,158 @@ const codes = {
   error: 501,
 }
 
-const custom = `
-
-
-  \n\n\n\n
-`
-
 console.log("Waiting for connections on port 6777");
 console.log(process.cwd())
 
 server.on('connection', (socket) => {
-  var withError = false
   const sendAsJson = (s) => socket.send(JSON.stringify(s))
 
   socket.on('message', (message) => {
 
     console.log(message)
-    // TODO Fix parser to read from stdin instead od local file to avoid disk access
-    fs.writeFileSync(INFILE, message + custom, {flag: "w+"})
-    
-    sendAsJson({
-      type: "code",
-      message: codes.startEval
-    })
-    
-    sendAsJson({
-      type: "log",
-      message: `Hallo ich verbinde mich mit ${ONTOP_URL}`
-    });
 
-    // run the .jar file using the child_process module
-    // const jarProcess = childProcess.spawn('java', ['-jar', '--enable-preview', './build/shacl-obda.jar', INFILE, ONTOP_URL]);
-    const jarProcess = childProcess.spawn('java', ['--enable-preview', '-cp', './build/jars/:./build/jars/*', 'ifis.App', INFILE, ONTOP_URL]);
+    if (SHACL_SERVER_URL) {
+      validateOnServer(message, sendAsJson);
+      return;
+    }
 
-    // listen for output from the .jar process
-    // and send over socket
-    jarProcess.stdout.on('data', (data) => {
-      sendAsJson({
-        type: "log",
-        message: String(data)
-      });
-    });    
+    validateInPipe(message, sendAsJson);
+  });
+});
+
+// POST the shapes to the validation server and forward its NDJSON report record by record while it is
+// written (see NdjsonReport), so the first results show before the validation is finished
+const validateOnServer = (message, sendAsJson) => {
+  sendAsJson({
+    type: "code",
+    message: codes.startEval
+  })
+
+  const req = http.request(`${SHACL_SERVER_URL}/validate?format=ndjson`, { method: "POST" }, (res) => {
+    let pending = "";
+    let failed = res.statusCode !== 200;
+    res.setEncoding('utf8');
 
-    // listen for any errors from the .jar process
-    // sendAsJson the error over the socket.io connection
-    jarProcess.stderr.on('data', (data) => {
+    // A rejected request (400, 503) answers with a plain text message instead of records
+    const forward = (line) => {
+      if (line.length === 0)
+        return;
+      if (res.statusCode !== 200 || JSON.parse(line).type === "error")
+        failed = true;
       sendAsJson({
-        type: "error",
-        message: String(data)
+        type: res.statusCode === 200 ? "record" : "error",
+        file: "report.ndjson",
+        message: line
       });
-    });
+    };
 
-    // listen for the 'close' event on the .jar process
-    jarProcess.on('close', (closeCode) => {
-      
-      // send a message over the socket.io to indicate that the .jar process has finished
-      sendAsJson({
-        type: "log",
-        message: 'jar process finished with code: ' + closeCode
-      })
-      
-      // send code
+    res.on('data', (chunk) => {
+      pending += chunk;
+      let newline;
+      while ((newline = pending.indexOf('\n')) >= 0) {
+        forward(pending.substring(0, newline));
+        pending = pending.substring(newline + 1);
+      }
+    });
+    res.on('end', () => {
+      forward(pending);
       sendAsJson({
         type: "code",
-        message: withError ? codes.error : codes.success
+        message: failed ? codes.error : codes.success
       })
-      
-      // read the files in the out/ directory
-      fs.readFile('report.log', (err, data) => {
-        if (err) {
-          // sendAsJson the error over the socket.io
-          sendAsJson({
-            type: "error",
-            message: String(err)
-          });
-        } else {
-          // sendAsJson the file contents over the socket.io
-          sendAsJson({
-            type: "result",
-            file: "report.log",
-            message: String(data)
-          });
-        }
-      });
     });
   });
-});
+
+  req.on('error', (err) => {
+    sendAsJson({
+      type: "error",
+      message: String(err)
+    });
+    sendAsJson({
+      type: "code",
+      message: codes.error
+    })
+  });
+
+  req.end(String(message));
+}
+
+// One JVM (App pipe <endpoint>) validates all shapes in turn, they are written to its stdin as
+// "<length>\n<turtle>" and come back in the same order as "ok|error <length>\n<report>" (see ValidationPipe)
+let pipe = null;
+
+const startPipe = () => {
+  const jarProcess = childProcess.spawn('java', ['--enable-preview', '-cp', './build/jars/:./build/jars/*', 'ifis.App', 'pipe', ONTOP_URL]);
+  const current = { process: jarProcess, waiting: [], buffer: Buffer.alloc(0) };
+
+  // Cut the frames out of stdout, each one answers the oldest waiting request
+  jarProcess.stdout.on('data', (data) => {
+    current.buffer = Buffer.concat([current.buffer, data]);
+    while (true) {
+      const newline = current.buffer.indexOf('\n');
+      if (newline < 0)
+        return;
+      const [status, length] = current.buffer.subarray(0, newline).toString().split(' ');
+      const end = newline + 1 + Number(length);
+      if (current.buffer.length < end)
+        return;
+
+      const report = current.buffer.subarray(newline + 1, end).toString('utf8');
+      current.buffer = current.buffer.subarray(end);
+      current.waiting.shift()(status === "ok", report);
+    }
+  });
+
+  // The JVM logs to stderr, the log belongs to the validation running right now
+  jarProcess.stderr.on('data', (data) => {
+    if (current.waiting.length > 0)
+      current.waiting[0].log(String(data));
+  });
+
+  // Requests still waiting fail, the next one starts a new JVM
+  jarProcess.on('close', (closeCode) => {
+    if (pipe === current)
+      pipe = null;
+    for (const done of current.waiting.splice(0))
+      done(false, 'jar process finished with code: ' + closeCode);
+  });
+  jarProcess.stdin.on('error', () => {});
+
+  return current;
+}
+
+const validateInPipe = (message, sendAsJson) => {
+  sendAsJson({
+    type: "code",
+    message: codes.startEval
+  })
+
+  sendAsJson({
+    type: "log",
+    message: `Hallo ich verbinde mich mit ${ONTOP_URL}`
+  });
+
+  if (!pipe)
+    pipe = startPipe();
+
+  const done = (ok, report) => {
+    sendAsJson({
+      type: ok ? "result" : "error",
+      file: "report.log",
+      message: report
+    });
+    sendAsJson({
+      type: "code",
+      message: ok ? codes.success : codes.error
+    })
+  };
+  done.log = (log) => sendAsJson({
+    type: "log",
+    message: log
+  });
+  pipe.waiting.push(done);
+
+  const shapes = Buffer.from(String(message), 'utf8');
+  pipe.process.stdin.write(`${shapes.length}\n`);
+  pipe.process.stdin.write(shapes);
+}
@@ -97,6 +97,19 @@ function App() {
 					setResults(extractValidationCounts(msg.message));
 
 					break
+				// One line of the NDJSON report of the validation server, while it is written
+				case "record": {
+					setReport((report) => report + msg.message + "\n");
+
+					const record = JSON.parse(msg.message);
+					if (record.type === "summary")
+						setResults((results) => ({
+							valid: results.valid + record.valid,
+							invalid: results.invalid + record.invalid
+						}));
+
+					break
+				}
 			}
 		});
 	}
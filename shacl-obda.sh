@@ -0,0 +1,16 @@
+#!/bin/bash
+# Runs the validator from the packaged jar (mvn package), same arguments as ifis.App.
+# With the archive of the cds profile (mvn -P cds package) the JVM maps the classes of a training run
+# instead of loading and verifying them again, which takes a good part off the startup time.
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAR=$DIR/target/shacl-obda-1.0-SNAPSHOT-jar-with-dependencies.jar
+JSA=$DIR/target/shacl-obda.jsa
+
+OPTS=(--enable-preview)
+if [ -f "$JSA" ] && [ -z "$NO_CDS" ]; then
+    # A stale archive (other JDK, rebuilt jar) is ignored by the JVM, so don't warn about it
+    OPTS+=(-XX:SharedArchiveFile="$JSA" -Xlog:cds=off -Xlog:cds+dynamic=off)
+fi
+
+exec java "${OPTS[@]}" -jar "$JAR" "$@"
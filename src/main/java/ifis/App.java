@@ -1,11 +1,23 @@
 package ifis;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.jena.graph.Graph;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.shacl.Shapes;
-import org.apache.jena.sparql.exec.http.QueryExecHTTPBuilder;
 import org.fusesource.jansi.AnsiConsole;
 
+import ifis.endpoint.Endpoint;
+import ifis.endpoint.SqlEndpoint;
+import ifis.server.ValidationPipe;
+import ifis.server.ValidationServer;
+
 
 /**
  * Hello world!
@@ -23,38 +35,112 @@ public final class App {
         // Colored output wrapper
         AnsiConsole.systemInstall();
 
+        // Long running: App serve <endpoint> [options], shapes get POSTed (see ValidationServer)
+        if (args[0].equals("serve")) {
+            var options = Options.parse(args, 2);
+            new ValidationServer(endpoint(args[1], options), options).start();
+            return;
+        }
+
+        // Also long running: App pipe <endpoint> [options], shapes come framed on stdin (see ValidationPipe)
+        if (args[0].equals("pipe")) {
+            var options = Options.parse(args, 2);
+            ValidationPipe.main(endpoint(args[1], options), options);
+            return;
+        }
+
         String filename = args[0];
+        // Either a SPARQL endpoint URL or a local dataset (see Endpoint.of)
         String serviceURL = args[1];
+        Options options = Options.parse(args, 2);
         // String filename = "shapes/test.ttl";
 
         // For now the only way to supply the data.
 
+        // Compiled plan of earlier runs on the same file, if asked for
+        var plan = options.planDirectory == null
+                ? null
+                : ShapePlan.of(Path.of(options.planDirectory), Path.of(filename), options);
+
         // Read File        
         Graph shapesGraph = RDFDataMgr.loadGraph(filename);
         Shapes shapes = Shapes.parse(shapesGraph);
         
-        // Create Query Execution Builder on given SPARQL Endpoint, that can run the queries
-        QueryExecHTTPBuilder bob = QueryExecHTTPBuilder.service(serviceURL);
-        // bob.acceptHeader("application/sparql-results+xml");
-
-        // Set up Validation        
+        // Create the Endpoint that can run the queries
+        Endpoint endpoint = endpoint(serviceURL, options);
+
+        // All shapes share the concurrency limit of the endpoint
+        var scheduler = new DataflowScheduler(options.maxConcurrentQueries);
+
+        // ... and its cached results
+        var cache = new QueryCache(
+                endpoint.getName(),
+                options.cacheMegabytes * 1024 * 1024,
+                options.cacheDirectory == null ? null : Path.of(options.cacheDirectory),
+                Duration.ofSeconds(options.cacheTtlSeconds));
+
+        // The NDJSON and RDF reports cover all shapes and get written while validating
+        ValidationListener streamed = switch (options.reportFormat) {
+            case "ndjson" -> new NdjsonReport(Path.of("report.ndjson"));
+            case "ntriples" -> new RdfReport(Path.of("report.nt"));
+            default -> null;
+        };
+
+        // Shapes are validated side by side, identical queries (mostly the targets) only run once in the
+        // cache. Reports are written in shape order as soon as a shape and the ones before it are done.
+        var futures = new ArrayList<Future<Validation>>();
+        try (var executor = Executors.newFixedThreadPool(Math.max(1, options.shapeThreads));
+                var report = streamed == null ? ReportWriter.open(Path.of("report.log")) : null) {
+
+            for (var shape : shapes) {
+                futures.add(executor.submit(() -> {
+                    var val = new Validation(shape, endpoint, scheduler, cache, options);
+                    if (streamed != null)
+                        val.setListener(streamed);
+                    val.setPlan(plan);
+
+                    // Execute Validation on Shapes
+                    var before = System.nanoTime();
+                    val.exec();
+                    var after = System.nanoTime();
+                    System.out.println("Validation took: "+ String.valueOf(after-before) +" nanoseconds");
+                    return val;
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                var val = futures.get(i).get();
+                futures.set(i, null); // Results of written shapes can go
+
+                // One section per shape in a combined report.log
+                if (report != null) {
+                    if (futures.size() > 1)
+                        report.write("📐 SHAPE: " + val.getShape().getShapeNode() + "\n");
+                    val.writeReport(report);
+                    report.write(futures.size() > 1 ? "\n\n" : "");
+                }
+            }
+        }
 
-        for (var shape : shapes) {
+        if (streamed instanceof Closeable report)
+            report.close();
 
+        if (plan != null)
+            plan.save();
 
-            var val = new Validation(shape, bob);
-    
-            // Execute Validation on Shapes
-            var before = System.nanoTime();
-            val.exec();
-            var after = System.nanoTime();
-            System.out.println("Validation took: "+ String.valueOf(after-before) +" nanoseconds");
+        AnsiConsole.systemUninstall();
 
-            val.saveReport("report.log");
-        }
+    }
 
-        AnsiConsole.systemUninstall();
+    // The endpoint of the command line, with the database behind it if there is a mapping
+    private static Endpoint endpoint(String spec, Options options) throws IOException {
+        var endpoint = Endpoint.of(spec);
+        if (options.sqlMapping == null)
+            return endpoint;
+        if (options.sqlProperties == null)
+            throw new IllegalArgumentException("--sql-mapping needs --sql-properties");
 
+        return SqlEndpoint.of(Path.of(options.sqlMapping), Path.of(options.sqlProperties), endpoint);
     }
 
 
@@ -0,0 +1,136 @@
+package ifis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import ifis.logic.SHACLNode;
+
+/**
+ * Populates and constructs a tree of SHACLNodes as a dataflow graph.
+ *
+ * Every query of the tree is a task of its own, running on a virtual thread. A node gets constructed as
+ * soon as everything it reads is there:
+ * - its own query (PShapeNode, ConstraintNode)
+ * - the constructed children
+ * - the query of the enclosing PShapeNode (ConstraintNode and NotNode read its countMap)
+ * - the root targets (a NotNode on root level negates against them)
+ * That way the set algebra of finished subtrees overlaps with the queries still running.
+ */
+public class DataflowScheduler {
+
+    private final Semaphore permits;
+    private final int maxPermits;
+
+    /**
+     * One scheduler per endpoint: everything validating against the endpoint gets passed the same instance,
+     * so parallel validations share its permits instead of adding up.
+     *
+     * @param maxConcurrentQueries number of queries allowed in flight on the endpoint
+     */
+    public DataflowScheduler(int maxConcurrentQueries) {
+        if (maxConcurrentQueries < 1)
+            throw new IllegalArgumentException("Need at least one query in flight, got " + maxConcurrentQueries);
+        permits = new Semaphore(maxConcurrentQueries, true);
+        maxPermits = maxConcurrentQueries;
+    }
+
+    public int getMaxConcurrentQueries() {
+        return maxPermits;
+    }
+
+    /**
+     * Queries running on the endpoint right now, over all validations sharing this scheduler.
+     */
+    public int queriesInFlight() {
+        return maxPermits - permits.availablePermits();
+    }
+
+    /**
+     * Queries waiting for a permit, over all validations sharing this scheduler.
+     */
+    public int queriesWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Runs a query while holding one of the endpoint's permits.
+     */
+    public <T> T withPermit(Supplier<T> query) {
+        permits.acquireUninterruptibly();
+        try {
+            return query.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Populates and constructs the whole tree, returns once the root is constructed.
+     *
+     * @param tree         the root of the tree
+     * @param prepare      generates the query of a node and returns the task running it and writing back the
+     *                     result, or null if the node has no query. It is called on the calling thread in tree
+     *                     order, so query generation stays sequential.
+     * @param fetchTargets populates the root targets, may be null
+     */
+    public void run(SHACLNode tree, Function<SHACLNode, Runnable> prepare, Runnable fetchTargets) {
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            var targets = fetchTargets == null
+                    ? CompletableFuture.<Void>completedFuture(null)
+                    : CompletableFuture.runAsync(fetchTargets, executor);
+
+            // Fire all queries right away
+            var queries = new HashMap<SHACLNode, CompletableFuture<Void>>();
+            submitQueries(tree, prepare, executor, queries);
+
+            // Then wire up the constructions
+            scheduleConstruction(tree, queries, targets, executor).join();
+
+        } catch (CompletionException e) {
+            // Unwrap so callers see the same exceptions as in a sequential run
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private void submitQueries(SHACLNode node, Function<SHACLNode, Runnable> prepare, ExecutorService executor,
+            HashMap<SHACLNode, CompletableFuture<Void>> queries) {
+
+        var task = prepare.apply(node);
+        if (task != null)
+            queries.put(node, CompletableFuture.runAsync(task, executor));
+
+        for (var child : node.getChildren())
+            submitQueries(child, prepare, executor, queries);
+    }
+
+    private CompletableFuture<Void> scheduleConstruction(SHACLNode node,
+            HashMap<SHACLNode, CompletableFuture<Void>> queries, CompletableFuture<Void> targets,
+            ExecutorService executor) {
+
+        var inputs = new ArrayList<CompletableFuture<Void>>();
+
+        // Children first. This has to happen before the node itself is wired up, since a PShapeNode
+        // rearranges its children while constructing.
+        for (var child : node.getChildren())
+            inputs.add(scheduleConstruction(child, queries, targets, executor));
+
+        inputs.add(queries.getOrDefault(node, targets));
+        inputs.add(queries.getOrDefault(node.getPShape(), targets));
+        inputs.add(targets);
+
+        return CompletableFuture
+                .allOf(inputs.toArray(CompletableFuture[]::new))
+                .thenRunAsync(node::constructSelf, executor);
+    }
+}
@@ -1,13 +1,32 @@
 package ifis;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.jena.ext.com.google.common.collect.Multimap;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
+import org.apache.jena.riot.other.G;
 import org.apache.jena.shacl.engine.Parameter;
 import org.apache.jena.shacl.engine.constraint.ConstraintComponentSPARQL;
 import org.apache.jena.shacl.engine.constraint.SparqlComponent;
+import org.apache.jena.shacl.lib.ShLib;
+import org.apache.jena.shacl.parser.Parameters;
+import org.apache.jena.shacl.parser.Shape;
+import org.apache.jena.shacl.vocabulary.SHACL;
+
+import ifis.exception.ValidationException;
 
 /**
  * ExposedConstraintComponentSPARQL
+ *
+ * Jena keeps the SPARQL and the parameters of a custom constraint component to itself. Instead of
+ * forcing the protected fields open with reflection (which breaks as soon as classes are archived or
+ * compiled ahead of time), the component is built once more from the shapes graph, the same way Jena's
+ * parser does, and kept accessible.
  */
 public class ExposedConstraintComponentSPARQL extends ConstraintComponentSPARQL {
 
@@ -20,6 +39,97 @@ public class ExposedConstraintComponentSPARQL extends ConstraintComponentSPARQL
         return this.sparqlConstraintComponent;
     }
 
-    
-    
-}
\ No newline at end of file
+    public Multimap<Parameter, Node> getParameterMap() {
+        return this.parameterMap;
+    }
+
+    /**
+     * The custom constraint c of the shape, with its SPARQL and parameters accessible.
+     *
+     * Jena doesn't tell which sh:ConstraintComponent c belongs to (getComponent() is always
+     * sh:SPARQLConstraintComponent), so the components of the shape get built and the one printing the same
+     * as c is taken. That only prints select/ask and the parameter values, so if several components do,
+     * there is no telling them apart.
+     *
+     * @param shape the shape c is a constraint of
+     * @throws ValidationException if none or several components of the shape fit c
+     */
+    public static ExposedConstraintComponentSPARQL expose(Shape shape, ConstraintComponentSPARQL c) {
+        if (c instanceof ExposedConstraintComponentSPARQL exposed)
+            return exposed;
+
+        var graph = shape.getShapeGraph();
+        var candidates = buildAll(graph, shape, G.allNodesOfTypeRDFS(graph, SHACL.ConstraintComponent))
+                .stream()
+                .filter((candidate) -> candidate.toString().equals(c.toString()))
+                .toList();
+
+        if (candidates.isEmpty())
+            throw new ValidationException("Could not find the constraint component of " + c);
+        if (candidates.size() > 1)
+            throw new ValidationException("Several constraint components of " + shape.getShapeNode() + " fit " + c);
+        return candidates.get(0);
+    }
+
+    // The constraints Jena's parser makes of the components for the shape: one per component the shape
+    // has all required parameters of, and only one per set of required parameters
+    private static List<ExposedConstraintComponentSPARQL> buildAll(Graph graph, Shape shape,
+            Collection<Node> components) {
+        var built = new ArrayList<ExposedConstraintComponentSPARQL>();
+        var seen = new HashSet<Set<Node>>();
+        for (var component : components) {
+            var candidate = build(graph, shape, component);
+            if (candidate != null && seen.add(Set.copyOf(candidate.getSparqlComponent().getRequiredParameters())))
+                built.add(candidate);
+        }
+        return built;
+    }
+
+    // Same steps as Jena's parser, null if the component doesn't apply to the shape
+    private static ExposedConstraintComponentSPARQL build(Graph graph, Shape shape, Node component) {
+
+        // Parameters are named by the local name of their path
+        var params = new ArrayList<Parameter>();
+        var required = new ArrayList<Node>();
+        for (var param : G.listSP(graph, component, SHACL.parameter)) {
+            var path = G.getOneSP(graph, param, SHACL.path);
+            var optional = G.getZeroOrOneSP(graph, param, SHACL.optional);
+            var isOptional = optional != null && optional.getLiteralLexicalForm().equals("true");
+
+            params.add(new Parameter(path, path.getLocalName(), isOptional, new ArrayList<>()));
+            if (!isOptional)
+                required.add(path);
+        }
+
+        // A component without required parameters never applies
+        if (required.isEmpty() || !Parameters.doesShapeHaveAllParameters(graph, shape.getShapeNode(), required))
+            return null;
+
+        // The specific validator for the kind of shape, the general one otherwise
+        var validator = G.getZeroOrOneSP(graph, component,
+                shape.isNodeShape() ? SHACL.nodeValidator : SHACL.propertyValidator);
+        if (validator == null)
+            validator = G.getZeroOrOneSP(graph, component, SHACL.validator);
+        if (validator == null)
+            return null;
+
+        var query = G.getZeroOrOneSP(graph, validator, SHACL.select);
+        if (query == null)
+            query = G.getZeroOrOneSP(graph, validator, SHACL.ask);
+        if (query == null)
+            return null;
+
+        var message = G.getZeroOrOneSP(graph, validator, SHACL.message);
+
+        var sparql = query.getLiteralLexicalForm().trim();
+        var prefixes = ShLib.prefixes(graph, validator);
+        if (!prefixes.isEmpty())
+            sparql = prefixes + "\n" + sparql;
+
+        var sparqlComponent = SparqlComponent.constraintComponent(component, sparql, params,
+                message == null ? null : message.getLiteralLexicalForm());
+
+        return new ExposedConstraintComponentSPARQL(sparqlComponent,
+                Parameters.parameterValues(graph, shape.getShapeNode(), sparqlComponent));
+    }
+}
@@ -0,0 +1,172 @@
+package ifis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.shacl.parser.Shape;
+
+import ifis.logic.SHACLNode;
+
+/**
+ * Report as newline delimited JSON, one record per line, written while the validation runs.
+ *
+ * Records (all carry "type" and "shape"):
+ * - shape:   the logic tree, "nodes" lists every SHACLNode with its "id", the "parent" id and a "label"
+ * - focus:   one per target, "focus" is the target, "valid" its verdict and "nodes" maps the id of
+ *            every SHACLNode to its verdict for the target
+ * - summary: once all targets are checked, "targets", "valid" and "invalid" counts
+ * - error:   the validation was aborted, "message" says why (no "shape")
+ *
+ * Node ids are the positions in the tree ("0", "0.1", "0.1.0", ...), so they stay the same for the
+ * same shapes. The file gets flushed every FLUSH_EVERY records and after every shape, so consumers can
+ * start reading before the validation is finished.
+ */
+public class NdjsonReport implements ValidationListener, Closeable {
+
+    private static final int FLUSH_EVERY = 1024;
+
+    private final Writer out;
+    private int unflushed = 0;
+
+    public NdjsonReport(Path file) throws IOException {
+        this(ReportWriter.open(file));
+    }
+
+    public NdjsonReport(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void treeBuilt(Shape shape, SHACLNode tree) {
+        var sb = record("shape", shape);
+        sb.append(",\"nodes\":[");
+        appendNodes(sb, tree, null);
+        sb.setLength(sb.length() - 1);
+        sb.append("]}\n");
+        write(sb, true);
+    }
+
+    @Override
+    public void result(Shape shape, SHACLNode tree, ValidationResult result) {
+        var sb = record("focus", shape);
+        sb.append(",\"focus\":");
+        quote(sb, term(result.getAtom()));
+        sb.append(",\"valid\":").append(result.isValid());
+        sb.append(",\"nodes\":{");
+        appendVerdicts(sb, tree, result);
+        sb.setLength(sb.length() - 1);
+        sb.append("}}\n");
+        write(sb, false);
+    }
+
+    @Override
+    public void finished(Shape shape, SHACLNode tree, Set<ValidationResult> results) {
+        var valid = results.stream().filter((res) -> res.isValid()).count();
+
+        var sb = record("summary", shape);
+        sb.append(",\"targets\":").append(results.size());
+        sb.append(",\"valid\":").append(valid);
+        sb.append(",\"invalid\":").append(results.size() - valid);
+        sb.append("}\n");
+        write(sb, true);
+    }
+
+    /**
+     * Ends the report with an error record, for when the validation fails after records went out.
+     */
+    public void error(String message) {
+        var sb = new StringBuilder(256);
+        sb.append("{\"type\":\"error\",\"message\":");
+        quote(sb, message == null ? "" : message);
+        sb.append("}\n");
+        write(sb, true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /*
+     * RECORDS
+     */
+
+    private static StringBuilder record(String type, Shape shape) {
+        var sb = new StringBuilder(256);
+        sb.append("{\"type\":\"").append(type).append("\",\"shape\":");
+        quote(sb, term(shape.getShapeNode()));
+        return sb;
+    }
+
+    private static void appendNodes(StringBuilder sb, SHACLNode node, String parentId) {
+        sb.append("{\"id\":\"").append(node.getNodeId()).append("\",\"parent\":");
+        if (parentId == null)
+            sb.append("null");
+        else
+            sb.append('"').append(parentId).append('"');
+        sb.append(",\"label\":");
+        quote(sb, node.getReportString().strip());
+        sb.append("},");
+
+        for (var child : node.getChildren())
+            appendNodes(sb, child, node.getNodeId());
+    }
+
+    private static void appendVerdicts(StringBuilder sb, SHACLNode node, ValidationResult result) {
+        sb.append('"').append(node.getNodeId()).append("\":")
+                .append(result.getValidatingNodes().contains(node)).append(',');
+
+        for (var child : node.getChildren())
+            appendVerdicts(sb, child, result);
+    }
+
+    private synchronized void write(StringBuilder sb, boolean flush) {
+        try {
+            out.append(sb);
+            if (flush || ++unflushed >= FLUSH_EVERY) {
+                out.flush();
+                unflushed = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the NDJSON report", e);
+        }
+    }
+
+    /*
+     * JSON
+     */
+
+    private static String term(Node node) {
+        if (node.isURI())
+            return node.getURI();
+        if (node.isLiteral())
+            return node.getLiteralLexicalForm();
+        return node.toString();
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
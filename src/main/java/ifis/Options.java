@@ -0,0 +1,130 @@
+package ifis;
+
+/**
+ * Command line options.
+ * The shapes file and the endpoint stay positional, everything after them is passed as --name=value.
+ */
+public class Options implements Cloneable {
+
+    // Upper bound of queries in flight against a single endpoint
+    public int maxConcurrentQueries = 4;
+
+    // Query result cache: memory tier in MB (0 disables the cache), optional disk tier, expiry of both.
+    // The validation server keeps its cache between requests, POST /cache/invalidate drops it.
+    public long cacheMegabytes = 64;
+    public String cacheDirectory = null;
+    public long cacheTtlSeconds = 600;
+
+    // Count the values of a PShapeNode and all its ConstraintNodes in a single query
+    public boolean fuseQueries = true;
+
+    // Check cardinalities and value validity in HAVING, so only violating focus nodes get transferred
+    public boolean pushHaving = false;
+
+    // Who evaluates AND/OR/NOT/XONE subtrees of simple PShapes: "client" combines the results of a query per
+    // PShape, "sparql" leaves the whole subtree to the endpoint in one query, "auto" estimates which is cheaper.
+    // The estimate is a COUNT query per subtree that runs before anything else, so "auto" is opt-in.
+    public String junctorPlan = "client";
+
+    // Run the generated queries through the QueryOptimizer before sending them
+    public boolean optimizeQueries = true;
+
+    // Serialize structurally identical queries once and only fill in their terms (see QueryTemplates)
+    public boolean queryTemplates = true;
+
+    // How the queries are written: "sparql" with property paths and OPTIONAL, "obda" with neither, for
+    // endpoints that rewrite queries into SQL (paths expanded into triples, zero counts joined client-side)
+    public String queryDialect = "sparql";
+
+    // Run the queries as SQL on the database behind the endpoint (see SqlEndpoint): its .obda mapping and
+    // Ontop's connection.properties. Implies the "obda" dialect, the endpoint only gets what isn't compiled.
+    public String sqlMapping = null;
+    public String sqlProperties = null;
+
+    // Compiled shape plans (see ShapePlan) are kept here, null compiles the shapes on every run
+    public String planDirectory = null;
+
+    // Shapes validated at the same time by App
+    public int shapeThreads = 1;
+
+    // Threads rendering report entries, 1 renders them while writing
+    public int reportThreads = 1;
+
+    // text: the tree per target in report.log, grouped: each distinct tree once with its targets in
+    // report.log, ndjson: one JSON record per line in report.ndjson, ntriples: sh:ValidationReport in report.nt
+    public String reportFormat = "text";
+
+    // Port of the validation server (App serve <endpoint>)
+    public int port = 6778;
+
+    // Validation server jobs: running at once, waiting at most, heap in use above which new ones are
+    // rejected (0: 80% of the max heap)
+    public int jobWorkers = 2;
+    public int jobQueue = 64;
+    public long heapBudgetMegabytes = 0;
+
+    /**
+     * The same options, to be changed without touching these. All fields are values, so a shallow copy
+     * is enough and new options don't need to be added here.
+     */
+    public Options copy() {
+        try {
+            return (Options) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static Options parse(String[] args, int from) {
+        var options = new Options();
+
+        for (int i = from; i < args.length; i++) {
+            var arg = args[i];
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument '" + arg + "'");
+
+            // Flags without a value are just switched on
+            var split = arg.substring(2).split("=", 2);
+            var name = split[0];
+            var value = split.length > 1 ? split[1] : "true";
+
+            switch (name) {
+                case "concurrency" -> options.maxConcurrentQueries = Integer.parseInt(value);
+                case "cache-mb" -> options.cacheMegabytes = Long.parseLong(value);
+                case "cache-dir" -> options.cacheDirectory = value;
+                case "cache-ttl" -> options.cacheTtlSeconds = Long.parseLong(value);
+                case "fuse" -> options.fuseQueries = Boolean.parseBoolean(value);
+                case "having" -> options.pushHaving = Boolean.parseBoolean(value);
+                case "junctors" -> options.junctorPlan = switch (value) {
+                    case "client", "sparql", "auto" -> value;
+                    default -> throw new IllegalArgumentException("Unknown junctor plan '" + value + "'");
+                };
+                case "optimize" -> options.optimizeQueries = Boolean.parseBoolean(value);
+                case "templates" -> options.queryTemplates = Boolean.parseBoolean(value);
+                case "dialect" -> options.queryDialect = switch (value) {
+                    case "sparql", "obda" -> value;
+                    default -> throw new IllegalArgumentException("Unknown query dialect '" + value + "'");
+                };
+                case "sql-mapping" -> {
+                    options.sqlMapping = value;
+                    options.queryDialect = "obda";
+                }
+                case "sql-properties" -> options.sqlProperties = value;
+                case "port" -> options.port = Integer.parseInt(value);
+                case "jobs" -> options.jobWorkers = Integer.parseInt(value);
+                case "job-queue" -> options.jobQueue = Integer.parseInt(value);
+                case "heap-budget-mb" -> options.heapBudgetMegabytes = Long.parseLong(value);
+                case "plan-dir" -> options.planDirectory = value;
+                case "shape-threads" -> options.shapeThreads = Integer.parseInt(value);
+                case "report-threads" -> options.reportThreads = Integer.parseInt(value);
+                case "report" -> options.reportFormat = switch (value) {
+                    case "text", "grouped", "ndjson", "ntriples" -> value;
+                    default -> throw new IllegalArgumentException("Unknown report format '" + value + "'");
+                };
+                default -> throw new IllegalArgumentException("Unknown option '--" + name + "'");
+            }
+        }
+
+        return options;
+    }
+}
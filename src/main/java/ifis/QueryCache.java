@@ -0,0 +1,325 @@
+package ifis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.exec.RowSetStream;
+
+/**
+ * Caches the rows of queries against one endpoint, so repeated and overlapping validations
+ * don't run the same query twice.
+ *
+ * There are two tiers:
+ * - memory: LRU, bounded by the (estimated) size of the cached rows, shared by all validations
+ *   using this cache
+ * - disk: optional, one file per query in the cache directory, survives the process
+ * Entries of both tiers expire after the TTL, or all at once with invalidate() when the data changed.
+ * Results larger than the memory bound are never cached, they keep streaming.
+ *
+ * Queries are keyed by the endpoint and their normalized text (parsed and serialized by Jena,
+ * so formatting doesn't matter).
+ *
+ * A query that is already running isn't sent a second time: later callers wait for the first one and
+ * get its rows from the cache. Shapes validated side by side mostly share their target queries.
+ */
+public class QueryCache {
+
+    private record Entry(List<Var> vars, List<Binding> rows, long bytes, long created) {
+    }
+
+    private final String endpoint;
+    private final long maxBytes;
+    private final Path directory;
+    private final long ttlMillis;
+
+    // Access ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    // Bumped by invalidate(), rows fetched before don't get cached anymore
+    private long generation = 0;
+
+    // Queries running against the endpoint right now, completed with their entry (null if not cached)
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> running = new ConcurrentHashMap<>();
+
+    /**
+     * @param endpoint  the endpoint the cached queries run against
+     * @param maxBytes  bound of the memory tier, 0 disables caching
+     * @param directory directory of the disk tier, null disables it
+     * @param ttl       time after which entries of both tiers are stale
+     */
+    public QueryCache(String endpoint, long maxBytes, Path directory, Duration ttl) {
+        this.endpoint = endpoint;
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    public static QueryCache disabled() {
+        return new QueryCache("", 0, null, Duration.ZERO);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Streams the rows of the query into the sink, from the cache if possible.
+     *
+     * @param sparql    the query
+     * @param sink      receives every row
+     * @param execution runs the query against the endpoint, feeding the given sink, returns the row count
+     * @return the number of rows
+     */
+    public long query(String sparql, Consumer<Binding> sink, ToLongFunction<Consumer<Binding>> execution) {
+        if (!isEnabled())
+            return execution.applyAsLong(sink);
+
+        var parsed = QueryFactory.create(sparql);
+        var key = endpoint + "\n" + parsed.serialize();
+
+        // MEMORY
+        var entry = fromMemory(key);
+
+        // DISK
+        if (entry == null && directory != null) {
+            entry = fromDisk(key);
+            if (entry != null)
+                toMemory(key, entry, generation());
+        }
+
+        if (entry != null) {
+            entry.rows().forEach(sink);
+            return entry.rows().size();
+        }
+
+        // RUNNING
+        var mine = new CompletableFuture<Entry>();
+        var theirs = running.putIfAbsent(key, mine);
+        if (theirs != null) {
+            entry = theirs.join();
+            if (entry != null) {
+                entry.rows().forEach(sink);
+                return entry.rows().size();
+            }
+            // Too large to be cached or failed, there's nothing to share
+            return execution.applyAsLong(sink);
+        }
+
+        try {
+            return fetch(parsed, key, sink, execution, mine);
+        } catch (RuntimeException e) {
+            mine.complete(null);
+            throw e;
+        } finally {
+            running.remove(key, mine);
+        }
+    }
+
+    /**
+     * Drops all entries of both tiers, queries running right now don't get cached either.
+     * For when the data behind the endpoint changed before the TTL is up.
+     *
+     * @return the number of entries dropped from memory
+     */
+    public synchronized int invalidate() {
+        var dropped = memory.size();
+        memory.clear();
+        bytes = 0;
+        generation++;
+        // Later callers don't wait for rows that may be outdated
+        running.clear();
+
+        if (directory != null && Files.isDirectory(directory)) {
+            try (var files = Files.list(directory)) {
+                for (var file : files.filter((f) -> f.toString().endsWith(".rt")).toList())
+                    Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not clear the cache directory " + directory + ": " + e.getMessage());
+            }
+        }
+        return dropped;
+    }
+
+    /*
+     * ENDPOINT
+     */
+
+    // Runs the query, completes shared with the cached entry or null if it was too large
+    private long fetch(Query parsed, String key, Consumer<Binding> sink,
+            ToLongFunction<Consumer<Binding>> execution, CompletableFuture<Entry> shared) {
+
+        // Rows are passed on right away and buffered as long as they would fit
+        var vars = parsed.getResultVars().stream().map(Var::alloc).toList();
+        var buffer = new ArrayList<Binding>();
+        var size = new long[] { 0 };
+        var fetchedIn = generation();
+
+        var count = execution.applyAsLong((binding) -> {
+            sink.accept(binding);
+
+            if (size[0] > maxBytes)
+                return;
+            size[0] += estimateBytes(binding);
+            if (size[0] > maxBytes)
+                buffer.clear();
+            else
+                buffer.add(binding);
+        });
+
+        Entry entry = null;
+        if (size[0] <= maxBytes) {
+            entry = new Entry(vars, buffer, size[0], System.currentTimeMillis());
+            // Invalidated while running, the callers waiting for it still get the rows
+            if (toMemory(key, entry, fetchedIn) && directory != null)
+                toDisk(key, entry);
+        }
+        shared.complete(entry);
+
+        return count;
+    }
+
+    /*
+     * MEMORY TIER
+     */
+
+    private synchronized Entry fromMemory(String key) {
+        var entry = memory.get(key);
+        if (entry == null)
+            return null;
+
+        if (isStale(entry.created())) {
+            memory.remove(key);
+            bytes -= entry.bytes();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private synchronized boolean toMemory(String key, Entry entry, long fetchedIn) {
+        if (fetchedIn != generation)
+            return false;
+
+        var old = memory.put(key, entry);
+        if (old != null)
+            bytes -= old.bytes();
+        bytes += entry.bytes();
+
+        // Evict least recently used entries until we fit again
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    /*
+     * DISK TIER
+     */
+
+    private Entry fromDisk(String key) {
+        var file = fileFor(key);
+        try {
+            if (!Files.exists(file))
+                return null;
+
+            var created = Files.getLastModifiedTime(file).toMillis();
+            if (isStale(created)) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+
+            try (var in = new BufferedInputStream(Files.newInputStream(file))) {
+                ResultSet rs = ResultSetMgr.read(in, ResultSetLang.RS_Thrift);
+                var vars = rs.getResultVars().stream().map(Var::alloc).toList();
+                var rows = new ArrayList<Binding>();
+                long size = 0;
+                while (rs.hasNext()) {
+                    var binding = rs.nextBinding();
+                    size += estimateBytes(binding);
+                    rows.add(binding);
+                }
+                return new Entry(vars, rows, size, created);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A broken cache file is just a miss
+            System.err.println("Could not read cached result " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void toDisk(String key, Entry entry) {
+        var file = fileFor(key);
+        try {
+            Files.createDirectories(directory);
+
+            // Write to a temp file first, so concurrent readers never see half an entry
+            var tmp = Files.createTempFile(directory, "query", ".tmp");
+            try (var out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                var rowSet = RowSetStream.create(entry.vars(), entry.rows().iterator());
+                ResultSetMgr.write(out, ResultSet.adapt(rowSet), ResultSetLang.RS_Thrift);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not cache result in " + file + ": " + e.getMessage());
+        }
+    }
+
+    private Path fileFor(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + ".rt");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to ship SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * HELPERS
+     */
+
+    private boolean isStale(long created) {
+        return System.currentTimeMillis() - created > ttlMillis;
+    }
+
+    // Rough size of a row on the heap: object headers plus the strings of its nodes
+    private static long estimateBytes(Binding binding) {
+        long size = 48;
+        for (var it = binding.vars(); it.hasNext();) {
+            var node = binding.get(it.next());
+            size += 64 + 2L * (node.isLiteral() ? node.getLiteralLexicalForm().length() : node.toString().length());
+        }
+        return size;
+    }
+}
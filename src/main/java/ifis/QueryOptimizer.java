@@ -0,0 +1,96 @@
+package ifis;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVars;
+import org.apache.jena.sparql.algebra.TransformCopy;
+import org.apache.jena.sparql.algebra.Transformer;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.optimize.TransformFilterPlacement;
+import org.apache.jena.sparql.algebra.optimize.TransformReorder;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderLib;
+
+/**
+ * Passes over the algebra of a generated query, so the endpoint (Ontop) gets smaller queries to unfold.
+ * In this order:
+ * - OPTIONAL elimination: a DISTINCT projection of variables bound without the OPTIONAL doesn't change
+ *   with it, every row of the left side shows up at least once either way
+ * - Redundant DISTINCT: a projection of all group keys has one row per group already
+ * - BGP reordering: most selective triples first (constant class and predicate before variables)
+ * - Filter placement: filters move right after the triple binding their last variable, splitting the BGP
+ *
+ * All passes keep the results the same, they only change how the query is written.
+ */
+public final class QueryOptimizer {
+
+    private QueryOptimizer() {
+    }
+
+    public static Op optimize(Op op) {
+        op = Transformer.transform(new UnusedOptional(), op);
+        op = Transformer.transform(new RedundantDistinct(), op);
+        op = Transformer.transform(new TransformReorder(ReorderLib.fixed()), op);
+        op = Transformer.transform(new TransformFilterPlacement(), op);
+        return op;
+    }
+
+    private static class UnusedOptional extends TransformCopy {
+
+        @Override
+        public Op transform(OpDistinct opDistinct, Op subOp) {
+            if (subOp instanceof OpProject project) {
+                var pattern = withoutOptional(project.getSubOp(), new HashSet<>(project.getVars()));
+                if (pattern != project.getSubOp())
+                    return OpDistinct.create(new OpProject(pattern, project.getVars()));
+            }
+            return super.transform(opDistinct, subOp);
+        }
+
+        // The pattern without the OPTIONALs none of the used variables come from
+        private static Op withoutOptional(Op op, Set<Var> used) {
+            return switch (op) {
+                case OpLeftJoin leftJoin when leftJoin.getExprs() == null
+                        && OpVars.visibleVars(leftJoin.getLeft()).containsAll(used) ->
+                    withoutOptional(leftJoin.getLeft(), used);
+                case OpFilter filter -> {
+                    // The filtered variables are used as well
+                    var filterUsed = new HashSet<>(used);
+                    filterUsed.addAll(filter.getExprs().getVarsMentioned());
+
+                    var sub = withoutOptional(filter.getSubOp(), filterUsed);
+                    yield sub == filter.getSubOp() ? filter : OpFilter.filterBy(filter.getExprs(), sub);
+                }
+                default -> op;
+            };
+        }
+    }
+
+    private static class RedundantDistinct extends TransformCopy {
+
+        @Override
+        public Op transform(OpDistinct opDistinct, Op subOp) {
+            if (subOp instanceof OpProject project && groupedBy(project.getSubOp(), project.getVars()))
+                return subOp;
+            return super.transform(opDistinct, subOp);
+        }
+
+        // Whether op has one row per group, with all group keys among the vars
+        private static boolean groupedBy(Op op, List<Var> vars) {
+            return switch (op) {
+                case OpGroup group -> vars.containsAll(group.getGroupVars().getVars());
+                case OpExtend extend -> groupedBy(extend.getSubOp(), vars);
+                case OpFilter filter -> groupedBy(filter.getSubOp(), vars);
+                default -> false;
+            };
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ifis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpAsQuery;
+import org.apache.jena.sparql.algebra.TransformCopy;
+import org.apache.jena.sparql.algebra.Transformer;
+import org.apache.jena.sparql.algebra.op.OpPath;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.graph.NodeTransform;
+import org.apache.jena.sparql.graph.NodeTransformLib;
+import org.apache.jena.sparql.path.P_Alt;
+import org.apache.jena.sparql.path.P_Inverse;
+import org.apache.jena.sparql.path.P_Link;
+import org.apache.jena.sparql.path.P_ReverseLink;
+import org.apache.jena.sparql.path.P_Seq;
+import org.apache.jena.sparql.path.Path;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * Registry of query templates, so structurally identical queries are only optimized and serialized once.
+ *
+ * The template of a generated query is its algebra with every IRI and literal (but rdf:type) replaced by
+ * a numbered placeholder, equal terms share one. Queries of property shapes which only differ in their
+ * path IRI, class or bounds have the same template. The first of them optimizes and serializes it, the
+ * others only put their terms into the text. Structurally identical checks are thus also written
+ * identically, apart from their terms, which is what the endpoint's own caches of rewritten queries see.
+ */
+public class QueryTemplates {
+
+    private static final String PLACEHOLDER = "urn:x-shacl-obda:param:";
+    private static final Pattern PLACEHOLDERS = Pattern.compile("<" + Pattern.quote(PLACEHOLDER) + "(\\d+)>");
+
+    // Terms are written out in full, the queries declare no prefixes
+    private static final PrefixMapping NO_PREFIXES = PrefixMapping.Factory.create().lock();
+
+    // Shapes files aren't that large, this only keeps generated shapes from growing it without end
+    private static final int MAX_TEMPLATES = 10_000;
+
+    // Shared by all validations of the process
+    public static final QueryTemplates SHARED = new QueryTemplates();
+
+    private record Key(Op template, boolean optimize) {
+    }
+
+    /**
+     * The serialized template cut at its placeholders: fragments[0] params[0] fragments[1] ... params[n-1]
+     * fragments[n]. Without fragments the terms didn't all make it into the text, those queries are
+     * serialized one by one.
+     */
+    private record Template(List<String> fragments, int[] params) {
+
+        String instantiate(List<Node> values) {
+            var sb = new StringBuilder(fragments.getFirst());
+            for (int i = 0; i < params.length; i++)
+                sb.append(FmtUtils.stringForNode(values.get(params[i]), NO_PREFIXES)).append(fragments.get(i + 1));
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Template> templates = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The query, serialized from its template.
+     *
+     * @param optimize whether the template goes through the QueryOptimizer first
+     */
+    public String serialize(Op op, boolean optimize) {
+        var values = new ArrayList<Node>();
+        var key = new Key(abstractTerms(op, values), optimize);
+
+        var template = templates.get(key);
+        if (template != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            template = compile(key, values.size());
+            if (templates.size() < MAX_TEMPLATES)
+                templates.putIfAbsent(key, template);
+        }
+
+        return template.fragments() == null ? serialize(op, optimize, null) : template.instantiate(values);
+    }
+
+    /**
+     * The query serialized as it is, without a template.
+     */
+    public static String serialize(Op op, boolean optimize, QueryTemplates templates) {
+        if (templates != null)
+            return templates.serialize(op, optimize);
+
+        if (optimize)
+            op = QueryOptimizer.optimize(op);
+        return OpAsQuery.asQuery(op).serialize();
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /*
+     * TEMPLATES
+     */
+
+    private static Template compile(Key key, int numParams) {
+        var text = serialize(key.template(), key.optimize(), null);
+
+        var fragments = new ArrayList<String>();
+        var params = new ArrayList<Integer>();
+        var seen = new boolean[numParams];
+
+        var matcher = PLACEHOLDERS.matcher(text);
+        var from = 0;
+        while (matcher.find()) {
+            var param = Integer.parseInt(matcher.group(1));
+            fragments.add(text.substring(from, matcher.start()));
+            params.add(param);
+            seen[param] = true;
+            from = matcher.end();
+        }
+        fragments.add(text.substring(from));
+
+        for (var s : seen) {
+            if (!s)
+                return new Template(null, null);
+        }
+        return new Template(fragments, params.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    // Replaces the terms of op by placeholders, values gets the terms in the order of their placeholders
+    private static Op abstractTerms(Op op, List<Node> values) {
+        var placeholders = new HashMap<Node, Node>();
+
+        NodeTransform transform = (node) -> {
+            if (!(node.isURI() || node.isLiteral()) || node.equals(RDF.Nodes.type))
+                return node;
+
+            return placeholders.computeIfAbsent(node, (term) -> {
+                values.add(term);
+                return NodeFactory.createURI(PLACEHOLDER + (values.size() - 1));
+            });
+        };
+
+        // The NodeTransform doesn't look into property paths
+        op = Transformer.transform(new TransformCopy() {
+            @Override
+            public Op transform(OpPath opPath) {
+                var triplePath = opPath.getTriplePath();
+                return new OpPath(new TriplePath(triplePath.getSubject(),
+                        abstractPath(triplePath.getPath(), transform), triplePath.getObject()));
+            }
+        }, op);
+
+        return NodeTransformLib.transform(transform, op);
+    }
+
+    // Other kinds of paths keep their IRIs, they are then part of the template
+    private static Path abstractPath(Path path, NodeTransform transform) {
+        return switch (path) {
+            case P_Link link -> new P_Link(transform.apply(link.getNode()));
+            case P_ReverseLink link -> new P_ReverseLink(transform.apply(link.getNode()));
+            case P_Inverse inverse -> new P_Inverse(abstractPath(inverse.getSubPath(), transform));
+            case P_Alt alt -> new P_Alt(abstractPath(alt.getLeft(), transform), abstractPath(alt.getRight(), transform));
+            case P_Seq seq -> new P_Seq(abstractPath(seq.getLeft(), transform), abstractPath(seq.getRight(), transform));
+            default -> path;
+        };
+    }
+}
@@ -0,0 +1,173 @@
+package ifis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.shacl.engine.ShaclPaths;
+import org.apache.jena.shacl.parser.Shape;
+import org.apache.jena.shacl.vocabulary.SHACL;
+import org.apache.jena.sparql.path.Path;
+import org.apache.jena.vocabulary.RDF;
+
+import ifis.logic.AndNode;
+import ifis.logic.ConstraintNode;
+import ifis.logic.NotNode;
+import ifis.logic.OrNode;
+import ifis.logic.PShapeNode;
+import ifis.logic.QualifiedNode;
+import ifis.logic.SHACLNode;
+import ifis.logic.StringPath;
+import ifis.logic.XoneNode;
+
+/**
+ * W3C sh:ValidationReport as N-Triples, written while the validation runs.
+ *
+ * Every invalid target gets walked down its logic tree along the nodes that don't validate it:
+ * - AND and PShapeNodes are descended into, they are conjunctions of their children
+ * - NOT, OR, XONE and qualified value shapes become one sh:result with their component, like in SHACL
+ *   nothing below them is reported
+ * - ConstraintNodes become one sh:result per constraint (including min/max and the sh:class of the
+ *   PShape), as their constraints are checked together there is no telling which one failed
+ *
+ * The focus node of a result is always the target, the path is the one of the innermost PShape.
+ * Every triple is formatted and written right away, so no Graph is built and memory doesn't grow with
+ * the number of results. sh:conforms is written on close, once all shapes are through.
+ */
+public class RdfReport implements ValidationListener, Closeable {
+
+    private static final int FLUSH_EVERY = 1024;
+
+    private final AWriter out;
+    private final NodeFormatter formatter = new NodeFormatterNT();
+    private final Node report = NodeFactory.createBlankNode();
+    private volatile boolean conforms = true;
+    private int unflushed = 0;
+
+    public RdfReport(java.nio.file.Path file) throws IOException {
+        this(ReportWriter.open(file));
+    }
+
+    public RdfReport(Writer out) {
+        this.out = IO.wrap(out);
+        write(List.of(Triple.create(report, RDF.Nodes.type, SHACL.ValidationReport)));
+    }
+
+    @Override
+    public void result(Shape shape, SHACLNode tree, ValidationResult result) {
+        if (result.isValid())
+            return;
+        conforms = false;
+
+        // Triples of one target are collected and written in one go, so they stay together
+        var triples = new ArrayList<Triple>();
+        walk(tree, shape, null, result, triples);
+        write(triples);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        write(List.of(Triple.create(report, SHACL.conforms,
+                NodeFactory.createLiteral(String.valueOf(conforms), XSDDatatype.XSDboolean))));
+        out.close();
+    }
+
+    /*
+     * RESULTS
+     */
+
+    private void walk(SHACLNode node, Shape sourceShape, Path path, ValidationResult result, List<Triple> triples) {
+        // Valid nodes don't add anything to the report
+        if (result.getValidatingNodes().contains(node))
+            return;
+
+        if (node.getShape() != null)
+            sourceShape = node.getShape();
+
+        switch (node) {
+            case PShapeNode pnode -> {
+                for (var child : node.getChildren())
+                    walk(child, sourceShape, pnode.getPath(), result, triples);
+            }
+            case AndNode and -> {
+                for (var child : node.getChildren())
+                    walk(child, sourceShape, path, result, triples);
+            }
+            case NotNode not -> addResult(SHACL.NotConstraintComponent, node, sourceShape, path, result, triples);
+            case OrNode or -> addResult(SHACL.OrConstraintComponent, node, sourceShape, path, result, triples);
+            case XoneNode xone -> addResult(SHACL.XoneConstraintComponent, node, sourceShape, path, result, triples);
+            case QualifiedNode qnode -> addResult(
+                    qnode.getMinCount() != -1
+                            ? SHACL.QualifiedMinCountConstraintComponent
+                            : SHACL.QualifiedMaxCountConstraintComponent,
+                    node, sourceShape, path, result, triples);
+            case ConstraintNode cnode -> {
+                var components = new ArrayList<Node>();
+                if (cnode.min != null)
+                    components.add(cnode.min.getComponent());
+                if (cnode.max != null)
+                    components.add(cnode.max.getComponent());
+                for (var c : cnode.getConstraints())
+                    components.add(c.getComponent());
+                if (cnode.getPShape() != null)
+                    for (var c : cnode.getPShape().getEngineConstraints())
+                        components.add(c.getComponent());
+
+                if (components.isEmpty())
+                    addResult(null, node, sourceShape, path, result, triples);
+                for (var component : components)
+                    addResult(component, node, sourceShape, path, result, triples);
+            }
+            default -> addResult(null, node, sourceShape, path, result, triples);
+        }
+    }
+
+    private void addResult(Node component, SHACLNode node, Shape sourceShape, Path path, ValidationResult result,
+            List<Triple> triples) {
+        var r = NodeFactory.createBlankNode();
+
+        triples.add(Triple.create(report, SHACL.result, r));
+        triples.add(Triple.create(r, RDF.Nodes.type, SHACL.ValidationResult));
+        triples.add(Triple.create(r, SHACL.focusNode, result.getAtom()));
+        if (sourceShape != null) {
+            triples.add(Triple.create(r, SHACL.sourceShape, sourceShape.getShapeNode()));
+            triples.add(Triple.create(r, SHACL.resultSeverity, sourceShape.getSeverity().level()));
+        }
+        if (component != null)
+            triples.add(Triple.create(r, SHACL.sourceConstraintComponent, component));
+        // StringPaths are plain SPARQL, they have no RDF form
+        if (path != null && !(path instanceof StringPath))
+            triples.add(Triple.create(r, SHACL.resultPath, ShaclPaths.pathToRDF(triples::add, path)));
+        triples.add(Triple.create(r, SHACL.resultMessage,
+                NodeFactory.createLiteral(node.getReportString().strip())));
+    }
+
+    /*
+     * OUTPUT
+     */
+
+    private synchronized void write(List<Triple> triples) {
+        for (var t : triples) {
+            formatter.format(out, t.getSubject());
+            out.write(' ');
+            formatter.format(out, t.getPredicate());
+            out.write(' ');
+            formatter.format(out, t.getObject());
+            out.write(" .\n");
+        }
+        if (++unflushed >= FLUSH_EVERY) {
+            out.flush();
+            unflushed = 0;
+        }
+    }
+}
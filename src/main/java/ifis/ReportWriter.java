@@ -0,0 +1,144 @@
+package ifis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes a report entry by entry, so its size doesn't matter.
+ *
+ * Every entry is rendered into a reused StringBuilder and goes straight into a buffered writer on the
+ * file's channel. With more than one thread, the entries are rendered in shards on a pool and written
+ * in their original order. Only a few shards per thread are in flight at any time, so memory stays
+ * bounded by the shard size, not by the number of entries.
+ */
+public class ReportWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SHARD_SIZE = 256; // Entries rendered in one go by a pool thread
+    private static final int SHARDS_PER_THREAD = 2; // Rendered shards waiting to be written
+
+    private final int threads;
+
+    /**
+     * @param threads number of threads rendering entries, 1 renders on the calling thread
+     */
+    public ReportWriter(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Writes the header, then every entry.
+     *
+     * @param file     the report file, gets replaced
+     * @param header   written before the entries
+     * @param entries  the entries in the order they are written
+     * @param renderer appends an entry to the builder, has to be thread safe if threads > 1
+     */
+    public <T> void write(Path file, String header, Collection<T> entries, BiConsumer<T, StringBuilder> renderer)
+            throws IOException {
+
+        try (var out = open(file)) {
+            write(out, header, entries, renderer);
+        }
+    }
+
+    /**
+     * Same as above, but writes to the given writer, which is left open.
+     */
+    public <T> void write(Writer out, String header, Collection<T> entries, BiConsumer<T, StringBuilder> renderer)
+            throws IOException {
+
+        out.write(header);
+
+        if (threads == 1)
+            writeSequential(out, entries, renderer);
+        else
+            writeSharded(out, entries, renderer);
+
+        out.flush();
+    }
+
+    /**
+     * Opens a buffered UTF-8 writer on the file's channel, the file gets replaced.
+     */
+    public static Writer open(Path file) throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private <T> void writeSequential(Writer out, Collection<T> entries, BiConsumer<T, StringBuilder> renderer)
+            throws IOException {
+        var sb = new StringBuilder();
+        for (var entry : entries) {
+            sb.setLength(0);
+            renderer.accept(entry, sb);
+            out.append(sb);
+        }
+    }
+
+    private <T> void writeSharded(Writer out, Collection<T> entries, BiConsumer<T, StringBuilder> renderer)
+            throws IOException {
+
+        try (var pool = Executors.newFixedThreadPool(threads)) {
+            // Futures of the rendered shards, oldest first
+            var pending = new ArrayDeque<Future<StringBuilder>>();
+            var shard = new ArrayList<T>(SHARD_SIZE);
+
+            for (var entry : entries) {
+                shard.add(entry);
+                if (shard.size() < SHARD_SIZE)
+                    continue;
+
+                pending.add(pool.submit(render(shard, renderer)));
+                shard = new ArrayList<>(SHARD_SIZE);
+
+                // Wait for the oldest shard before rendering too far ahead
+                if (pending.size() >= threads * SHARDS_PER_THREAD)
+                    out.append(await(pending.removeFirst()));
+            }
+            if (!shard.isEmpty())
+                pending.add(pool.submit(render(shard, renderer)));
+
+            while (!pending.isEmpty())
+                out.append(await(pending.removeFirst()));
+        }
+    }
+
+    private static <T> Callable<StringBuilder> render(List<T> shard, BiConsumer<T, StringBuilder> renderer) {
+        return () -> {
+            var sb = new StringBuilder();
+            for (var entry : shard)
+                renderer.accept(entry, sb);
+            return sb;
+        };
+    }
+
+    private static StringBuilder await(Future<StringBuilder> shard) throws IOException {
+        try {
+            return shard.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering the report", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -3,15 +3,72 @@ package ifis;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import ifis.SPARQLGenerator.Query;
+import java.util.function.Supplier;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.ARQConstants;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpAsQuery;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpPath;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpUnion;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.expr.E_Exists;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.path.P_Alt;
+import org.apache.jena.sparql.path.P_Inverse;
+import org.apache.jena.sparql.path.P_Link;
+import org.apache.jena.sparql.path.P_ReverseLink;
+import org.apache.jena.sparql.path.P_Seq;
+import org.apache.jena.sparql.path.Path;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
 
 
 public class SPARQLGenerator {
 
+    // Bump whenever the generated queries change, so compiled ShapePlans of older versions aren't used anymore
+    public static final int VERSION = 4;
+
     private List<String> alphabet = Arrays.asList("abcdefghijklmnopqrstuvwyz".split(""));
 
-    public SPARQLGenerator() {
+    private final boolean optimize;
+    private final boolean expandPaths;
+    private final QueryTemplates templates;
+
+    /**
+     * @param optimize  whether the queries go through the QueryOptimizer before they get serialized
+     * @param templates serializes structurally identical queries once, null serializes every query
+     */
+    public SPARQLGenerator(boolean optimize, QueryTemplates templates) {
+        this(optimize, false, templates);
+    }
+
+    /**
+     * @param expandPaths write property paths as plain triples (see expand), for OBDA endpoints
+     */
+    public SPARQLGenerator(boolean optimize, boolean expandPaths, QueryTemplates templates) {
+        this.optimize = optimize;
+        this.expandPaths = expandPaths;
+        this.templates = templates;
     }
 
     private int variableIndex = 0;
@@ -55,186 +112,324 @@ public class SPARQLGenerator {
         return new Query(this);
     }
 
-    public static String wrap(String toWrap) {
-        return "<" + toWrap + ">";
+    /**
+     * EXISTS { pattern }
+     */
+    public Expr exists(List<TriplePath> pattern) {
+        return exists(pattern, new ExprList());
     }
 
-    public class Query {
-        private final List<String> triples;
-        private final List<String> parts;
-        private final List<String> outerParts;
-        private final List<String> filters;
-        private final List<String> havings;
-        private final List<String> pathVars;
-        private final List<String> optionalParts;
+    /**
+     * EXISTS { pattern FILTER(filters) }
+     */
+    public Expr exists(List<TriplePath> pattern, ExprList filters) {
+        Element element;
+        if (expandPaths) {
+            // Its own names for the expanded paths, the same ones outside would join with them
+            var counter = new int[1];
+            element = OpAsQuery.asQuery(pattern(pattern, () -> Var.alloc("inner" + counter[0]++)))
+                    .getQueryPattern();
+        } else {
+            var block = new ElementPathBlock();
+            pattern.forEach(block::addTriplePath);
+            element = block;
+        }
+
+        // Without the group it gets serialized without braces
+        var group = new ElementGroup();
+        group.addElement(element);
+        filters.forEach((filter) -> group.addElementFilter(new ElementFilter(filter)));
+        return new E_Exists(group);
+    }
+
+    /**
+     * The number of solutions of every pattern, in one query:
+     * SELECT ?pattern (COUNT(*) AS ?count) WHERE { { p0 BIND(0 AS ?pattern) } UNION ... } GROUP BY ?pattern
+     * Patterns without solutions have no row.
+     */
+    public String countSolutions(List<List<TriplePath>> patterns) {
+        var index = Var.alloc("pattern");
+        var counter = new int[1];
+        Supplier<Var> freshVar = () -> Var.alloc("path" + counter[0]++);
+
+        Op union = null;
+        for (int i = 0; i < patterns.size(); i++) {
+            var branch = OpExtend.create(
+                    expandPaths ? pattern(patterns.get(i), freshVar) : pattern(patterns.get(i)),
+                    index, NodeValue.makeInteger(i));
+            union = union == null ? branch : OpUnion.create(union, branch);
+        }
 
-        public void addOptionalPart(String part) {
-            optionalParts.add(part);
+        var count = new ExprAggregator(Var.alloc(ARQConstants.allocQueryVariables + 0),
+                AggregatorFactory.createCount(false));
+        Op op = OpGroup.create(union, new VarExprList(List.of(index)), List.of(count));
+        op = OpExtend.create(op, Var.alloc("count"), count.getAggVar());
+        op = new OpProject(op, List.of(index, Var.alloc("count")));
+
+        return QueryTemplates.serialize(op, optimize, templates);
+    }
+
+    /**
+     * A SELECT query, built as algebra and serialized in one go.
+     *
+     * The pattern is the triples, FILTERed and OPTIONALly joined with the optional triples. Around it go,
+     * if set, the grouping with its aggregates, the projected expressions, HAVING, the projection and
+     * DISTINCT. See QueryOptimizer for what happens to it before it gets serialized.
+     */
+    public class Query {
+        private final List<TriplePath> triples;
+        private final List<TriplePath> optionalTriples;
+        private final ExprList filters;
+        private final ExprList havings;
+        private final List<Var> pathVars;
+
+        private final List<Var> projection; // Empty projects everything
+        private final VarExprList projectedExprs;
+        private VarExprList groupBy = null;
+        private final List<ExprAggregator> aggregates;
+        private boolean distinct = true;
+
+        private final boolean optimize;
+        private final boolean expandPaths;
+        private final QueryTemplates templates;
+
+        public void addOptionalTriple(TriplePath triple) {
+            optionalTriples.add(triple);
         }
 
-        public List<String> getOptionalParts() {
-            return optionalParts;
+        public List<TriplePath> getOptionalTriples() {
+            return optionalTriples;
         }
 
-        public List<String> getPathVars() {
+        public List<Var> getPathVars() {
             return pathVars;
         }
 
-        public void pushPathVar(String var) {
+        public void pushPathVar(Var var) {
             pathVars.add(var);
         }
 
-        private String projection = "*";
-
-        public String getProjection() {
+        public List<Var> getProjection() {
             return projection;
         }
 
-        public void setProjection(String projection) {
-            this.projection = projection;
+        public Query project(Var var) {
+            projection.add(var);
+            return this;
         }
 
-        private String inmostVar;
+        public Query project(List<Var> vars) {
+            projection.addAll(vars);
+            return this;
+        }
 
-        public String getInmostVar() {
-            return inmostVar;
+        /**
+         * (expr AS ?var)
+         */
+        public Query project(Var var, Expr expr) {
+            projectedExprs.add(var, expr);
+            projection.add(var);
+            return this;
         }
 
-        public void setInmostVar(String inmostVar) {
-            this.inmostVar = inmostVar;
+        /**
+         * The aggregate gets computed per group, the returned expression stands for its value in projected
+         * expressions and HAVING.
+         */
+        public Expr aggregate(Aggregator aggregator) {
+            var aggregate = new ExprAggregator(Var.alloc(ARQConstants.allocQueryVariables + aggregates.size()),
+                    aggregator);
+            aggregates.add(aggregate);
+            return aggregate.getAggVar();
         }
 
-        public void addOuterPart(String outerPart) {
-            this.outerParts.add(outerPart);
+        public Query groupBy(List<Var> vars) {
+            groupBy = new VarExprList(vars);
+            return this;
         }
 
-        private final ArrayList<Query> subQueries;
+        public void setDistinct(boolean distinct) {
+            this.distinct = distinct;
+        }
+
+        private Var inmostVar;
+
+        public Var getInmostVar() {
+            return inmostVar;
+        }
+
+        public void setInmostVar(Var inmostVar) {
+            this.inmostVar = inmostVar;
+        }
 
         /**
          * @param sg SPARQLGenerator that gets assigned when getting a new Query from it
          */
         public Query(SPARQLGenerator sg) {
             triples = new ArrayList<>();
-            filters = new ArrayList<>();
-            parts = new ArrayList<>();
-            havings = new ArrayList<>();
-            outerParts = new ArrayList<>();
-            subQueries = new ArrayList<>();
+            optionalTriples = new ArrayList<>();
+            filters = new ExprList();
+            havings = new ExprList();
             pathVars = new ArrayList<>();
-            optionalParts = new ArrayList<>();
+            projection = new ArrayList<>();
+            projectedExprs = new VarExprList();
+            aggregates = new ArrayList<>();
+            optimize = sg.optimize;
+            expandPaths = sg.expandPaths;
+            templates = sg.templates;
         }
 
-        /* Parts are preformatted Strings that just get added into the query */
-        public void addPart(String part) {
-            parts.add(part);
+        public Query addTriple(Triple triple) {
+            triples.add(new TriplePath(triple));
+            return this;
         }
 
-        public Query addTriple(String sub, String pred, String object) {
-            triples.add(sub + " " + pred + " " + object);
+        public Query addTriple(Node sub, Path path, Node object) {
+            triples.add(triplePath(sub, path, object));
             return this;
         }
 
-        public Query addFilter(String filter) {
-            this.filters.add(filter);
+        public Query addFilter(Expr filter) {
+            filters.add(filter);
             return this;
         }
 
-        public Query addHaving(String having) {
+        // Multiple HAVING conditions all have to hold
+        public Query addHaving(Expr having) {
             havings.add(having);
             return this;
         }
 
-        public Query setProjection(List<String> vars) {
-            return this;
+        /**
+         * The query as algebra, not optimized yet.
+         */
+        public Op getOp() {
+            // Numbered from the start on every call, so the same query gets the same names
+            var counter = new int[1];
+            Supplier<Var> freshVar = () -> Var.alloc("path" + counter[0]++);
+
+            var op = expandPaths ? pattern(triples, freshVar) : pattern(triples);
+            if (!optionalTriples.isEmpty())
+                op = OpLeftJoin.create(op, expandPaths ? pattern(optionalTriples, freshVar) : pattern(optionalTriples),
+                        (ExprList) null);
+
+            // Filters of a group apply to all of it, OPTIONAL included
+            op = OpFilter.filterBy(filters, op);
+
+            if (groupBy != null || !aggregates.isEmpty())
+                op = OpGroup.create(op, groupBy == null ? new VarExprList() : groupBy, aggregates);
+            if (!projectedExprs.isEmpty())
+                op = OpExtend.create(op, projectedExprs);
+            op = OpFilter.filterBy(havings, op);
+
+            if (!projection.isEmpty())
+                op = new OpProject(op, projection);
+            if (distinct)
+                op = OpDistinct.create(op);
+
+            return op;
         }
 
         public String getSparqlString() {
-            // var sparql = "SELECT DISTINCT "+ vars +" WHERE {";
-            var sparql = STR."SELECT DISTINCT \{projection} WHERE {";
-
-            // Add triples
-            sparql += triples
-                    .stream()
-                    .reduce("", (acc, triple) -> acc + "\n\t" + triple + ".\n");
-
-            // Add preformatted 'parts'
-            sparql += parts
-                    .stream()
-                    .reduce("", (acc, part) -> acc + "\n\t" + part);
-
-            sparql += filters
-            .stream()
-            .map((filter) -> "\n\t\tFILTER(" + filter + ").")
-            .reduce("", (subQuery, acc) -> acc + "\n" + subQuery);
-    
-            /*
-             * // Add subqueries
-             * sparql += subQueries
-             * .stream()
-             * .map((subQuery) -> "\n{\n" + subQuery.getSparqlString() + "\n}")
-             * .reduce("", (subQuery, acc) -> acc + "\n" + subQuery);
-             */
-
-            if (optionalParts.size() > 0) {
-                sparql += "\n\tOPTIONAL {";
-            }
-
-            // Optional Parts
-            sparql += optionalParts
-                    .stream()
-                    .reduce("", (acc, part) -> acc + "\n\t\t" + part);
-
-            // add filter
-
-
-            if (optionalParts.size() > 0) {
-                sparql += "\n\t}";
-            }
-
-            sparql += "\n} ";
-
-            sparql += outerParts
-                    .stream()
-                    .reduce("", (acc, part) -> acc + "\n" + part);
-
-            return sparql;
+            return QueryTemplates.serialize(getOp(), optimize, templates);
         }
 
-        public void addSubQuery(Query query) {
-            this.subQueries.add(query);
-        }
-
-        public List<String> getTriples() {
+        public List<TriplePath> getTriples() {
             return triples;
         }
 
-        public List<String> getParts() {
-            return parts;
-        }
-
-        public List<String> getFilters() {
+        public ExprList getFilters() {
             return filters;
         }
 
-        public ArrayList<Query> getSubQueries() {
-            return subQueries;
+        public ExprList getHavings() {
+            return havings;
         }
 
-        public List<String> getOuterParts() {
-            return outerParts;
+        List<Var> getFocusVars() {
+            return pathVars.subList(0, pathVars.size() - 1);
         }
 
-        public List<String> getHavings() {
-            return havings;
+    }
+
+    /*
+     * ALGEBRA
+     */
+
+    // Plain predicates (and their inverse) are triples, everything else stays a path
+    public static TriplePath triplePath(Node sub, Path path, Node object) {
+        if (path instanceof P_Link link)
+            return new TriplePath(Triple.create(sub, link.getNode(), object));
+        if (path instanceof P_Inverse inverse && inverse.getSubPath() instanceof P_Link link)
+            return new TriplePath(Triple.create(object, link.getNode(), sub));
+        return new TriplePath(sub, path, object);
+    }
+
+    // The triples as one BGP, followed by the paths
+    private static Op pattern(List<TriplePath> triplePaths) {
+        var bgp = new BasicPattern();
+        var paths = new ArrayList<Op>();
+        for (var triplePath : triplePaths) {
+            if (triplePath.isTriple())
+                bgp.add(triplePath.asTriple());
+            else
+                paths.add(new OpPath(triplePath));
         }
 
-        String getFocusProjection() {
-            String focusProjection = "";
-            for (var v:getPathVars().subList(0, getPathVars().size()-1)){
-                focusProjection += "?" + v + " ";
+        Op op = new OpBGP(bgp);
+        for (var path : paths)
+            op = OpSequence.create(op, path);
+        return op;
+    }
+
+    // Same, with every path expanded
+    private static Op pattern(List<TriplePath> triplePaths, Supplier<Var> freshVar) {
+        Op op = new OpBGP(new BasicPattern());
+        for (var triplePath : triplePaths)
+            op = join(op, triplePath.isTriple()
+                    ? bgp(triplePath.asTriple())
+                    : expand(triplePath.getSubject(), triplePath.getPath(), triplePath.getObject(), freshVar));
+        return op;
+    }
+
+    /**
+     * The path as triples, for endpoints that rewrite plain triple patterns much better than property
+     * paths (Ontop unfolds every path into a union over all mappings). Sequences get a fresh variable
+     * between their steps, alternatives become UNION branches and inverses swap subject and object.
+     * Both are how SPARQL defines these paths, duplicates included, so the counts stay the same.
+     * Paths with * + ? and negated property sets have no such form and stay paths.
+     */
+    static Op expand(Node sub, Path path, Node object, Supplier<Var> freshVar) {
+        return switch (path) {
+            case P_Link link -> bgp(Triple.create(sub, link.getNode(), object));
+            case P_ReverseLink link -> bgp(Triple.create(object, link.getNode(), sub));
+            case P_Inverse inverse -> expand(object, inverse.getSubPath(), sub, freshVar);
+            case P_Seq seq -> {
+                var between = freshVar.get();
+                yield join(expand(sub, seq.getLeft(), between, freshVar),
+                        expand(between, seq.getRight(), object, freshVar));
             }
-            return focusProjection;
-        }
+            case P_Alt alt -> new OpUnion(expand(sub, alt.getLeft(), object, freshVar),
+                    expand(sub, alt.getRight(), object, freshVar));
+            default -> new OpPath(new TriplePath(sub, path, object));
+        };
+    }
 
+    private static Op bgp(Triple triple) {
+        var bgp = new BasicPattern();
+        bgp.add(triple);
+        return new OpBGP(bgp);
+    }
+
+    // Neighbouring triples stay in one BGP
+    private static Op join(Op left, Op right) {
+        if (left instanceof OpBGP leftBgp && right instanceof OpBGP rightBgp) {
+            var bgp = new BasicPattern(leftBgp.getPattern());
+            bgp.addAll(rightBgp.getPattern());
+            return new OpBGP(bgp);
+        }
+        if (left instanceof OpBGP leftBgp && leftBgp.getPattern().isEmpty())
+            return right;
+        return OpSequence.create(left, right);
     }
 }
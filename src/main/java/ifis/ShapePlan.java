@@ -0,0 +1,120 @@
+package ifis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import org.apache.jena.shacl.parser.Shape;
+
+/**
+ * Compiled plan of a shapes file, so a fixed shape library isn't compiled to SPARQL on every run.
+ *
+ * The plan is a file in the plan directory, named by the hash of the shapes file and the options that
+ * change the generated queries. It holds the final text of every query, keyed by shape and node id
+ * (see Validation.assignNodeIds), plus the signature of every shape's tree: node ids, kinds, paths and
+ * variables. A shape only uses its stored queries if the rebuilt tree has the same signature, otherwise
+ * they'd bind the wrong variables. Its queries are then generated and the plan gets rewritten.
+ *
+ * The first run records the plan and saves it, later runs with the same file and options load it.
+ */
+public class ShapePlan {
+
+    private final Path file;
+    private final Properties queries = new Properties(); // Synchronized, validations record concurrently
+    private volatile boolean changed = true;
+
+    private ShapePlan(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * The plan of a shapes file, loaded if there is one, empty otherwise.
+     */
+    public static ShapePlan of(Path directory, Path shapesFile, Options options) throws IOException {
+        String hash;
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Files.readAllBytes(shapesFile));
+            // Plans of older generators aren't used anymore
+            digest.update(("\n" + SPARQLGenerator.VERSION + " fuse=" + options.fuseQueries
+                    + " having=" + options.pushHaving + " junctors=" + options.junctorPlan
+                    + " optimize=" + options.optimizeQueries + " templates=" + options.queryTemplates
+                    + " dialect=" + options.queryDialect)
+                    .getBytes(StandardCharsets.UTF_8));
+            hash = HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var plan = new ShapePlan(directory.resolve(hash + ".plan"));
+        plan.load();
+        return plan;
+    }
+
+    private void load() {
+        if (!Files.exists(file))
+            return;
+
+        try (var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            queries.load(in);
+            changed = false;
+        } catch (IOException | RuntimeException e) {
+            // A broken plan is just a miss, it gets overwritten
+            System.err.println("Could not load plan " + file + ": " + e.getMessage());
+            queries.clear();
+        }
+    }
+
+    /**
+     * Compares the signature of a shape's tree with the one of the plan. If they differ, the stored
+     * queries of the shape are dropped.
+     */
+    public synchronized void checkTree(Shape shape, String signature) {
+        var prefix = shape.getShapeNode() + " ";
+        if (signature.equals(queries.getProperty(prefix + "tree")))
+            return;
+
+        queries.keySet().removeIf((key) -> ((String) key).startsWith(prefix));
+        queries.setProperty(prefix + "tree", signature);
+        changed = true;
+    }
+
+    /**
+     * The query of a node, from the plan if it is there, generated (and recorded) otherwise.
+     */
+    public String query(Shape shape, String nodeId, Supplier<String> generate) {
+        var key = shape.getShapeNode() + " " + nodeId;
+
+        var sparql = queries.getProperty(key);
+        if (sparql == null) {
+            sparql = generate.get();
+            queries.setProperty(key, sparql);
+            changed = true;
+        }
+        return sparql;
+    }
+
+    /**
+     * Writes the plan, if anything was added since it was loaded.
+     */
+    public void save() throws IOException {
+        if (!changed)
+            return;
+
+        Files.createDirectories(file.getParent());
+
+        // Written next to the target and moved, so a concurrent run never loads half a plan
+        var tmp = Files.createTempFile(file.getParent(), "plan", ".tmp");
+        try (var out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            queries.store(out, "Compiled shape plan, queries by shape and node id");
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -3,35 +3,41 @@ package ifis;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.NotImplementedException;
-import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.shacl.engine.Target;
+import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.vocabulary.RDF;
 
+import ifis.collection.IntIntMap;
+import ifis.collection.IntList;
+import ifis.collection.NodeDictionary;
 import ifis.logic.PShapeNode;
 import ifis.logic.SHACLNode;
 
 public final class Util {
 
-    public static String triple(String s, String p, String o) {
-        return s + " " + p + " " + o + " .";
-    }
-
-    public static String generateTargetString(Target target, String focusVar) {
+    public static Triple generateTarget(Target target, String focusVar) {
+        var focus = Var.alloc(focusVar);
+        var ignore = Var.alloc("ignore");
 
         return switch (target.getTargetType()) {
             case targetClass:
-                yield triple("?" + focusVar, "a", wrap(target.getObject().toString()));
+                yield Triple.create(focus, RDF.Nodes.type, target.getObject());
 
             case targetSubjectsOf:
-                yield triple("?" + focusVar, wrap(target.getObject().toString()), "?ignore");
+                yield Triple.create(focus, target.getObject(), ignore);
 
             case targetObjectsOf:
-                yield triple("?ignore", wrap(target.getObject().toString()), "?" + focusVar);
+                yield Triple.create(ignore, target.getObject(), focus);
 
             case implicitClass:
-                yield triple("?" + focusVar, "a", wrap(target.getObject().toString()));
+                yield Triple.create(focus, RDF.Nodes.type, target.getObject());
 
             case targetNode:
                 // TODO add targetNode target
@@ -44,8 +50,8 @@ public final class Util {
     }
 
     public static List<String> genVarHirarchy(SHACLNode node) {
-        List<String> varHirachyIM = node.getLineage()
-                .stream()
+        // The node itself and its ancestors, innermost first
+        List<String> varHirachyIM = Stream.concat(Stream.of(node), node.getLineage().stream())
                 .filter(ancestor -> ancestor instanceof PShapeNode)
                 .map(ancestor -> ancestor.getBindingVar())
                 .toList();
@@ -57,30 +63,18 @@ public final class Util {
         return varHirachy;
     }
 
-    public static String drawTreeNode(SHACLNode node, ValidationResult res, int indentlevel) {
-        var valid = res.getValidatingNodes().contains(node);
-        var s = indent(indentlevel, "┗━");
-        s += valid ? "✅━" : "❌━";
-        s += node.getReportString();
-        s += node.getChildren()
-                .stream()
-                .map((childNode) -> drawTreeNode(childNode, res, indentlevel + 1))
-                .reduce("", (acc, str) -> acc + "\n" + str);
-
-        return s;
-    }
-
     /**
-     * Just concatenates the triple into a sparql statement ended with a dot.
-     * TODO is it a statement?
-     * 
-     * @param sub
-     * @param pred
-     * @param obj
-     * @return
+     * Appends the tree below node, marking every node as valid or invalid for the result.
      */
-    public static String asTriple(String sub, String pred, String obj) {
-        return sub + " " + pred + " " + obj + ".";
+    public static void drawTreeNode(StringBuilder sb, SHACLNode node, ValidationResult res, int indentlevel) {
+        var valid = res.getValidatingNodes().contains(node);
+        indent(sb, indentlevel).append("┗━");
+        sb.append(valid ? "✅━" : "❌━");
+        sb.append(node.getReportString());
+        for (var childNode : node.getChildren()) {
+            sb.append('\n');
+            drawTreeNode(sb, childNode, res, indentlevel + 1);
+        }
     }
 
     /**
@@ -93,53 +87,93 @@ public final class Util {
         return "<" + toWrap + ">";
     }
 
-    // Lets hope this gets inlined by the compiler(s)
-    private static List<Node> getFocusFromBinding(Binding binding, SHACLNode node) {
+    private static List<String> getFocusVars(SHACLNode node) {
 
         // This is the inverted path of vars up to ?targets
         // The first element is the var which we aggregate through COUNT,
         // so we remove that.
         var vars = genVarHirarchy(node);
-        // This contains the value var (be it COUNTED or the actual nodes)
-        vars.removeFirst();
+        // This contains the value var (be it COUNTED or the actual nodes).
+        // Below a NodeShape the focus node is the value node itself.
+        if (node.getPShape() != null)
+            vars.removeFirst();
+
+        return vars;
+    }
 
-        var focus = new ArrayList<Node>();
-        for (var v : vars) {
-            focus.add(binding.get(v));
+    // Lets hope this gets inlined by the compiler(s)
+    private static int getFocusFromBinding(Binding binding, List<String> focusVars, NodeDictionary dictionary) {
+        var focus = NodeDictionary.EMPTY;
+        for (var v : focusVars) {
+            focus = dictionary.tuple(focus, dictionary.encode(binding.get(v)));
         }
         return focus;
     }
 
-    public static HashMap<List<Node>, Integer> getCountMap(SHACLNode node, List<Binding> bindings) {
+    /**
+     * Folds the rows of a COUNT query into the countMap one by one.
+     * Rows can be handed in as they come off the wire, so the result set itself
+     * never has to be held in memory.
+     * 
+     * @param node     the node the query was generated for
+     * @param countMap the map to fold into
+     * @return consumer for the rows
+     */
+    public static Consumer<Binding> countMapFolder(SHACLNode node, IntIntMap countMap) {
+        return countMapFolder(node, countMap, "count");
+    }
 
-        var countMap = new HashMap<List<Node>, Integer>();
+    /**
+     * Same as above, but reads the count from the given var
+     * (fused queries carry several counts per row).
+     */
+    public static Consumer<Binding> countMapFolder(SHACLNode node, IntIntMap countMap, String countVar) {
+        // The vars are the same for every row
+        var focusVars = getFocusVars(node);
+        var dictionary = node.getDictionary();
+
+        return (binding) -> countMap.put(
+                getFocusFromBinding(binding, focusVars, dictionary),
+                ((Number) binding.get(countVar).getLiteralValue()).intValue());
+    }
+
+    /**
+     * Hands the focus of every row to the consumer, for queries that only project
+     * the focus vars of the node.
+     */
+    public static Consumer<Binding> focusFolder(SHACLNode node, IntConsumer consumer) {
+        var focusVars = getFocusVars(node);
+        var dictionary = node.getDictionary();
+
+        return (binding) -> consumer.accept(getFocusFromBinding(binding, focusVars, dictionary));
+    }
+
+    /**
+     * Folds the rows of a NODES query into the nodesMap one by one,
+     * see countMapFolder.
+     */
+    public static Consumer<Binding> nodesMapFolder(SHACLNode node, HashMap<Integer, IntList> nodesMap) {
+        var focusVars = getFocusVars(node);
+        var valueVar = node.getBindingVar();
+        var dictionary = node.getDictionary();
+
+        return (binding) -> nodesMap
+                .computeIfAbsent(getFocusFromBinding(binding, focusVars, dictionary), (focus) -> new IntList())
+                .add(dictionary.encode(binding.get(valueVar)));
+    }
+
+    public static IntIntMap getCountMap(SHACLNode node, List<Binding> bindings) {
 
-        for (Binding binding : bindings)
-            countMap.put(
-                    getFocusFromBinding(binding, node),
-                    (Integer) binding.get("count").getLiteralValue());
+        var countMap = new IntIntMap();
+        bindings.forEach(countMapFolder(node, countMap));
 
         return countMap;
     }
 
-    public static HashMap<List<Node>, List<Node>> getNodesMap(SHACLNode node, List<Binding> bindings) {
+    public static HashMap<Integer, IntList> getNodesMap(SHACLNode node, List<Binding> bindings) {
         
-        // New empty map
-        var nodesMap = new HashMap<List<Node>, List<Node>>();
-
-        for (var b : bindings) {
-            var focus = getFocusFromBinding(b, node);
-            var value = b.get(node.getBindingVar());
-            boolean isPresent = nodesMap.keySet().contains(focus);
-            
-            if (isPresent) {
-                nodesMap.get(focus).add(value);
-            } else {
-                var list = new ArrayList<Node>();
-                list.add(value);
-                nodesMap.put(focus, list);                
-            }
-        }
+        var nodesMap = new HashMap<Integer, IntList>();
+        bindings.forEach(nodesMapFolder(node, nodesMap));
 
         return nodesMap;
     }
@@ -178,10 +212,19 @@ public final class Util {
      * @return intendation as a string
      */
     public static String indent(int level, String toIndent) {
-        var s = " ";
+        return indent(new StringBuilder(), level).append(toIndent).toString();
+    }
+
+    /**
+     * Appends level-amount tabs
+     * 
+     * @return the builder
+     */
+    public static StringBuilder indent(StringBuilder sb, int level) {
+        sb.append(' ');
         for (int i = 0; i < level; i++) {
-            s += "   ";
+            sb.append("   ");
         }
-        return s + toIndent;
+        return sb;
     }
 }
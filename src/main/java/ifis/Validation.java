@@ -3,18 +3,24 @@ package ifis;
 import static java.lang.StringTemplate.STR;
 import static org.fusesource.jansi.Ansi.ansi;
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import org.apache.jena.ext.com.google.common.collect.Multimap;
 import org.apache.jena.graph.Node;
-import org.apache.jena.shacl.engine.Parameter;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.shacl.engine.constraint.ClassConstraint;
 import org.apache.jena.shacl.engine.constraint.ConstraintComponentSPARQL;
 import org.apache.jena.shacl.engine.constraint.ConstraintOp;
@@ -31,7 +37,6 @@ import org.apache.jena.shacl.engine.constraint.ShNode;
 import org.apache.jena.shacl.engine.constraint.ShNot;
 import org.apache.jena.shacl.engine.constraint.ShOr;
 import org.apache.jena.shacl.engine.constraint.ShXone;
-import org.apache.jena.shacl.engine.constraint.SparqlComponent;
 import org.apache.jena.shacl.engine.constraint.StrMaxLengthConstraint;
 import org.apache.jena.shacl.engine.constraint.StrMinLengthConstraint;
 import org.apache.jena.shacl.engine.constraint.ValueMaxExclusiveConstraint;
@@ -42,15 +47,48 @@ import org.apache.jena.shacl.parser.Constraint;
 import org.apache.jena.shacl.parser.NodeShape;
 import org.apache.jena.shacl.parser.PropertyShape;
 import org.apache.jena.shacl.parser.Shape;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.exec.http.QueryExecHTTPBuilder;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.E_Add;
+import org.apache.jena.sparql.expr.E_Bound;
+import org.apache.jena.sparql.expr.E_Coalesce;
+import org.apache.jena.sparql.expr.E_Conditional;
+import org.apache.jena.sparql.expr.E_Datatype;
+import org.apache.jena.sparql.expr.E_Equals;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_GreaterThanOrEqual;
+import org.apache.jena.sparql.expr.E_LessThan;
+import org.apache.jena.sparql.expr.E_LessThanOrEqual;
+import org.apache.jena.sparql.expr.E_LogicalAnd;
+import org.apache.jena.sparql.expr.E_LogicalNot;
+import org.apache.jena.sparql.expr.E_LogicalOr;
+import org.apache.jena.sparql.expr.E_OneOf;
+import org.apache.jena.sparql.expr.E_Regex;
+import org.apache.jena.sparql.expr.E_SameTerm;
+import org.apache.jena.sparql.expr.E_StrLength;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
 import org.apache.jena.sparql.path.P_Alt;
 import org.apache.jena.sparql.path.P_Inverse;
 import org.apache.jena.sparql.path.P_Link;
 import org.apache.jena.sparql.path.P_Seq;
 import org.apache.jena.sparql.path.Path;
+import org.apache.jena.sparql.path.PathParser;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+import org.apache.jena.vocabulary.RDF;
 
 import ifis.SPARQLGenerator.Query;
+import ifis.collection.IntIntMap;
+import ifis.collection.IntList;
+import ifis.collection.NodeDictionary;
+import ifis.endpoint.Endpoint;
 import ifis.exception.InternalValidationException;
 import ifis.exception.ValidationException;
 import ifis.logic.AndNode;
@@ -68,13 +106,43 @@ public class Validation {
     private final Shape shape; // Input
     private final List<String> report; // Output in String
     private final SPARQLGenerator sparqlGenerator; // Takes care of Variables
-    private final QueryExecHTTPBuilder endpoint; // The SPARQL is queried against this
+    private final Endpoint endpoint; // The SPARQL is queried against this
+    private final DataflowScheduler scheduler; // Runs the queries concurrently and constructs the tree
+    private final QueryCache cache; // Results of earlier queries against the endpoint
+    private final Options options;
     private SHACLNode tree; // From the input we generate a tree of SHACLNodes
     private Set<ValidationResult> results;
     private boolean isEvaluated = false;
+    private final Set<ConstraintNode> fusedLeaves = new HashSet<>(); // Counted by the query of their PShapeNode
+    private final Set<SHACLNode> pushedJunctors = new HashSet<>(); // Evaluated by the endpoint, subtree and all
+    private final Map<SHACLNode, String> junctorPlans = new HashMap<>(); // Shown in the tree printout
+    private final NodeDictionary dictionary = new NodeDictionary(); // Ids of all terms and focus nodes we received
+    private ValidationListener listener = new ValidationListener() {
+    }; // Gets told about the progress, e.g. to stream a report
+    private ShapePlan plan; // Compiled queries of earlier runs, null generates them every time
 
     private int indentlevel = 0; // Indentation Level used for prettier printing
 
+    private static final int IN_CHUNK_SIZE = 500; // Max number of terms in one IN (...) list
+    private static final int MAX_DISTINCT = 3; // Most distinct values a pushed cardinality check looks for
+    private static final int QUERY_COST = 1000; // A round trip to the endpoint, in rows transferred
+
+    public Set<ValidationResult> getResults() {
+        return results;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public void setListener(ValidationListener listener) {
+        this.listener = listener;
+    }
+
+    public void setPlan(ShapePlan plan) {
+        this.plan = plan;
+    }
+
     public boolean isEvaluated() {
         return isEvaluated;
     }
@@ -86,13 +154,29 @@ public class Validation {
     /**
      * @param shapes
      */
-    public Validation(Shape shape, QueryExecHTTPBuilder endpoint) {
+    public Validation(Shape shape, Endpoint endpoint) {
+        this(shape, endpoint, new DataflowScheduler(new Options().maxConcurrentQueries),
+                QueryCache.disabled(), new Options());
+    }
+
+    public Validation(Shape shape, Endpoint endpoint, DataflowScheduler scheduler, QueryCache cache,
+            Options options) {
+
+        // The scheduler is shared by everything on the endpoint, a different limit here would be ignored
+        if (scheduler.getMaxConcurrentQueries() != options.maxConcurrentQueries)
+            throw new IllegalArgumentException("The endpoint's scheduler allows "
+                    + scheduler.getMaxConcurrentQueries() + " queries in flight, the options ask for "
+                    + options.maxConcurrentQueries);
 
         this.shape = shape;
         this.report = new ArrayList<String>();
         this.endpoint = endpoint;
+        this.scheduler = scheduler;
+        this.cache = cache;
+        this.options = options;
 
-        sparqlGenerator = new SPARQLGenerator();
+        sparqlGenerator = new SPARQLGenerator(options.optimizeQueries, isObdaDialect(),
+                options.queryTemplates ? QueryTemplates.SHARED : null);
 
     }
 
@@ -130,36 +214,30 @@ public class Validation {
         print("Building logic tree.");
         indentlevel++;
         buildTree();
+        planJunctors(tree);
         indentlevel--;
         print("Done.");
         printTree(tree);
+        listener.treeBuilt(shape, tree);
 
         /*
-         * POPULATE
+         * POPULATE AND CONSTRUCT BINDINGS IN TREE
          */
-        print("Populating tree.");
+        print("Populating tree and constructing valid bindings.");
         indentlevel++;
         populateTree();
         indentlevel--;
-        print("Nodes populated.");
-
-        /*
-         * CONSTRUCT BINDINGS IN TREE
-         */
-
-        print("Constructing valid bindings in tree.");
-        indentlevel++;
-        tree.construct();
-        indentlevel--;
         print("Finished constructing.");
 
         print("Finished eval. Writing Report (this may take some time)");
         results = validate();
+        listener.finished(shape, tree, results);
 
     }
 
     private void printTree(SHACLNode node) {
-        print(node.getReportString());
+        var plan = junctorPlans.get(node);
+        print(plan == null ? node.getReportString() : node.getReportString() + "  [" + plan + "]");
         indentlevel++;
         for (var child : node.getChildren())
             printTree(child);
@@ -191,6 +269,35 @@ public class Validation {
          */
         // Right now, this seems to be the most elegant way of doing this.
         insertEmptyConstraintNodes(tree);
+
+        // Every node works on the ids of this validation's dictionary
+        tree.setDictionary(dictionary);
+        assignNodeIds(tree, "0");
+
+        // Stored queries only fit a tree with the same nodes and variables
+        if (plan != null) {
+            var signature = new StringBuilder();
+            appendSignature(signature, tree);
+            plan.checkTree(shape, signature.toString());
+        }
+    }
+
+    private void appendSignature(StringBuilder sb, SHACLNode node) {
+        sb.append(node.getNodeId()).append(' ').append(node.getClass().getSimpleName());
+        if (node instanceof PShapeNode pnode)
+            sb.append(' ').append(pnode.getPath()).append(" ?").append(pnode.getBindingVar());
+        sb.append(' ').append(node.getMode()).append(';');
+
+        for (var child : node.getChildren())
+            appendSignature(sb, child);
+    }
+
+    // Ids are the positions in the tree, so they don't change between runs
+    private void assignNodeIds(SHACLNode node, String id) {
+        node.setNodeId(id);
+        var children = node.getChildren();
+        for (int i = 0; i < children.size(); i++)
+            assignNodeIds(children.get(i), id + "." + i);
     }
 
     private void insertEmptyConstraintNodes(SHACLNode node) {
@@ -264,46 +371,6 @@ public class Validation {
                     cnode.max = mc;
                 }
 
-                /*
-                 * case ConstraintComponentSPARQL custom -> {
-                 * var eqnode = new EqualNode(shape);
-                 * getParams(custom, eqnode);
-                 * 
-                 * var c1 = new ConstraintNode(shape);
-                 * var p1 = new PShapeNode(new
-                 * StringPath("<urn:absolute/prototyp#hat_Parameter>"),
-                 * sparqlGenerator.getNewVariable());
-                 * var p11 = new PShapeNode(new StringPath("<urn:absolute/prototyp#hat_Wert>"),
-                 * sparqlGenerator.getNewVariable());
-                 * 
-                 * p1.classc = Util.wrap(eqnode.param1.getURI());
-                 * c1.retain = true;
-                 * 
-                 * 
-                 * p1.addChild(p11);
-                 * p11.addChild(c1);
-                 * eqnode.addChild(p1);
-                 * 
-                 * var c2 = new ConstraintNode(shape);
-                 * var p2 = new PShapeNode(new
-                 * StringPath("<urn:absolute/prototyp#hat_Parameter>"),
-                 * sparqlGenerator.getNewVariable());
-                 * var p22 = new PShapeNode(new StringPath("<urn:absolute/prototyp#hat_Wert>"),
-                 * sparqlGenerator.getNewVariable());
-                 * 
-                 * 
-                 * p2.classc = Util.wrap(eqnode.param2.getURI());
-                 * c2.retain = true;
-                 * 
-                 * 
-                 * p2.addChild(p22);
-                 * p22.addChild(c2);
-                 * eqnode.addChild(p2);
-                 * 
-                 * pnode.addChild(eqnode);
-                 * }
-                 */
-
                 /*
                  * Add direct constraints to a child ConstraintNode
                  */
@@ -349,47 +416,6 @@ public class Validation {
                     /*
                      * Add direct constraints to a child ConstraintNode
                      */
-                    /*
-                     * case ConstraintComponentSPARQL custom -> {
-                     * var eqnode = new EqualNode(shape);
-                     * getParams(custom, eqnode);
-                     * 
-                     * var c1 = new ConstraintNode(shape);
-                     * var p1 = new PShapeNode(new
-                     * StringPath("<urn:absolute/prototyp#hat_Parameter>"),
-                     * sparqlGenerator.getNewVariable());
-                     * var p11 = new PShapeNode(new StringPath("<urn:absolute/prototyp#hat_Wert>"),
-                     * sparqlGenerator.getNewVariable());
-                     * 
-                     * p1.classc = Util.wrap(eqnode.param1.getURI());
-                     * c1.retain = true;
-                     * 
-                     * 
-                     * p1.addChild(p11);
-                     * p11.addChild(c1);
-                     * eqnode.addChild(p1);
-                     * 
-                     * var c2 = new ConstraintNode(shape);
-                     * var p2 = new PShapeNode(new
-                     * StringPath("<urn:absolute/prototyp#hat_Parameter>"),
-                     * sparqlGenerator.getNewVariable());
-                     * var p22 = new PShapeNode(new StringPath("<urn:absolute/prototyp#hat_Wert>"),
-                     * sparqlGenerator.getNewVariable());
-                     * 
-                     * 
-                     * p2.classc = Util.wrap(eqnode.param2.getURI());
-                     * c2.retain = true;
-                     * 
-                     * 
-                     * p2.addChild(p22);
-                     * p22.addChild(c2);
-                     * eqnode.addChild(p2);
-                     * 
-                     * 
-                     * cnode.addChild(eqnode);
-                     * 
-                     * }
-                     */
 
                     default -> {
                         cnode.addConstraint(comp);
@@ -452,68 +478,70 @@ public class Validation {
     private void populateTree() {
 
         // If the root shape is not a PropertyShape, we need to populate the targets
-        // first.
-        if (!(tree instanceof PShapeNode))
-            tree.setTargetNodes(getTargetsByQuery());
-
-        // Recursively populate nodes
-        populateNode(tree);
+        // as well. When only violations are queried, they are needed in any case.
+        Runnable fetchTargets = (tree instanceof PShapeNode && !options.pushHaving)
+                ? null
+                : () -> tree.setTargetNodes(getTargetsByQuery());
+
+        // The scheduler runs the queries of all nodes concurrently and constructs
+        // every node as soon as its inputs are there
+        scheduler.run(tree, this::preparePopulation, fetchTargets);
     }
 
-    private void populateNode(SHACLNode node) {
-
-        switch (node) {
-            case PShapeNode pnode -> populatePShape(pnode);
-            case ConstraintNode cnode -> populateLeaf(cnode);
-            default -> {
-            }
-        }
-
-        // Recurse for all child nodes.
-        for (var childNode : node.getChildren()) {
-            populateNode(childNode);
-        }
+    /**
+     * Generates the query of a node.
+     * 
+     * @return the task that executes the query and writes the result back into the
+     *         node, null if the node isn't populated by a query
+     */
+    private Runnable preparePopulation(SHACLNode node) {
+        return switch (node) {
+            case SHACLNode junctor when pushedJunctors.contains(junctor) -> prepareJunctor(junctor);
+            // Already evaluated by the query of the junctor above
+            case SHACLNode pushed when pushed.isPopulated() -> null;
+            case PShapeNode pnode -> preparePShape(pnode);
+            // Already counted by the query of its PShapeNode
+            case ConstraintNode cnode when fusedLeaves.contains(cnode) -> null;
+            case ConstraintNode cnode -> prepareLeaf(cnode);
+            default -> null;
+        };
     }
 
     /*
      * QUERY GENERATION
      */
 
-    private void populateLeaf(ConstraintNode node) {
+    private Runnable prepareLeaf(ConstraintNode node) {
 
         var mode = node.getMode();
 
-        print("VALID QUERY");
         if (mode == Mode.COUNTS) {
             // A query counting the number of valid nodes per focus node gets written
-            var query = generateValidQueryCOUNTS(node);
+            var query = sparql(node.getNodeId(), () -> generateValidQueryCOUNTS(node));
 
-            // The query gets executed via SPARQL, resulting in bindings
-            var bindings = executeQuery(query);
+            return () -> {
+                // The query gets executed via SPARQL, the resulting bindings get folded
+                // into an IntIntMap (focus id -> count) as they arrive
+                var countMap = new IntIntMap();
+                executeQuery(query, Util.countMapFolder(node, countMap));
 
-            // The Bindings repr gets converted into a HashMap<List<Nodes>, Integer>>
-            var bench = Util.startBenchmark("Transforming bindings to map");
-            var countMap = Util.getCountMap(node, bindings);
-            print(bench.stop());
-
-            // Writeback countMap into ConstraintNode for later use
-            node.setCountMap(countMap);
+                // Writeback countMap into ConstraintNode for later use
+                node.setCountMap(countMap);
+            };
 
         } else {
             // A query counting the number of valid nodes per focus node gets written
-            var query = generateValidQueryNODES(node);
-
-            // The query gets executed via SPARQL, resulting in bindings
-            var bindings = executeQuery(query);
+            var query = sparql(node.getNodeId(), () -> generateValidQueryNODES(node));
 
-            // The Bindings repr gets converted into a HashMap<List<Nodes>, List<Node>>>
-            // (Map<Focus, List<ValidValues>>)
-            var bench = Util.startBenchmark("Transforming bindings to Node Map");
-            var nodeMap = Util.getNodesMap(node, bindings);
-            print(bench.stop());
+            return () -> {
+                // The query gets executed via SPARQL, the resulting bindings get folded
+                // into a HashMap<Integer, IntList> (Map<Focus, List<ValidValues>>)
+                var nodeMap = new HashMap<Integer, IntList>();
+                executeQuery(query, Util.nodesMapFolder(node, nodeMap));
 
-            // Writeback countMap into ConstraintNode for later use
-            node.setNodeMap(nodeMap);
+                // Writeback countMap into ConstraintNode for later use
+                node.setNodeMap(nodeMap);
+            };
 
         }
 
@@ -532,16 +560,14 @@ public class Validation {
         for (var c : node.getConstraints())
             addSPARQLForConstraint(c, node, query);
 
-        // Create a String of all path Vars except the last one
-        var focusProjection = query.getFocusProjection();
-
-        // Set projection with COUNT in value var
-        query.setProjection(
-                STR."\{focusProjection} (COUNT(?\{query.getInmostVar()}) AS ?count)");
+        // All path Vars except the last one, below a NodeShape the focus node counts itself
+        var focusVars = node.getPShape() != null ? query.getFocusVars() : List.of(query.getInmostVar());
 
-        // Add GROUP BY focusprojection
-                        query.addOuterPart(
-                                STR."GROUP BY \{focusProjection}");
+        // Set projection with COUNT in value var, grouped by the focus
+        query.project(focusVars);
+        query.project(Var.alloc("count"),
+                query.aggregate(AggregatorFactory.createCountExpr(false, new ExprVar(query.getInmostVar()))));
+        query.groupBy(focusVars);
 
         return query;
     }
@@ -559,29 +585,170 @@ public class Validation {
         for (var c : node.getConstraints())
             addSPARQLForConstraint(c, node, query);
 
-        // Create a String of all path Vars except the last one
-        var focusProjection = query.getFocusProjection();
+        // The valid value nodes of every focus, so nothing to group
+        query.project(query.getFocusVars());
+        query.project(query.getInmostVar());
 
-        // Set projection with COUNT in value var
-        query.setProjection(
-                STR."\{focusProjection} ?\{query.getInmostVar()}");
+        return query;
+    }
+
+    private Runnable preparePShape(PShapeNode node) {
+
+        if (options.fuseQueries)
+            return prepareFusedPShape(node);
 
-        // Add GROUP BY focusprojection
-                        query.addOuterPart(
-                                STR."GROUP BY \{focusProjection}");
+        var query = sparql(node.getNodeId(), () -> generateCountQuery(node));
+        var focusQuery = isObdaDialect() ? sparql(node.getNodeId() + "/focus", () -> generateFocusQuery(node)) : null;
+
+        return () -> {
+            var countMap = new IntIntMap();
+            executeQuery(query, Util.countMapFolder(node, countMap));
+            if (focusQuery != null)
+                addZeroCounts(focusQuery, node, List.of(countMap));
+
+            node.setCountMap(countMap);
+        };
+
+    }
+
+    /*
+     * QUERY FUSION
+     * The count query of a PShapeNode and the valid queries of its direct
+     * ConstraintNodes share the whole pattern, they only differ in which value
+     * nodes get counted. So they get fused into one query with a conditional count
+     * per ConstraintNode:
+     * SELECT ?targets (COUNT(?a) AS ?count) (SUM(IF(<constraints on ?a>, 1, 0)) AS ?count0) ...
+     * The counts are then scattered back into the countMaps of the nodes.
+     */
+
+    private Runnable prepareFusedPShape(PShapeNode node) {
+
+        // Only ConstraintNodes in COUNTS mode work with an aggregate
+        var leaves = new ArrayList<ConstraintNode>();
+        for (var child : node.getChildren()) {
+            if (child instanceof ConstraintNode cnode && cnode.getMode() == Mode.COUNTS)
+                leaves.add(cnode);
+        }
+
+        // Top level PShapes with nothing but ConstraintNodes below them can leave the checks
+        // to the endpoint, which then only returns violating focus nodes
+        // In the OBDA dialect focus nodes without values aren't in the results either, which only
+        // works out if having no values is valid
+        var violationsOnly = options.pushHaving
+                && leaves.size() == node.getChildren().size()
+                && (node.getParent() == null || node.getParent().getPShape() == null)
+                && !(isObdaDialect() && leaves.stream().anyMatch(
+                        (leaf) -> leaf.requiresValue() || (leaf.min != null && leaf.min.getMinCount() > 0)));
+        node.setViolationsOnly(violationsOnly);
+
+        var query = sparql(node.getNodeId(), () -> generateFusedCountQuery(node, leaves, violationsOnly));
+        var focusQuery = isObdaDialect() && !violationsOnly
+                ? sparql(node.getNodeId() + "/focus", () -> generateFocusQuery(node))
+                : null;
+
+        // Their own queries are skipped from now on
+        fusedLeaves.addAll(leaves);
+
+        return () -> {
+            var countMap = new IntIntMap();
+            var folder = Util.countMapFolder(node, countMap);
+
+            var leafMaps = new ArrayList<IntIntMap>();
+            for (int i = 0; i < leaves.size(); i++) {
+                var leafMap = new IntIntMap();
+                leafMaps.add(leafMap);
+                folder = folder.andThen(Util.countMapFolder(leaves.get(i), leafMap, "count" + i));
+            }
+
+            executeQuery(query, folder);
+            if (focusQuery != null) {
+                var countMaps = new ArrayList<IntIntMap>(leafMaps);
+                countMaps.addFirst(countMap);
+                addZeroCounts(focusQuery, node, countMaps);
+            }
+
+            node.setCountMap(countMap);
+            for (int i = 0; i < leaves.size(); i++)
+                leaves.get(i).setCountMap(leafMaps.get(i));
+        };
+    }
+
+    private Query generateFusedCountQuery(PShapeNode node, List<ConstraintNode> leaves, boolean violationsOnly) {
+
+        // Same pattern as the count query, value nodes wrapped in OPTIONAL
+        var query = sparqlGenerator.newQuery();
+        addQueryPath(node, query, !isObdaDialect());
+
+        var focusVars = query.getFocusVars();
+        var valueVar = new ExprVar(query.getInmostVar());
+
+        query.project(focusVars);
+        query.groupBy(focusVars);
+
+        var count = query.aggregate(AggregatorFactory.createCountExpr(false, valueVar));
+        query.project(Var.alloc("count"), count);
+        Expr violations = null;
+
+        for (int i = 0; i < leaves.size(); i++) {
+            var leaf = leaves.get(i);
+            var condition = generateCondition(leaf);
+
+            // Without constraints every value node counts
+            var aggregate = condition == null
+                    ? count
+                    : query.aggregate(AggregatorFactory.createSum(false, new E_Coalesce(new ExprList(List.of(
+                            new E_Conditional(new E_LogicalAnd(new E_Bound(valueVar), condition),
+                                    NodeValue.makeInteger(1), NodeValue.makeInteger(0)),
+                            NodeValue.makeInteger(0))))));
+
+            query.project(Var.alloc("count" + i), aggregate);
+
+            // Same check as ConstraintNode.constructFromChildren: all values valid and count in range
+            Expr valid = new E_Equals(count, aggregate);
+            if (leaf.requiresValue())
+                valid = new E_LogicalAnd(valid, new E_GreaterThanOrEqual(count, NodeValue.makeInteger(1)));
+            if (leaf.min != null)
+                valid = new E_LogicalAnd(valid,
+                        new E_GreaterThanOrEqual(count, NodeValue.makeInteger(leaf.min.getMinCount())));
+            if (leaf.max != null)
+                valid = new E_LogicalAnd(valid,
+                        new E_LessThanOrEqual(count, NodeValue.makeInteger(leaf.max.getMaxCount())));
+            violations = or(violations, new E_LogicalNot(valid));
+        }
+
+        if (violationsOnly && violations != null)
+            query.addHaving(violations);
 
         return query;
     }
 
-    private void populatePShape(PShapeNode node) {
+    /**
+     * Turns the constraints of a ConstraintNode into a single boolean expression
+     * on its value node, null if there is nothing to check.
+     */
+    private Expr generateCondition(ConstraintNode node) {
+
+        // Let the usual generation write into a scratch query
+        var scratch = sparqlGenerator.newQuery();
+        for (var c : node.getConstraints())
+            addSPARQLForConstraint(c, node, scratch);
+
+        Expr condition = null;
 
-        var query = generateCountQuery(node);
-        print("PROPERTY QUERY");
-        var bindings = executeQuery(query);
-        var countMap = Util.getCountMap(node, bindings);
+        for (var filter : scratch.getFilters())
+            condition = condition == null ? filter : new E_LogicalAnd(condition, filter);
 
-        node.setCountMap(countMap);
+        // Patterns (e.g. from sh:class) have to match for the value node
+        if (!scratch.getTriples().isEmpty()) {
+            var exists = sparqlGenerator.exists(scratch.getTriples());
+            condition = condition == null ? exists : new E_LogicalAnd(condition, exists);
+        }
+
+        return condition;
+    }
 
+    private static Expr or(Expr left, Expr right) {
+        return left == null ? right : new E_LogicalOr(left, right);
     }
 
     private Query generateCountQuery(PShapeNode node) {
@@ -591,29 +758,329 @@ public class Validation {
 
         // Write the path of vars from ?targets to this leaf node (focus)
         // with the value node being wrapped in OPTIONAL
+        addQueryPath(node, query, !isObdaDialect());
+
+        var focusVars = query.getFocusVars();
+
+        query.project(focusVars);
+        query.project(Var.alloc("count"),
+                query.aggregate(AggregatorFactory.createCountExpr(false, new ExprVar(query.getInmostVar()))));
+        query.groupBy(focusVars);
+
+        return query;
+
+    }
+
+    /*
+     * OBDA DIALECT
+     * Endpoints rewriting SPARQL into SQL turn OPTIONAL into outer joins over
+     * every mapping of the path, so the count queries of PShapeNodes only join the
+     * value nodes there. Focus nodes without any are then missing from the
+     * results, a second query lists all focus nodes and those get their count of
+     * 0 client-side. Same countMaps as with the OPTIONAL.
+     */
+
+    private boolean isObdaDialect() {
+        return options.queryDialect.equals("obda");
+    }
+
+    private Query generateFocusQuery(PShapeNode node) {
+
+        // The pattern of the count query without the value nodes
+        var query = sparqlGenerator.newQuery();
         addQueryPath(node, query, true);
+        query.getOptionalTriples().clear();
+
+        query.project(query.getFocusVars());
+
+        return query;
+    }
+
+    // The left join of the focus nodes with the counts
+    private void addZeroCounts(String focusQuery, PShapeNode node, List<IntIntMap> countMaps) {
+        var counted = countMaps.getFirst();
+        executeQuery(focusQuery, Util.focusFolder(node, (focus) -> {
+            if (!counted.containsKey(focus))
+                countMaps.forEach((countMap) -> countMap.put(focus, 0));
+        }));
+    }
+
+    /*
+     * JUNCTOR PUSHDOWN
+     * A junctor on root level with nothing but junctors and simple PShapes below it (a plain predicate,
+     * ConstraintNodes in COUNTS mode, small cardinalities) can be evaluated by the endpoint as a whole.
+     * Every node of the subtree becomes a boolean column of one query, with a row per target:
+     * SELECT ?targets (<check of leaf 0> AS ?valid0) ... (?valid0 && !?valid3 AS ?valid4) WHERE { <targets> }
+     * A leaf checks that NOT EXISTS an invalid value and, for the cardinalities, whether there EXIST n
+     * distinct values. The inner nodes get their columns too, the report shows every one of them.
+     * That replaces a count query per PShape, whether it is cheaper is estimated per subtree.
+     */
 
-        var focusProjection = query.getFocusProjection();
+    private void planJunctors(SHACLNode node) {
+        if (options.junctorPlan.equals("client"))
+            return;
 
-        query.setProjection(STR."\{focusProjection} (COUNT(?\{query.getInmostVar()}) AS ?count)");
-                query.addOuterPart(STR."GROUP BY \{focusProjection}");
+        if (isJunctor(node) && isPushable(node)) {
+            junctorPlans.put(node, planJunctor(node));
+
+            if (pushedJunctors.contains(node)) {
+                markPopulated(node);
+                return;
+            }
+        }
+
+        // Smaller subtrees further down might still be worth it
+        for (var child : node.getChildren())
+            planJunctors(child);
+    }
+
+    /**
+     * Decides whether the endpoint evaluates the subtree, returns the note for the tree printout.
+     */
+    private String planJunctor(SHACLNode node) {
+        var pshapes = new ArrayList<PShapeNode>();
+        collectPShapes(node, pshapes);
+
+        if (options.junctorPlan.equals("sparql")) {
+            pushedJunctors.add(node);
+            return "SPARQL";
+        }
+
+        // Estimating and the pushed query take two round trips already
+        if (pshapes.size() < 3)
+            return "client-side, " + pshapes.size() + " queries";
+
+        var estimates = estimateJunctor(node, pshapes);
+        var targets = Math.max(1, estimates[0]);
+
+        // Client-side: the endpoint joins the values, every PShape transfers a row per target.
+        // Pushed: a row per target, each check of a leaf runs over the values of its PShape, looking for n
+        // distinct ones joins the values n times.
+        double client = 0;
+        double pushed = QUERY_COST + targets;
+        for (int i = 0; i < pshapes.size(); i++) {
+            var values = estimates[i + 1];
+            var fanout = Math.max(1.0, values / (double) targets);
+            client += QUERY_COST + targets + values;
+
+            for (var child : pshapes.get(i).getChildren()) {
+                var leaf = (ConstraintNode) child;
+                pushed += values;
+                pushed += distinctCost(minValues(leaf), targets, values, fanout);
+                if (leaf.max != null)
+                    pushed += distinctCost(leaf.max.getMaxCount() + 1, targets, values, fanout);
+            }
+        }
+
+        if (pushed < client)
+            pushedJunctors.add(node);
+        return (pushed < client ? "SPARQL" : "client-side")
+                + ", est. cost %.0f in SPARQL vs. %.0f client-side".formatted(pushed, client);
+    }
+
+    private static double distinctCost(int n, long targets, long values, double fanout) {
+        if (n == 0)
+            return 0;
+        if (n == 1)
+            return Math.min(targets, values);
+        return values * Math.pow(fanout, n - 1);
+    }
+
+    /**
+     * Estimated cardinalities of the subtree in one query: the number of targets, then the number of
+     * values of every PShape.
+     */
+    private long[] estimateJunctor(SHACLNode node, List<PShapeNode> pshapes) {
+        var sparql = compiled(node.getNodeId() + "/estimate", () -> {
+            var patterns = new ArrayList<List<TriplePath>>();
+            patterns.add(shape.getTargets().stream()
+                    .map((target) -> new TriplePath(Util.generateTarget(target, "targets")))
+                    .toList());
+            for (var pnode : pshapes) {
+                var scratch = sparqlGenerator.newQuery();
+                addQueryPath(pnode, scratch, false);
+                patterns.add(scratch.getTriples());
+            }
+            return sparqlGenerator.countSolutions(patterns);
+        });
+
+        var estimates = new long[pshapes.size() + 1];
+        executeQuery(sparql, (binding) -> estimates[((Number) binding.get("pattern").getLiteralValue()).intValue()] =
+                ((Number) binding.get("count").getLiteralValue()).longValue());
+        return estimates;
+    }
+
+    private static boolean isJunctor(SHACLNode node) {
+        return node instanceof AndNode || node instanceof OrNode || node instanceof NotNode
+                || node instanceof XoneNode;
+    }
+
+    private boolean isPushable(SHACLNode node) {
+        if (node.getMode() != Mode.COUNTS || node.getChildren().isEmpty())
+            return false;
+
+        if (node instanceof PShapeNode pnode) {
+            var path = generatePath(pnode.getPath());
+            var simplePath = path instanceof P_Link
+                    || (path instanceof P_Inverse inverse && inverse.getSubPath() instanceof P_Link);
+
+            return simplePath
+                    && pnode.getEngineConstraints().stream().allMatch((c) -> c instanceof ClassConstraint)
+                    && pnode.getChildren().stream().allMatch((child) -> child.getClass() == ConstraintNode.class
+                            && child.getMode() == Mode.COUNTS
+                            && minValues((ConstraintNode) child) <= MAX_DISTINCT
+                            && (((ConstraintNode) child).max == null
+                                    || ((ConstraintNode) child).max.getMaxCount() < MAX_DISTINCT));
+        }
+
+        return isJunctor(node)
+                && node.getPShape() == null
+                && node.getChildren().stream().allMatch(this::isPushable);
+    }
+
+    // Values a leaf needs at least
+    private static int minValues(ConstraintNode leaf) {
+        return Math.max(leaf.min != null ? leaf.min.getMinCount() : 0, leaf.requiresValue() ? 1 : 0);
+    }
+
+    private static void collectPShapes(SHACLNode node, List<PShapeNode> pshapes) {
+        if (node instanceof PShapeNode pnode)
+            pshapes.add(pnode);
+        else
+            node.getChildren().forEach((child) -> collectPShapes(child, pshapes));
+    }
+
+    private static void markPopulated(SHACLNode node) {
+        node.setPopulated(true);
+        node.getChildren().forEach(Validation::markPopulated);
+    }
+
+    // Columns are numbered children first, so every column only refers to earlier ones
+    private static void collectColumns(SHACLNode node, List<SHACLNode> columns) {
+        node.getChildren().forEach((child) -> collectColumns(child, columns));
+        columns.add(node);
+    }
+
+    private Runnable prepareJunctor(SHACLNode node) {
+        var columns = new ArrayList<SHACLNode>();
+        collectColumns(node, columns);
+
+        var query = sparql(node.getNodeId() + "/junctor", () -> generateJunctorQuery(node, columns));
+
+        return () -> {
+            var focus = new ArrayList<BitSet>();
+            columns.forEach((column) -> focus.add(new BitSet()));
+
+            executeQuery(query, (binding) -> {
+                var target = dictionary.tuple(NodeDictionary.EMPTY, dictionary.encode(binding.get("targets")));
+                for (int i = 0; i < columns.size(); i++) {
+                    var valid = binding.get("valid" + i);
+                    if (valid != null && Boolean.TRUE.equals(valid.getLiteralValue()))
+                        focus.get(i).set(target);
+                }
+            });
+
+            for (int i = 0; i < columns.size(); i++)
+                columns.get(i).setValidFocus(focus.get(i));
+        };
+    }
+
+    private Query generateJunctorQuery(SHACLNode node, List<SHACLNode> columns) {
+        var query = sparqlGenerator.newQuery();
+        for (var target : this.shape.getTargets())
+            query.addTriple(Util.generateTarget(target, "targets"));
+
+        query.project(Var.alloc("targets"));
+        for (int i = 0; i < columns.size(); i++)
+            query.project(Var.alloc("valid" + i), generateColumn(columns.get(i), columns));
 
         return query;
+    }
+
+    // Same logic as constructFromChildren of the node
+    private Expr generateColumn(SHACLNode node, List<SHACLNode> columns) {
+        var children = node.getChildren()
+                .stream()
+                .map((child) -> (Expr) new ExprVar("valid" + columns.indexOf(child)))
+                .toList();
+
+        return switch (node) {
+            case ConstraintNode leaf -> generateLeafCheck(leaf);
+            case PShapeNode pnode -> children.stream().reduce(E_LogicalAnd::new).orElseThrow();
+            case AndNode and -> children.stream().reduce(E_LogicalAnd::new).orElseThrow();
+            case OrNode or -> children.stream().reduce(E_LogicalOr::new).orElseThrow();
+            case NotNode not -> new E_LogicalNot(children.getFirst());
+            case XoneNode xone -> new E_Equals(children.stream()
+                    .map((child) -> (Expr) new E_Conditional(child, NodeValue.makeInteger(1), NodeValue.makeInteger(0)))
+                    .reduce(E_Add::new)
+                    .orElseThrow(), NodeValue.makeInteger(1));
+            default -> throw new InternalValidationException("Pushed a " + node.getClass().getSimpleName());
+        };
+    }
+
+    // Same check as ConstraintNode.constructFromChildren: all values valid and count in range
+    private Expr generateLeafCheck(ConstraintNode leaf) {
+        var pnode = leaf.getPShape();
+        var checks = new ArrayList<Expr>();
+
+        // Invalid are the values the condition doesn't hold for, errors included
+        var condition = generateCondition(leaf);
+        if (condition != null)
+            checks.add(new E_LogicalNot(sparqlGenerator.exists(
+                    values(pnode, Var.alloc(pnode.getBindingVar())),
+                    new ExprList(new E_LogicalNot(
+                            new E_Coalesce(new ExprList(List.of(condition, NodeValue.FALSE))))))));
+
+        if (minValues(leaf) > 0)
+            checks.add(distinctValues(pnode, minValues(leaf)));
+        if (leaf.max != null)
+            checks.add(new E_LogicalNot(distinctValues(pnode, leaf.max.getMaxCount() + 1)));
+
+        return checks.stream().reduce(E_LogicalAnd::new).orElse(NodeValue.TRUE);
+    }
+
+    // EXISTS n distinct values
+    private Expr distinctValues(PShapeNode pnode, int n) {
+        var vars = new ArrayList<Var>();
+        var pattern = new ArrayList<TriplePath>();
+        var filters = new ExprList();
+
+        for (int i = 0; i < n; i++) {
+            var value = Var.alloc(pnode.getBindingVar() + "_" + i);
+            for (var other : vars)
+                filters.add(new E_LogicalNot(new E_SameTerm(new ExprVar(other), new ExprVar(value))));
+            vars.add(value);
+            pattern.addAll(values(pnode, value));
+        }
+
+        return sparqlGenerator.exists(pattern, filters);
+    }
 
+    // The values of the PShape for ?targets, bound to the given var
+    private List<TriplePath> values(PShapeNode pnode, Var value) {
+        var binding = BindingFactory.binding(Var.alloc(pnode.getBindingVar()), value);
+
+        var pattern = new ArrayList<TriplePath>();
+        pattern.add(SPARQLGenerator.triplePath(Var.alloc("targets"), generatePath(pnode.getPath()), value));
+        for (var engineconstraint : pnode.getEngineConstraints())
+            pattern.add(new TriplePath(
+                    Substitute.substitute(getSPARQLForEngineConstraint(engineconstraint, pnode), binding)));
+        return pattern;
     }
 
     private void addQueryPath(SHACLNode node, Query query, boolean useOptional) {
-        var lineage = node.getLineage();
+        // Copy, the lineage is cached in the node
+        var lineage = new ArrayList<>(node.getLineage());
 
         for (var target : this.shape.getTargets()) {
-            query.addPart(Util.generateTargetString(target, "targets"));
+            query.addTriple(Util.generateTarget(target, "targets"));
         }
 
         lineage.add(0, node);
 
         var parentPShape = node.getPShape();
 
-        var from = "targets";
+        var from = Var.alloc("targets");
         query.pushPathVar(from);
         for (int ancestorIndex = lineage.size() - 1; ancestorIndex >= 0; ancestorIndex--) {
             var ancestor = lineage.get(ancestorIndex);
@@ -621,22 +1088,23 @@ public class Validation {
             if (ancestor == parentPShape) {
                 var pnode = (PShapeNode) ancestor;
                 // Add path from previous to new value nodes
+                var bindingVar = Var.alloc(pnode.getBindingVar());
                 if (useOptional) {
-                    query.addOptionalPart(
-                            Util.asTriple("?" + from, generatePath(pnode.getPath()), "?" + pnode.getBindingVar()));
+                    query.addOptionalTriple(
+                            SPARQLGenerator.triplePath(from, generatePath(pnode.getPath()), bindingVar));
                 } else {
-                    query.addTriple("?" + from, generatePath(pnode.getPath()), "?" + pnode.getBindingVar());
+                    query.addTriple(from, generatePath(pnode.getPath()), bindingVar);
 
                 }
-                from = pnode.getBindingVar();
+                from = bindingVar;
                 query.pushPathVar(from);
 
                 // Engineconstraints
                 for (var engineconstraint : pnode.getEngineConstraints()) {
                     if (useOptional) {
-                        query.addOptionalPart(getSPARQLForEngineConstraint(engineconstraint, pnode, query));
+                        query.addOptionalTriple(new TriplePath(getSPARQLForEngineConstraint(engineconstraint, pnode)));
                     } else {
-                        query.addPart(getSPARQLForEngineConstraint(engineconstraint, pnode, query));
+                        query.addTriple(getSPARQLForEngineConstraint(engineconstraint, pnode));
                     }
 
                 }
@@ -647,13 +1115,14 @@ public class Validation {
             if (ancestor instanceof PShapeNode) {
                 var pnode = (PShapeNode) ancestor;
                 // Add path from previous to new value nodes
-                query.addTriple("?" + from, generatePath(pnode.getPath()), "?" + pnode.getBindingVar());
-                from = pnode.getBindingVar();
+                var bindingVar = Var.alloc(pnode.getBindingVar());
+                query.addTriple(from, generatePath(pnode.getPath()), bindingVar);
+                from = bindingVar;
                 query.pushPathVar(from);
 
                 // Engineconstraints
                 for (var engineconstraint : pnode.getEngineConstraints()) {
-                    query.addPart(getSPARQLForEngineConstraint(engineconstraint, pnode, query));
+                    query.addTriple(getSPARQLForEngineConstraint(engineconstraint, pnode));
                 }
             }
         }
@@ -670,7 +1139,8 @@ public class Validation {
 
     private Query generateQuery(SHACLNode node) {
 
-        var lineage = node.getLineage();
+        // Copy, the lineage is cached in the node
+        var lineage = new ArrayList<>(node.getLineage());
 
         // Init new empty Query
         var query = sparqlGenerator.newQuery();
@@ -678,11 +1148,11 @@ public class Validation {
         // For the target-definition
         // TODO this doesnt actually work for more than one Targetdef.
         for (var target : this.shape.getTargets()) {
-            query.addPart(Util.generateTargetString(target, "targets"));
+            query.addTriple(Util.generateTarget(target, "targets"));
         }
 
         // For the rest
-        var from = "targets";
+        var from = Var.alloc("targets");
 
         lineage.add(0, node);
 
@@ -692,15 +1162,15 @@ public class Validation {
             switch (ancestor) {
                 case PShapeNode pnode -> {
                     // Add path from previous to new value nodes
-                    query.addTriple("?" + from, generatePath(pnode.getPath()), "?" + pnode.getBindingVar());
-                    from = pnode.getBindingVar();
+                    query.addTriple(from, generatePath(pnode.getPath()), Var.alloc(pnode.getBindingVar()));
+                    from = Var.alloc(pnode.getBindingVar());
 
                     if (pnode.classc != null)
-                        query.addTriple("?" + pnode.getBindingVar(), "a", pnode.classc);
+                        query.addTriple(Triple.create(from, RDF.Nodes.type, NodeFactoryExtra.parseNode(pnode.classc)));
 
                     // Engineconstraints
                     for (var engineconstraint : pnode.getEngineConstraints()) {
-                        getSPARQLForEngineConstraint(engineconstraint, pnode, query);
+                        getSPARQLForEngineConstraint(engineconstraint, pnode);
                     }
                 }
                 case ConstraintNode cnode -> {
@@ -722,31 +1192,31 @@ public class Validation {
     }
 
     /**
-     * Recursively resolves the path and returns a string that can be used in a
-     * query to fetch all value nodes described by it
+     * Recursively resolves the path into one that can be used in a query to
+     * fetch all value nodes described by it
      *
      * @return
      */
-    private String generatePath(Path path) {
+    private Path generatePath(Path path) {
 
         return switch (path) {
 
             case StringPath stringPath -> {
-                yield stringPath.value;
+                yield PathParser.parse(stringPath.value, PrefixMapping.Standard);
             }
 
             /*
              * DIRECT PATH
              */
             case P_Link linkPath -> {
-                yield Util.wrap(linkPath.getNode().getURI());
+                yield linkPath;
             }
 
             /*
              * ALTERNATIVE PATH
              */
             case P_Alt altPath -> {
-                yield "(" + generatePath(altPath.getLeft()) + ")|(" + generatePath(altPath.getRight()) + ")";
+                yield new P_Alt(generatePath(altPath.getLeft()), generatePath(altPath.getRight()));
             }
 
             /*
@@ -754,7 +1224,7 @@ public class Validation {
              */
             case P_Inverse inversePath -> {
                 // Just switch toVar and fromVar
-                yield "^(" + generatePath(inversePath.getSubPath()) + ")";
+                yield new P_Inverse(generatePath(inversePath.getSubPath()));
             }
 
             /*
@@ -763,7 +1233,7 @@ public class Validation {
             case P_Seq seqPath -> {
                 // A pure seqPath is (counter-intuitively) structured like this:
                 // (((A, B), C), D) --> .getRight() is a P_Link and .getLeft() a P_Seq
-                yield "(" + generatePath(seqPath.getLeft()) + ")/(" + generatePath(seqPath.getRight()) + ")";
+                yield new P_Seq(generatePath(seqPath.getLeft()), generatePath(seqPath.getRight()));
             }
 
             default -> {
@@ -774,11 +1244,11 @@ public class Validation {
 
     }
 
-    private String getSPARQLForEngineConstraint(Constraint constraint, PShapeNode node, Query subQuery) {
-        var bindingVar = node.getBindingVar();
+    private Triple getSPARQLForEngineConstraint(Constraint constraint, PShapeNode node) {
+        var bindingVar = Var.alloc(node.getBindingVar());
         return switch (constraint) {
             case ClassConstraint classConstraint -> {
-                yield Util.asTriple("?" + bindingVar, "a", Util.wrap(classConstraint.getExpectedClass().getURI()));
+                yield Triple.create(bindingVar, RDF.Nodes.type, classConstraint.getExpectedClass());
             }
             default -> {
                 throw new InternalValidationException("EngineConstraint not supported!");
@@ -788,50 +1258,47 @@ public class Validation {
     }
 
     private void addSPARQLForConstraint(Constraint c, ConstraintNode cnode, Query subQuery) {
-        var bindingVar = cnode.getBindingVar();
+        var bindingVar = new ExprVar(cnode.getBindingVar());
         switch (c) {
             /*
              * MAIN CONSTRAINTS
              */
 
             case ClassConstraint classConstraint -> {
-                subQuery.addTriple("?" + bindingVar, "a", Util.wrap(classConstraint.getExpectedClass().getURI()));
+                subQuery.addTriple(
+                        Triple.create(bindingVar.asVar(), RDF.Nodes.type, classConstraint.getExpectedClass()));
             }
             /*
              * STRING BASED CONSTRAINTS
              */
             case StrMinLengthConstraint strMinLengthConstraint -> {
                 var minLen = strMinLengthConstraint.getMinLength();
-                subQuery.addFilter("STRLEN(?" + bindingVar + ") <= " + minLen);
+                subQuery.addFilter(new E_LessThanOrEqual(new E_StrLength(bindingVar), NodeValue.makeInteger(minLen)));
 
             }
             case StrMaxLengthConstraint strMaxLengthConstraint -> {
                 var maxLen = strMaxLengthConstraint.getMaxLength();
-                subQuery.addFilter("STRLEN(?" + bindingVar + ") <= " + maxLen);
+                subQuery.addFilter(new E_LessThanOrEqual(new E_StrLength(bindingVar), NodeValue.makeInteger(maxLen)));
             }
             case PatternConstraint patternConstraint -> {
-                subQuery.addFilter("REGEX(?" + bindingVar + ", \"" + patternConstraint.getPattern() + "\")");
+                subQuery.addFilter(new E_Regex(bindingVar, NodeValue.makeString(patternConstraint.getPattern()), null));
             }
             /*
              * VALUE RANGE CONSTRAINTS
              */
 
+            // The bounds as they are in the shapes, with their datatype and all their digits
             case ValueMinExclusiveConstraint minExC -> {
-                var minVal = minExC.getNodeValue().getFloat();
-                subQuery.addFilter("?" + bindingVar + " > " + minVal);
-
+                subQuery.addFilter(new E_GreaterThan(bindingVar, minExC.getNodeValue()));
             }
             case ValueMinInclusiveConstraint minInC -> {
-                var minVal = minInC.getNodeValue().getFloat();
-                subQuery.addFilter("?" + bindingVar + " >= " + minVal);
+                subQuery.addFilter(new E_GreaterThanOrEqual(bindingVar, minInC.getNodeValue()));
             }
             case ValueMaxExclusiveConstraint maxExC -> {
-                var maxVal = maxExC.getNodeValue().getFloat();
-                subQuery.addFilter("?" + bindingVar + " < " + maxVal);
+                subQuery.addFilter(new E_LessThan(bindingVar, maxExC.getNodeValue()));
             }
             case ValueMaxInclusiveConstraint maxInC -> {
-                var maxVal = maxInC.getNodeValue().getFloat();
-                subQuery.addFilter("?" + bindingVar + " <= " + maxVal);
+                subQuery.addFilter(new E_LessThanOrEqual(bindingVar, maxInC.getNodeValue()));
             }
 
             /*
@@ -840,22 +1307,33 @@ public class Validation {
 
             case HasValueConstraint hasValueConstraint -> {
                 var expectedVal = hasValueConstraint.getValue();
-                cnode.addBindingFilter((s) -> s.filter((b) -> b.get(bindingVar).equals(expectedVal)));
+                var pnode = cnode.getPShape();
+
+                if (pnode == null) {
+                    // On a NodeShape the focus node itself has to be the value
+                    subQuery.addFilter(new E_SameTerm(bindingVar, NodeValue.makeNode(expectedVal)));
+                } else {
+                    // The expected value has to be among the value nodes of the focus node,
+                    // so every value node of a focus node without it is invalid
+                    var from = Var.alloc(pnode.getParent() == null ? "targets" : pnode.getParent().getBindingVar());
+                    subQuery.addFilter(sparqlGenerator.exists(List.of(
+                            SPARQLGenerator.triplePath(from, generatePath(pnode.getPath()), expectedVal))));
+                }
             }
             case InConstraint inConstraint -> {
-                var list = inConstraint.getValues();
-                cnode.addBindingFilter((s) -> s.filter((b) -> list.contains(b.get(bindingVar))));
+                subQuery.addFilter(generateInFilter(bindingVar, inConstraint.getValues()));
             }
 
             case DatatypeConstraint datatypeConstraint -> {
                 var datatype = datatypeConstraint.getDatatypeURI();
-                subQuery.addFilter("DATATYPE(?" + bindingVar + ") = " + Util.wrap(datatype));
+                subQuery.addFilter(new E_Equals(new E_Datatype(bindingVar), NodeValue.makeNode(NodeFactory.createURI(datatype))));
             }
 
             /*
              * CUSTOM CONSTRAINTS
              */
             case ConstraintComponentSPARQL custom -> {
+                // Not supported, custom components don't restrict the values
             }
 
             /*
@@ -883,158 +1361,27 @@ public class Validation {
         }
     }
 
-    private void getParams(ConstraintComponentSPARQL c, SHACLNode node) {
-        SparqlComponent customComponent;
-        Multimap<Parameter, Node> parameterMap;
-        try {
-
-            var f1 = c.getClass().getDeclaredField("sparqlConstraintComponent");
-            f1.setAccessible(true);
-            customComponent = (SparqlComponent) f1.get(c);
-
-            var f2 = c.getClass().getDeclaredField("parameterMap");
-            f2.setAccessible(true);
-            parameterMap = (Multimap<Parameter, Node>) f2.get(c);
-
-            Node paramEqual1 = null, paramEqual2 = null;
-
-            for (var param : parameterMap.keySet()) {
-                System.out.println(param.getSparqlName());
-                if (param.getSparqlName().equals("paramEqual1")) {
-                    paramEqual1 = parameterMap.get(param).iterator().next();
-                }
-                if (param.getSparqlName().equals("paramEqual2")) {
-                    paramEqual2 = parameterMap.get(param).iterator().next();
-
-                }
-                if (param.getSparqlName().equals("paramSmallEq1")) {
-                    paramEqual1 = parameterMap.get(param).iterator().next();
-                    // node.smallerThan = true;
-                }
-                if (param.getSparqlName().equals("paramSmallEq2")) {
-                    paramEqual2 = parameterMap.get(param).iterator().next();
-
-                }
-            }
-
-            // node.param1 = paramEqual1;
-            // node.param2 = paramEqual2;
-
-            // Per SHACL-Def: The $this template is used to bind valid focus nodes (so in
-            // our case ?x)
-            // selectString = selectString.replaceAll("\\?this", "?"+node.getBindingVar());
-
-            // Apply parameter-map
-            /*
-             * for (var param : parameterMap.keys()) {
-             * // TODO why is parameter map a multimap?
-             * String paramValue = switch
-             * (parameterMap.get(param).stream().findFirst().get()) {
-             * case Node_Literal literal:
-             * yield "\"" + literal.getLiteral().getLexicalForm() + "\"";
-             * case Node_URI uri:
-             * yield uri.getURI();
-             * 
-             * 
-             * default:
-             * throw new ValidationException("Variable wrong");
-             * };
-             * 
-             * // selectString = selectString.replaceAll("\\?" + param.getSparqlName(),
-             * paramValue);
-             * }
-             * 
-             * customSelect.addPart(selectString);
-             * 
-             * subQuery.addSubQuery(customSelect);
-             */
+    /**
+     * sh:in as a filter expression. IRIs go into IN lists, chunked since the SQL
+     * behind an OBDA endpoint doesn't take arbitrarily long lists. Literals have
+     * to match as terms (not as values), so they are compared with sameTerm.
+     */
+    private Expr generateInFilter(ExprVar var, List<Node> values) {
+        Expr alternatives = null;
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new ValidationException("Cannot force access to ConstraintComponentSPARQL's protected fields.");
+        var iris = values.stream().filter(Node::isURI).map(NodeValue::makeNode).toList();
+        for (int i = 0; i < iris.size(); i += IN_CHUNK_SIZE) {
+            var chunk = iris.subList(i, Math.min(i + IN_CHUNK_SIZE, iris.size()));
+            alternatives = or(alternatives, new E_OneOf(var, new ExprList(new ArrayList<>(chunk))));
         }
-    }
-
-    private void handleCustomConstraint(ConstraintComponentSPARQL c, SHACLNode node, Query subQuery) {
-
-        SparqlComponent customComponent;
-        Multimap<Parameter, Node> parameterMap;
-        try {
-            /*
-             * For some reason the actual semantics of a ConstraintComponentSPARQL are not
-             * directly accessible by default.
-             * So lets use reflection to circumvent central java concepts!
-             */
-            var f1 = c.getClass().getDeclaredField("sparqlConstraintComponent");
-            f1.setAccessible(true);
-            customComponent = (SparqlComponent) f1.get(c);
-
-            var f2 = c.getClass().getDeclaredField("parameterMap");
-            f2.setAccessible(true);
-            parameterMap = (Multimap<Parameter, Node>) f2.get(c);
-
-            // The subquery already binds variable ?x with valid focus nodes
-            // we just have to replace the $this template the custom Constraint
-            // and run it as a subquery
-            var customSelect = sparqlGenerator.newQuery();
-            String selectString = customComponent.getQuery().serialize();
-
-            // If the custom constraint also uses variable ?x everything will go up in
-            // flames
-            // But ?x is pretty common so we transfer the problem to ?CUSTOMCONSTRAINT_x
-            // If the user tries to use that, give up.
-
-            Node paramEqual1 = null, paramEqual2 = null;
-
-            for (var param : parameterMap.keySet()) {
-                System.out.println(param.getSparqlName());
-                if (param.getSparqlName().equals("paramEqual1")) {
-                    paramEqual1 = parameterMap.get(param).iterator().next();
-                }
-                if (param.getSparqlName().equals("paramEqual2")) {
-                    paramEqual2 = parameterMap.get(param).iterator().next();
 
-                }
-            }
-
-            System.out.println("Attached to params");
-
-            // Per SHACL-Def: The $this template is used to bind valid focus nodes (so in
-            // our case ?x)
-            // selectString = selectString.replaceAll("\\?this", "?"+node.getBindingVar());
-
-            // Apply parameter-map
-            /*
-             * for (var param : parameterMap.keys()) {
-             * // TODO why is parameter map a multimap?
-             * String paramValue = switch
-             * (parameterMap.get(param).stream().findFirst().get()) {
-             * case Node_Literal literal:
-             * yield "\"" + literal.getLiteral().getLexicalForm() + "\"";
-             * case Node_URI uri:
-             * yield uri.getURI();
-             * 
-             * 
-             * default:
-             * throw new ValidationException("Variable wrong");
-             * };
-             * 
-             * // selectString = selectString.replaceAll("\\?" + param.getSparqlName(),
-             * paramValue);
-             * }
-             * 
-             * customSelect.addPart(selectString);
-             * 
-             * subQuery.addSubQuery(customSelect);
-             */
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new ValidationException("Cannot force access to ConstraintComponentSPARQL's protected fields.");
+        for (var value : values) {
+            if (!value.isURI())
+                alternatives = or(alternatives, new E_SameTerm(var, NodeValue.makeNode(value)));
         }
 
-        // After just a few lines of black magic we can proceed as planned
-
+        // sh:in () doesn't allow any value
+        return alternatives == null ? NodeValue.FALSE : alternatives;
     }
 
     /*
@@ -1047,17 +1394,22 @@ public class Validation {
          * GET ALL TARGETS
          */
 
-        List<Node> targets;
+        IntList targets;
 
         switch (tree) {
             case PShapeNode pShape -> {
                 targets = getTargetsFromPropertyMap(pShape);
             }
             default -> {
-                targets = getTargetsByQuery();
+                // Already fetched while populating
+                targets = tree.getTargetNodes();
             }
         }
 
+        // A PShape which only received violations doesn't know all targets
+        if (tree instanceof PShapeNode pShape && pShape.isViolationsOnly())
+            targets = tree.getTargetNodes();
+
         /*
          * CHECK IF ATOMS VALIDATE1
          */
@@ -1069,39 +1421,47 @@ public class Validation {
         return targets
                 .stream()
                 .parallel()
-                .map((atom) -> {
+                .mapToObj((atom) -> {
 
                     var valNodes = new HashSet<SHACLNode>();
 
                     var res = tree.validatesRes(atom, valNodes);
 
-                    return new ValidationResult(atom, valNodes, res);
+                    var result = new ValidationResult(dictionary.decode(atom), valNodes, res);
+                    listener.result(shape, tree, result);
+                    return result;
                 })
                 .collect(Collectors.toSet());
 
     }
 
-    private List<Node> getTargetsFromPropertyMap(PShapeNode pShape) {
-        return pShape.getCountMap().keySet().stream().map((k -> k.get(0))).collect(Collectors.toList());
+    private IntList getTargetsFromPropertyMap(PShapeNode pShape) {
+        var targets = new IntList(pShape.getCountMap().size());
+        pShape.getCountMap().keys().map(dictionary::first).forEach(targets::add);
+        return targets;
     }
 
-    private List<Node> getTargetsByQuery() {
-        List<Node> targets;
+    private IntList getTargetsByQuery() {
+        var targets = new IntList();
 
-        // New empty query
         print("TARGET QUERY");
-        var q = sparqlGenerator.newQuery();
+        var sparql = sparql("targets", () -> {
+            // New empty query
+            var q = sparqlGenerator.newQuery();
+
+            // Add target definition
+            q.addTriple(
+                    Util.generateTarget(
+                            shape.getTargets().iterator().next(),
+                            "targets"));
 
-        // Add target definition
-        q.addPart(
-                Util.generateTargetString(
-                        shape.getTargets().iterator().next(),
-                        "targets"));
+            // Only the targets, sh:targetSubjectsOf/ObjectsOf bind ?ignore as well
+            q.project(Var.alloc("targets"));
+            return q;
+        });
 
         // Execute query
-        targets = executeQuery(q)
-            .stream()
-            .map((binding) -> binding.get("targets")).collect(Collectors.toList());
+        executeQuery(sparql, (binding) -> targets.add(dictionary.encode(binding.get("targets"))));
         System.out.println("Receives %d Targets".formatted(targets.size()));
         
         return targets;
@@ -1111,70 +1471,132 @@ public class Validation {
      * REPORT GENERATION
      */
 
-    private String generateReportEntry(ValidationResult res) {
+    private void generateReportEntry(ValidationResult res, StringBuilder sb) {
+
+        sb.append(res.isValid() ? "✅ " : "❌ ");
+        sb.append(Util.wrap(res.getAtom().getURI())).append(":\n");
+        Util.drawTreeNode(sb, tree, res, 1);
+        sb.append("\n\n\n");
+    }
 
-        String s = "";
+    // One entry per distinct verdict tree, listing all targets sharing it
+    private void generateGroupedReportEntry(List<ValidationResult> group, StringBuilder sb) {
 
-        s += res.isValid() ? "✅ " : "❌ ";
-        s += Util.wrap(res.getAtom().getURI()) + ":\n";
-        s += Util.drawTreeNode(tree, res, 1);
+        var first = group.get(0);
+        sb.append(first.isValid() ? "✅ " : "❌ ");
+        sb.append(group.size()).append(group.size() == 1 ? " target:\n" : " targets:\n");
+        Util.drawTreeNode(sb, tree, first, 1);
+        sb.append('\n');
 
-        return s;
+        for (var res : group)
+            Util.indent(sb, 1).append(Util.wrap(res.getAtom().getURI())).append('\n');
+        sb.append("\n\n");
     }
 
     public void saveReport(String file) {
 
         print("Generating report.");
 
+        try (var out = ReportWriter.open(Paths.get(file))) {
+            writeReport(out);
+
+        } catch (Exception e) {
+            print("Error saving report.");
+        }
+
+    }
+
+    /**
+     * Writes the text report (plain or grouped, see Options.reportFormat) to out, which is left open.
+     */
+    public void writeReport(Writer out) throws IOException {
+
         // Generate stats
         var validRes = results.stream().filter((res) -> res.isValid()).count();
 
-        var report = "🔍 VALIDATION REPORT:\nTotal targets: " + results.size() + " | ❌ INVALID: "
-                + String.valueOf(results.size() - validRes) + " | ✅ VALID: " + validRes + "\n\n\n\n";
+        var header = "🔍 VALIDATION REPORT:\nTotal targets: " + results.size() + " | ❌ INVALID: "
+                + String.valueOf(results.size() - validRes) + " | ✅ VALID: " + validRes;
 
-        report += results
-                .stream()
-                .map((res) -> generateReportEntry(res))
-                .reduce("", (acc, str) -> acc + str + "\n\n\n");
+        // Entries are rendered and written one by one
+        var writer = new ReportWriter(options.reportThreads);
 
-        try {
-            Files.write(Paths.get(file), report.getBytes(StandardCharsets.UTF_8));
-
-        } catch (Exception e) {
-            print("Error saving report.");
+        if (options.reportFormat.equals("grouped")) {
+            var groups = groupByVerdicts();
+            header += " | DISTINCT TREES: " + groups.size() + "\n\n\n\n";
+            writer.write(out, header, groups, this::generateGroupedReportEntry);
+        } else {
+            header += "\n\n\n\n";
+            writer.write(out, header, results, this::generateReportEntry);
         }
 
     }
 
+    /**
+     * Buckets the results by the set of nodes validating them, most targets share the same few trees.
+     * Invalid groups come first, larger ones before smaller ones, targets are sorted within a group.
+     */
+    private List<List<ValidationResult>> groupByVerdicts() {
+        var groups = new HashMap<Set<SHACLNode>, List<ValidationResult>>();
+        for (var res : results)
+            groups.computeIfAbsent(res.getValidatingNodes(), (signature) -> new ArrayList<>()).add(res);
+
+        var sorted = new ArrayList<>(groups.values());
+        for (var group : sorted)
+            group.sort(Comparator.comparing((ValidationResult res) -> res.getAtom().toString()));
+
+        sorted.sort(Comparator
+                .comparing((List<ValidationResult> group) -> group.get(0).isValid())
+                .thenComparing(List::size, Comparator.reverseOrder()));
+        return sorted;
+    }
+
     /*
      * HELPER FUNCTIONS
      */
 
     /**
-     * Executes a SPARQL query against the SPARQL endpoint and filters the results
-     * based on constraints.
+     * The text of a query, from the compiled plan if there is one. Otherwise it gets generated (and
+     * recorded in the plan).
      *
-     * @param query The SPARQL query to execute.
-     * @return The filtered query results.
+     * @param key      node id of the node the query populates, "targets" for the target query
+     * @param generate generates the query
      */
-    private List<Binding> executeQuery(Query query) {
-        indentlevel++;
-        var sparql = query.getSparqlString();
+    private String sparql(String key, Supplier<Query> generate) {
+        return compiled(key, () -> generate.get().getSparqlString());
+    }
 
-        print(ansi().bgYellow().a("\n\n------------------- Running the following query: ------------------------"));
-        print(sparql);
-        print(ansi().reset());
+    // Same, for queries that aren't built as a Query
+    private String compiled(String key, Supplier<String> generate) {
+        if (plan == null)
+            return generate.get();
+        return plan.query(shape, key, generate);
+    }
+
+    /**
+     * Executes a SPARQL query against the SPARQL endpoint and streams the results
+     * into the sink, row by row as they come off the wire.
+     *
+     * @param sparql The SPARQL query to execute.
+     * @param sink   Receives every result row.
+     * @return The number of rows received.
+     */
+    private long executeQuery(String sparql, Consumer<Binding> sink) {
+
+        // Queries run concurrently, so every message is printed in one go
+        print(ansi().bgYellow().a("\n\n------------------- Running the following query: ------------------------")
+                .a("\n" + sparql)
+                .reset());
 
         long startTime = System.nanoTime();
-        var bindings = endpoint.query(sparql).select().stream().collect(Collectors.toList());
+        var rows = cache.query(sparql, sink,
+                (rowSink) -> scheduler.withPermit(() -> endpoint.select(sparql, rowSink)));
         long endTime = System.nanoTime();
         long duration = (endTime - startTime);
 
         print(ansi().fgGreen()
-                .a("\n----- Received " + bindings.size() + " rows in " + duration / 1000000 + "ms. ------\n\n")
+                .a("\n----- Received " + rows + " rows in " + duration / 1000000 + "ms. ------\n\n")
                 .reset());
-        indentlevel--;
-        return bindings;
+        return rows;
     }
 
     /**
@@ -1191,7 +1613,7 @@ public class Validation {
         return node;
     }
 
-    private void print(String s) {
+    private synchronized void print(String s) {
         for (var line : s.split("\n")) {
             System.out.println(Util.indent(indentlevel, line));
         }
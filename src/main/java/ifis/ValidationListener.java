@@ -0,0 +1,32 @@
+package ifis;
+
+import java.util.Set;
+
+import org.apache.jena.shacl.parser.Shape;
+
+import ifis.logic.SHACLNode;
+
+/**
+ * Gets told about the progress of a Validation, e.g. to write a report while it is still running.
+ * Results are handed in from several threads at once.
+ */
+public interface ValidationListener {
+
+    /**
+     * The logic tree is built, every node has its id.
+     */
+    default void treeBuilt(Shape shape, SHACLNode tree) {
+    }
+
+    /**
+     * A target has been checked.
+     */
+    default void result(Shape shape, SHACLNode tree, ValidationResult result) {
+    }
+
+    /**
+     * All targets have been checked.
+     */
+    default void finished(Shape shape, SHACLNode tree, Set<ValidationResult> results) {
+    }
+}
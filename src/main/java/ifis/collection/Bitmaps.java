@@ -0,0 +1,46 @@
+package ifis.collection;
+
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Helpers for focus sets held as bitmaps.
+ * The ids of a NodeDictionary are dense, so a plain BitSet over them is compact and the junctors
+ * become word-level operations.
+ */
+public final class Bitmaps {
+
+    private Bitmaps() {
+    }
+
+    public static BitSet of(IntStream ids) {
+        // Works with parallel streams as well
+        return ids.collect(BitSet::new, BitSet::set, BitSet::or);
+    }
+
+    /**
+     * @return the bitmap of all ids the set ids are mapped to
+     */
+    public static BitSet map(BitSet bitmap, IntUnaryOperator mapping) {
+        return of(bitmap.stream().map(mapping));
+    }
+
+    /**
+     * @return a fresh bitmap of both sets' ids, the arguments stay as they are
+     */
+    public static BitSet and(BitSet a, BitSet b) {
+        var result = (BitSet) a.clone();
+        result.and(b);
+        return result;
+    }
+
+    /**
+     * @return a fresh bitmap of the ids of a which are not in b, the arguments stay as they are
+     */
+    public static BitSet andNot(BitSet a, BitSet b) {
+        var result = (BitSet) a.clone();
+        result.andNot(b);
+        return result;
+    }
+}
@@ -0,0 +1,26 @@
+package ifis.collection;
+
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    // Dictionary ids are dense and sequential, spread them before masking
+    // (finalizer of MurmurHash3)
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // Power of two, at most half full
+    static int capacityFor(int expected) {
+        var capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+}
@@ -0,0 +1,108 @@
+package ifis.collection;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Map from non-negative int keys to int values, open addressing with linear probing.
+ * Keys and values live in one interleaved int[], nothing gets boxed.
+ *
+ * Not thread safe for writes, concurrent reads are fine.
+ */
+public class IntIntMap {
+
+    private static final int FREE = -1;
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+
+    // key at 2*i, value at 2*i+1
+    private int[] entries;
+    private int size = 0;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expected) {
+        entries = newEntries(Hashing.capacityFor(expected));
+    }
+
+    public void put(int key, int value) {
+        if (key < 0)
+            throw new IllegalArgumentException("IntIntMap only holds non-negative keys, got " + key);
+
+        var i = indexOf(key);
+        if (entries[i] == FREE) {
+            entries[i] = key;
+            size++;
+        }
+        entries[i + 1] = value;
+
+        // Double once more than half of the slots are taken
+        if (size * 4 > entries.length)
+            rehash(entries.length);
+    }
+
+    /**
+     * @return the value of the key, or the fallback if there is none
+     */
+    public int get(int key, int fallback) {
+        if (key < 0)
+            return fallback;
+
+        var i = indexOf(key);
+        return entries[i] == FREE ? fallback : entries[i + 1];
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && entries[indexOf(key)] != FREE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public IntStream keys() {
+        return IntStream.range(0, entries.length / 2)
+                .map(i -> entries[2 * i])
+                .filter(key -> key != FREE);
+    }
+
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < entries.length; i += 2)
+            if (entries[i] != FREE)
+                action.accept(entries[i], entries[i + 1]);
+    }
+
+    // Slot of the key, or the free slot it would go into
+    private int indexOf(int key) {
+        var slots = entries.length / 2;
+        var mask = slots - 1;
+        var i = Hashing.mix(key) & mask;
+        while (entries[2 * i] != FREE && entries[2 * i] != key)
+            i = (i + 1) & mask;
+        return 2 * i;
+    }
+
+    private void rehash(int slots) {
+        var old = entries;
+        entries = newEntries(slots);
+        size = 0;
+        for (int i = 0; i < old.length; i += 2)
+            if (old[i] != FREE)
+                put(old[i], old[i + 1]);
+    }
+
+    private static int[] newEntries(int slots) {
+        var entries = new int[slots * 2];
+        Arrays.fill(entries, FREE);
+        return entries;
+    }
+}
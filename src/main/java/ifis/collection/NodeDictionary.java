@@ -0,0 +1,243 @@
+package ifis.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+/**
+ * Dictionary of the RDF terms and focus tuples of one validation.
+ *
+ * Every term coming off the wire gets interned once and is referred to by a dense int id from then on.
+ * IRIs are split into namespace and local name, the namespaces (mostly the same few per dataset) are
+ * stored once, so only the local names are kept per IRI. Literals and blank nodes are kept as they are.
+ *
+ * Focus nodes are tuples of terms, ordered innermost to outermost (?targets last), see
+ * Util.getFocusVars. They are interned as well, as the pair (id of the tuple without its last term,
+ * id of the last term), so a focus of any depth is a single int, and dropping the last term (elevating
+ * a focus to the next PShape) is a lookup.
+ *
+ * Both lookups are open addressing tables holding nothing but ids into the per-id arrays,
+ * so no key objects are kept around.
+ *
+ * All methods are synchronized, queries running concurrently fold their rows into the same dictionary.
+ */
+public class NodeDictionary {
+
+    // The prefix of a tuple of length 1
+    public static final int EMPTY = -1;
+
+    private static final int FREE = -1;
+    private static final int NO_NAMESPACE = -1;
+
+    /*
+     * TERMS
+     */
+
+    private final HashMap<String, Integer> namespaceIds = new HashMap<>();
+    private final List<String> namespaces = new ArrayList<>();
+
+    // Per term id: hash of the term, namespace of an IRI (or NO_NAMESPACE),
+    // local name of an IRI (String) or the term itself (Node)
+    private int[] termHash = new int[1024];
+    private int[] termNamespace = new int[1024];
+    private Object[] termValue = new Object[1024];
+    private int terms = 0;
+    private int[] termSlots = newSlots(2048);
+
+    /*
+     * TUPLES
+     */
+
+    // Per tuple id: tuple without its last term, last term, first term, length
+    private int[] tuplePrefix = new int[1024];
+    private int[] tupleLast = new int[1024];
+    private int[] tupleFirst = new int[1024];
+    private int[] tupleLength = new int[1024];
+    private int tuples = 0;
+    private int[] tupleSlots = newSlots(2048);
+
+    /**
+     * @return the id of the term, it gets added if it isn't known yet
+     */
+    public synchronized int encode(Node node) {
+        var hash = node.isURI() ? node.getURI().hashCode() : node.hashCode();
+
+        var mask = termSlots.length - 1;
+        var i = Hashing.mix(hash) & mask;
+        while (termSlots[i] != FREE) {
+            var id = termSlots[i];
+            if (termHash[id] == hash && matches(id, node))
+                return id;
+            i = (i + 1) & mask;
+        }
+
+        var id = addTerm(node, hash);
+        termSlots[i] = id;
+        if (terms * 2 > termSlots.length)
+            termSlots = rehash(termSlots, termHash, terms);
+        return id;
+    }
+
+    /**
+     * @return the term of the id
+     */
+    public synchronized Node decode(int id) {
+        return switch (termValue[id]) {
+            case String local -> NodeFactory.createURI(namespaces.get(termNamespace[id]) + local);
+            case Node node -> node;
+            default -> throw new IllegalStateException("Unknown term id " + id);
+        };
+    }
+
+    /**
+     * @param prefix the tuple the term gets appended to, EMPTY for a tuple of just the term
+     * @param term   id of the term
+     * @return the id of the tuple, it gets added if it isn't known yet
+     */
+    public synchronized int tuple(int prefix, int term) {
+        var hash = 31 * prefix + term;
+
+        var mask = tupleSlots.length - 1;
+        var i = Hashing.mix(hash) & mask;
+        while (tupleSlots[i] != FREE) {
+            var id = tupleSlots[i];
+            if (tuplePrefix[id] == prefix && tupleLast[id] == term)
+                return id;
+            i = (i + 1) & mask;
+        }
+
+        var id = addTuple(prefix, term);
+        tupleSlots[i] = id;
+        if (tuples * 2 > tupleSlots.length)
+            tupleSlots = rehashTuples(tupleSlots);
+        return id;
+    }
+
+    /**
+     * @return the id of the tuple consisting of just the term
+     */
+    public int single(Node node) {
+        return tuple(EMPTY, encode(node));
+    }
+
+    /**
+     * @return the id of the tuple without its last term, EMPTY for a tuple of length 1
+     */
+    public synchronized int prefix(int tuple) {
+        return tuplePrefix[tuple];
+    }
+
+    /**
+     * @return the id of the first (innermost) term of the tuple
+     */
+    public synchronized int first(int tuple) {
+        return tupleFirst[tuple];
+    }
+
+    public synchronized int length(int tuple) {
+        return tupleLength[tuple];
+    }
+
+    public synchronized int size() {
+        return terms;
+    }
+
+    /*
+     * HELPERS
+     */
+
+    private boolean matches(int id, Node node) {
+        return switch (termValue[id]) {
+            case String local when node.isURI() -> {
+                var uri = node.getURI();
+                var namespace = namespaces.get(termNamespace[id]);
+                yield uri.length() == namespace.length() + local.length()
+                        && uri.startsWith(namespace)
+                        && uri.endsWith(local);
+            }
+            case String local -> false;
+            case Object other -> other.equals(node);
+        };
+    }
+
+    private int addTerm(Node node, int hash) {
+        if (terms == termHash.length) {
+            termHash = Arrays.copyOf(termHash, terms * 2);
+            termNamespace = Arrays.copyOf(termNamespace, terms * 2);
+            termValue = Arrays.copyOf(termValue, terms * 2);
+        }
+
+        var id = terms++;
+        termHash[id] = hash;
+
+        if (node.isURI()) {
+            // Split after the last '#' or '/', or ':' for URNs without either
+            var uri = node.getURI();
+            var split = Math.max(uri.lastIndexOf('#'), uri.lastIndexOf('/'));
+            if (split < 0)
+                split = uri.lastIndexOf(':');
+
+            var namespace = uri.substring(0, split + 1);
+            termNamespace[id] = namespaceIds.computeIfAbsent(namespace, (ns) -> {
+                namespaces.add(ns);
+                return namespaces.size() - 1;
+            });
+            termValue[id] = uri.substring(split + 1);
+        } else {
+            termNamespace[id] = NO_NAMESPACE;
+            termValue[id] = node;
+        }
+
+        return id;
+    }
+
+    private int addTuple(int prefix, int term) {
+        if (tuples == tuplePrefix.length) {
+            tuplePrefix = Arrays.copyOf(tuplePrefix, tuples * 2);
+            tupleLast = Arrays.copyOf(tupleLast, tuples * 2);
+            tupleFirst = Arrays.copyOf(tupleFirst, tuples * 2);
+            tupleLength = Arrays.copyOf(tupleLength, tuples * 2);
+        }
+
+        var id = tuples++;
+        tuplePrefix[id] = prefix;
+        tupleLast[id] = term;
+        tupleFirst[id] = prefix == EMPTY ? term : tupleFirst[prefix];
+        tupleLength[id] = prefix == EMPTY ? 1 : tupleLength[prefix] + 1;
+        return id;
+    }
+
+    private static int[] rehash(int[] slots, int[] hashes, int count) {
+        var rehashed = newSlots(slots.length * 2);
+        var mask = rehashed.length - 1;
+        for (int id = 0; id < count; id++) {
+            var i = Hashing.mix(hashes[id]) & mask;
+            while (rehashed[i] != FREE)
+                i = (i + 1) & mask;
+            rehashed[i] = id;
+        }
+        return rehashed;
+    }
+
+    private int[] rehashTuples(int[] slots) {
+        var rehashed = newSlots(slots.length * 2);
+        var mask = rehashed.length - 1;
+        for (int id = 0; id < tuples; id++) {
+            var i = Hashing.mix(31 * tuplePrefix[id] + tupleLast[id]) & mask;
+            while (rehashed[i] != FREE)
+                i = (i + 1) & mask;
+            rehashed[i] = id;
+        }
+        return rehashed;
+    }
+
+    private static int[] newSlots(int capacity) {
+        var slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+}
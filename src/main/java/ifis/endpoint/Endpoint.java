@@ -0,0 +1,61 @@
+package ifis.endpoint;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.exec.RowSet;
+
+/**
+ * Anything the generated SPARQL can run against.
+ */
+public interface Endpoint {
+
+    /**
+     * Runs a SELECT query and hands every result row to the sink as soon as it is there.
+     *
+     * @param sparql the query
+     * @param sink   receives every row
+     * @return the number of rows
+     */
+    long select(String sparql, Consumer<Binding> sink);
+
+    /**
+     * @return name of the endpoint, used as key for caches and concurrency limits
+     */
+    String getName();
+
+    /**
+     * Creates an endpoint from its command line notation:
+     * - http://... or https://...  a SPARQL endpoint (e.g. Ontop)
+     * - mem:[file]                 the RDF file, loaded into an in-memory dataset
+     * - tdb2:[directory]           a TDB2 database
+     * - obda:[file.obda]           Ontop in-process over the mapping, file.properties and file.owl
+     */
+    static Endpoint of(String spec) {
+        if (spec.startsWith("mem:"))
+            return LocalEndpoint.inMemory(spec.substring("mem:".length()));
+        if (spec.startsWith("tdb2:"))
+            return LocalEndpoint.tdb2(spec.substring("tdb2:".length()));
+        if (spec.startsWith("obda:"))
+            return new OntopEndpoint(Path.of(spec.substring("obda:".length())));
+        if (spec.startsWith("http://") || spec.startsWith("https://"))
+            return new HttpEndpoint(spec);
+
+        throw new IllegalArgumentException("Unknown endpoint '" + spec + "'");
+    }
+
+    /**
+     * Feeds all rows of the RowSet into the sink.
+     *
+     * @return the number of rows
+     */
+    static long drain(RowSet rowSet, Consumer<Binding> sink) {
+        long count = 0;
+        while (rowSet.hasNext()) {
+            sink.accept(rowSet.next());
+            count++;
+        }
+        return count;
+    }
+}
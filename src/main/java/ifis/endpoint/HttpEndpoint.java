@@ -0,0 +1,32 @@
+package ifis.endpoint;
+
+import java.util.function.Consumer;
+
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.exec.http.QueryExecHTTPBuilder;
+
+/**
+ * A SPARQL endpoint reached over HTTP, e.g. Ontop.
+ */
+public class HttpEndpoint implements Endpoint {
+
+    private final String serviceURL;
+
+    public HttpEndpoint(String serviceURL) {
+        this.serviceURL = serviceURL;
+    }
+
+    @Override
+    public long select(String sparql, Consumer<Binding> sink) {
+        // A builder per query, they aren't meant to be shared between threads
+        try (var exec = QueryExecHTTPBuilder.service(serviceURL).query(sparql).build()) {
+            // The RowSet parses the response lazily off the stream
+            return Endpoint.drain(exec.select(), sink);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return serviceURL;
+    }
+}
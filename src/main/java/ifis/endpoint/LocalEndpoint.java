@@ -0,0 +1,60 @@
+package ifis.endpoint;
+
+import java.util.function.Consumer;
+
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.exec.QueryExec;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.TDB2Factory;
+
+/**
+ * Runs the queries in-process against a Jena dataset, no network involved.
+ * Handy for tests and for measuring the validator without endpoint latency.
+ */
+public class LocalEndpoint implements Endpoint {
+
+    private final String name;
+    private final DatasetGraph dataset;
+
+    public LocalEndpoint(String name, DatasetGraph dataset) {
+        this.name = name;
+        this.dataset = dataset;
+    }
+
+    /**
+     * Loads an RDF file into a transactional in-memory dataset.
+     */
+    public static LocalEndpoint inMemory(String file) {
+        var dataset = DatasetGraphFactory.createTxnMem();
+        Txn.executeWrite(dataset, () -> RDFDataMgr.read(dataset, file));
+
+        return new LocalEndpoint("mem:" + file, dataset);
+    }
+
+    /**
+     * Connects to a TDB2 database (which memory maps its files).
+     */
+    public static LocalEndpoint tdb2(String directory) {
+        var dataset = TDB2Factory.connectDataset(directory).asDatasetGraph();
+
+        return new LocalEndpoint("tdb2:" + directory, dataset);
+    }
+
+    @Override
+    public long select(String sparql, Consumer<Binding> sink) {
+        // Rows are handed out while the read transaction is still open
+        return Txn.calculateRead(dataset, () -> {
+            try (var exec = QueryExec.dataset(dataset).query(sparql).build()) {
+                return Endpoint.drain(exec.select(), sink);
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
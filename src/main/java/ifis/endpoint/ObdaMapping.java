@@ -0,0 +1,424 @@
+package ifis.endpoint;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * The mappings of an Ontop .obda file (native syntax), as far as the SqlCompiler needs them: every
+ * mapping is a SQL source and the triples each of its rows produces.
+ *
+ *   [PrefixDeclaration]
+ *   :        urn:absolute/prototyp#
+ *   xsd:     http://www.w3.org/2001/XMLSchema#
+ *
+ *   [MappingDeclaration] @collection [[
+ *   mappingId   parameter
+ *   target      :{id} a :Parameter ; :hat_Wert {wert}^^xsd:decimal .
+ *   source      SELECT id, wert FROM parameter
+ *   ]]
+ *
+ * Blank nodes and Ontop's extensions of the target syntax aren't supported.
+ */
+public class ObdaMapping {
+
+    /**
+     * Fixed text with the values of columns in between:
+     * parts[0] {columns[0]} parts[1] ... {columns[n-1]} parts[n]. Constants have no columns.
+     */
+    public record Template(List<String> parts, List<String> columns) {
+
+        static Template parse(String text) {
+            var parts = new ArrayList<String>();
+            var columns = new ArrayList<String>();
+            var from = 0;
+            for (int open = text.indexOf('{'); open >= 0; open = text.indexOf('{', from)) {
+                var close = text.indexOf('}', open);
+                if (close < 0)
+                    throw new IllegalArgumentException("Unclosed '{' in template '" + text + "'");
+                parts.add(text.substring(from, open));
+                columns.add(text.substring(open + 1, close).strip());
+                from = close + 1;
+            }
+            parts.add(text.substring(from));
+            return new Template(List.copyOf(parts), List.copyOf(columns));
+        }
+
+        String fill(List<String> values, boolean iri) {
+            var sb = new StringBuilder(parts.getFirst());
+            for (int i = 0; i < columns.size(); i++)
+                sb.append(iri ? encode(values.get(i)) : values.get(i)).append(parts.get(i + 1));
+            return sb.toString();
+        }
+
+        /**
+         * The column values the template produces the text from, null if it can't.
+         */
+        List<String> match(String text, boolean iri) {
+            var regex = new StringBuilder();
+            for (int i = 0; i < parts.size(); i++) {
+                if (i > 0)
+                    regex.append(iri ? "((?:%[0-9A-F]{2}|[-.\\w~\\P{ASCII}])+?)" : "(.+?)");
+                regex.append(Pattern.quote(parts.get(i)));
+            }
+
+            var matcher = Pattern.compile(regex.toString()).matcher(text);
+            if (!matcher.matches())
+                return null;
+
+            var values = new ArrayList<String>();
+            for (int i = 1; i <= matcher.groupCount(); i++)
+                values.add(iri ? decode(matcher.group(i)) : matcher.group(i));
+            // %41 is an A, but no value gets encoded that way
+            return !iri || fill(values, true).equals(text) ? values : null;
+        }
+
+        /**
+         * Whether some text could come out of both templates. Values of columns can be any text, in IRIs
+         * only what encode() leaves, so :{id} never is :probe/{nr}. False for sure means no values of the
+         * two are ever equal.
+         */
+        boolean mayOverlap(Template other, boolean iri) {
+            return overlap(skeleton(), 0, other.skeleton(), 0, iri, new HashSet<>());
+        }
+
+        // The characters of the fixed text, null for the columns
+        private List<Character> skeleton() {
+            var skeleton = new ArrayList<Character>();
+            for (int i = 0; i < parts.size(); i++) {
+                if (i > 0)
+                    skeleton.add(null);
+                for (var c : parts.get(i).toCharArray())
+                    skeleton.add(c);
+            }
+            return skeleton;
+        }
+
+        // Whether both rest from a[i] and b[j] on can be the same text, every pair only tried once
+        private static boolean overlap(List<Character> a, int i, List<Character> b, int j, boolean iri,
+                Set<List<Integer>> tried) {
+            if (!tried.add(List.of(i, j)))
+                return false;
+            if (i == a.size() && j == b.size())
+                return true;
+
+            var x = i < a.size() ? a.get(i) : null;
+            var y = j < b.size() ? b.get(j) : null;
+            var columnA = i < a.size() && x == null;
+            var columnB = j < b.size() && y == null;
+
+            // A column ends, or takes the next character of the other one
+            if (columnA && (overlap(a, i + 1, b, j, iri, tried)
+                    || j < b.size() && (columnB || !iri || inValue(y)) && overlap(a, i, b, j + 1, iri, tried)))
+                return true;
+            if (columnB && (overlap(a, i, b, j + 1, iri, tried)
+                    || i < a.size() && (columnA || !iri || inValue(x)) && overlap(a, i + 1, b, j, iri, tried)))
+                return true;
+            return x != null && x.equals(y) && overlap(a, i + 1, b, j + 1, iri, tried);
+        }
+    }
+
+    /**
+     * The subject or object of a mapped triple. IRIs have no datatype, literals the one written in the
+     * target, null takes the one of the column's SQL type.
+     */
+    public record Term(boolean iri, Template template, String datatype, String lang) {
+
+        /**
+         * The RDF term of a row.
+         *
+         * @param columnDatatype datatype of the column, if the target doesn't name one
+         */
+        public Node toNode(List<String> values, String columnDatatype) {
+            var text = template.fill(values, iri);
+            if (iri)
+                return NodeFactory.createURI(text);
+            if (lang != null)
+                return NodeFactory.createLiteral(text, lang);
+
+            var type = datatype != null ? datatype : columnDatatype;
+            return type == null
+                    ? NodeFactory.createLiteral(text)
+                    : NodeFactory.createLiteral(text, TypeMapper.getInstance().getSafeTypeByName(type));
+        }
+    }
+
+    public record TripleMap(Term subject, Node predicate, Term object) {
+    }
+
+    public record Mapping(String id, String source, List<TripleMap> triples) {
+    }
+
+    private final List<Mapping> mappings;
+
+    private ObdaMapping(List<Mapping> mappings) {
+        this.mappings = mappings;
+    }
+
+    public List<Mapping> getMappings() {
+        return mappings;
+    }
+
+    public static ObdaMapping parse(Path file) throws IOException {
+        return parse(Files.readString(file));
+    }
+
+    public static ObdaMapping parse(String text) {
+        var prefixes = new HashMap<String, String>();
+        var mappings = new ArrayList<Mapping>();
+
+        var section = "";
+        Map<String, StringBuilder> entry = new HashMap<>();
+        String key = null;
+
+        for (var line : text.split("\r?\n")) {
+            var trimmed = line.strip();
+
+            if (trimmed.startsWith("[PrefixDeclaration]") || trimmed.startsWith("[MappingDeclaration]")) {
+                section = trimmed.substring(1, trimmed.indexOf(']'));
+                continue;
+            }
+
+            switch (section) {
+                case "PrefixDeclaration" -> {
+                    if (trimmed.isEmpty())
+                        continue;
+                    var split = trimmed.split("\\s+", 2);
+                    if (split.length != 2 || !split[0].endsWith(":"))
+                        throw new IllegalArgumentException("Broken prefix declaration '" + trimmed + "'");
+                    prefixes.put(split[0].substring(0, split[0].length() - 1), split[1].strip());
+                }
+                case "MappingDeclaration" -> {
+                    // A blank line (or the end of the collection) ends the entry
+                    if (trimmed.isEmpty() || trimmed.equals("]]")) {
+                        addMapping(mappings, entry, prefixes);
+                        entry = new HashMap<>();
+                        key = null;
+                        continue;
+                    }
+
+                    var split = line.split("\\s+", 2);
+                    if (!line.isEmpty() && !Character.isWhitespace(line.charAt(0))
+                            && List.of("mappingId", "target", "source").contains(split[0])) {
+                        if (split[0].equals("mappingId")) {
+                            addMapping(mappings, entry, prefixes);
+                            entry = new HashMap<>();
+                        }
+                        key = split[0];
+                        entry.put(key, new StringBuilder(split.length > 1 ? split[1].strip() : ""));
+                    } else if (key != null) {
+                        // Continued from the line before, mostly long SQL
+                        entry.get(key).append('\n').append(trimmed);
+                    } else {
+                        throw new IllegalArgumentException("Unexpected line in mapping '" + trimmed + "'");
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        addMapping(mappings, entry, prefixes);
+
+        return new ObdaMapping(List.copyOf(mappings));
+    }
+
+    private static void addMapping(List<Mapping> mappings, Map<String, StringBuilder> entry,
+            Map<String, String> prefixes) {
+        if (entry.isEmpty())
+            return;
+        if (entry.size() != 3)
+            throw new IllegalArgumentException("Mapping " + entry.get("mappingId")
+                    + " needs a mappingId, a target and a source");
+
+        var id = entry.get("mappingId").toString();
+        try {
+            mappings.add(new Mapping(id, entry.get("source").toString(),
+                    new TargetParser(entry.get("target").toString(), prefixes).parse()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Mapping " + id + ": " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * TARGETS
+     * Turtle with templates: subject verb object (, object)* (; verb object (, object)*)* .
+     */
+
+    private static class TargetParser {
+        private final String text;
+        private final Map<String, String> prefixes;
+        private int pos = 0;
+
+        TargetParser(String text, Map<String, String> prefixes) {
+            this.text = text;
+            this.prefixes = prefixes;
+        }
+
+        List<TripleMap> parse() {
+            var triples = new ArrayList<TripleMap>();
+            while (!peek().isEmpty()) {
+                var subject = term(next());
+                if (!subject.iri())
+                    throw new IllegalArgumentException("Literal as subject in '" + text + "'");
+
+                do {
+                    var verb = next();
+                    var predicate = verb.equals("a") ? RDF.Nodes.type : NodeFactory.createURI(constant(term(verb)));
+                    do {
+                        triples.add(new TripleMap(subject, predicate, term(next())));
+                    } while (skip(","));
+                } while (skip(";") && !peek().equals(".") && !peek().isEmpty());
+
+                if (!skip(".") && !peek().isEmpty())
+                    throw new IllegalArgumentException("Expected '.' in '" + text + "'");
+            }
+            return triples;
+        }
+
+        private Term term(String token) {
+            if (token.startsWith("_:") || token.equals("[") || token.isEmpty())
+                throw new IllegalArgumentException("Unsupported term '" + token + "' in '" + text + "'");
+            if (token.startsWith("<"))
+                return new Term(true, Template.parse(token.substring(1, token.length() - 1)), null, null);
+
+            if (token.startsWith("\"") || token.startsWith("{")) {
+                var lexical = token.startsWith("\"") ? token.substring(1, token.length() - 1) : token;
+                String datatype = null;
+                String lang = null;
+                if (skip("^^"))
+                    datatype = constant(term(next()));
+                else if (peek().startsWith("@"))
+                    lang = next().substring(1);
+                return new Term(false, Template.parse(lexical), datatype, lang);
+            }
+
+            // Prefixed name
+            var colon = token.indexOf(':');
+            if (colon < 0 || !prefixes.containsKey(token.substring(0, colon)))
+                throw new IllegalArgumentException("Unknown prefix in '" + token + "'");
+            return new Term(true, Template.parse(prefixes.get(token.substring(0, colon)) + token.substring(colon + 1)),
+                    null, null);
+        }
+
+        private static String constant(Term term) {
+            if (!term.iri() || !term.template().columns().isEmpty())
+                throw new IllegalArgumentException("Expected a constant IRI, not " + term.template());
+            return term.template().parts().getFirst();
+        }
+
+        // Tokens: <...>, "...", {column}, ^^, @lang, ; , . and names
+        private String next() {
+            var token = peek();
+            pos = end;
+            return token;
+        }
+
+        private int end;
+
+        private String peek() {
+            var start = pos;
+            while (start < text.length() && Character.isWhitespace(text.charAt(start)))
+                start++;
+            if (start == text.length()) {
+                end = start;
+                return "";
+            }
+
+            var c = text.charAt(start);
+            end = start + 1;
+            switch (c) {
+                case '<' -> end = closing(start, '>');
+                case '"' -> {
+                    while (end < text.length() && text.charAt(end) != '"')
+                        end += text.charAt(end) == '\\' ? 2 : 1;
+                    end++;
+                }
+                case '{' -> end = closing(start, '}');
+                case ';', ',' -> {
+                }
+                case '^' -> end = start + 2;
+                default -> {
+                    // Names end before whitespace, ; , ^^ and a final .
+                    while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+                            && text.charAt(end) != ';' && text.charAt(end) != ','
+                            && !text.startsWith("^^", end)
+                            && !(text.charAt(end) == '.' && (end + 1 == text.length()
+                                    || Character.isWhitespace(text.charAt(end + 1))))) {
+                        if (text.charAt(end) == '{')
+                            end = closing(end, '}');
+                        else
+                            end++;
+                    }
+                    // A lone . is the end of the statement
+                    if (c == '.' && end == start)
+                        end = start + 1;
+                }
+            }
+            if (end > text.length())
+                throw new IllegalArgumentException("Unclosed '" + c + "' in '" + text + "'");
+            return text.substring(start, end);
+        }
+
+        private int closing(int start, char close) {
+            var index = text.indexOf(close, start + 1);
+            return index < 0 ? text.length() + 1 : index + 1;
+        }
+
+        private boolean skip(String token) {
+            if (!peek().equals(token))
+                return false;
+            pos = end;
+            return true;
+        }
+    }
+
+    /*
+     * IRI SAFE VALUES
+     * Column values in IRIs get percent-encoded the way R2RML (and Ontop) do it: everything but the
+     * unreserved characters, non-ASCII characters stay as they are.
+     */
+
+    // Characters an encoded value can have
+    private static boolean inValue(char c) {
+        return c > 127 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "-._~%".indexOf(c) >= 0;
+    }
+
+    static String encode(String value) {
+        var sb = new StringBuilder();
+        for (var c : value.toCharArray()) {
+            if (c != '%' && inValue(c))
+                sb.append(c);
+            else
+                sb.append('%').append(HexFormat.of().withUpperCase().toHexDigits((byte) c));
+        }
+        return sb.toString();
+    }
+
+    static String decode(String value) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                sb.append((char) HexFormat.fromHexDigits(value, i + 1, i + 3));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package ifis.endpoint;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryExecException;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryLanguage;
+
+import it.unibz.inf.ontop.injection.OntopSQLOWLAPIConfiguration;
+import it.unibz.inf.ontop.rdf4j.repository.OntopRepository;
+
+/**
+ * Ontop in-process, from the files the Ontop container gets: file.obda, its connection in file.properties
+ * and the ontology in file.owl, if there is one. The queries are Ontop's to reformulate as over HTTP, only
+ * without the round trips and the serialization of the results.
+ */
+public class OntopEndpoint implements Endpoint {
+
+    private final String name;
+    private final OntopRepository repository;
+
+    public OntopEndpoint(Path mapping) {
+        this.name = "obda:" + mapping;
+
+        var base = mapping.toString().replaceFirst("\\.obda$", "");
+        var configuration = OntopSQLOWLAPIConfiguration.defaultBuilder()
+                .nativeOntopMappingFile(mapping.toFile())
+                .propertyFile(base + ".properties");
+        if (Files.exists(Path.of(base + ".owl")))
+            configuration.ontologyFile(base + ".owl");
+
+        // Reads the mapping, the ontology and the schema of the database right away
+        this.repository = OntopRepository.defaultRepository(configuration.build());
+        repository.init();
+    }
+
+    @Override
+    public long select(String sparql, Consumer<Binding> sink) {
+        try (var connection = repository.getConnection();
+                var result = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate()) {
+            long count = 0;
+            while (result.hasNext()) {
+                sink.accept(binding(result.next()));
+                count++;
+            }
+            return count;
+        } catch (RDF4JException e) {
+            throw new QueryExecException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static Binding binding(BindingSet bindings) {
+        var builder = BindingFactory.builder();
+        for (var binding : bindings)
+            builder.add(Var.alloc(binding.getName()), node(binding.getValue()));
+        return builder.build();
+    }
+
+    private static Node node(Value value) {
+        return switch (value) {
+            case IRI iri -> NodeFactory.createURI(iri.stringValue());
+            case BNode bnode -> NodeFactory.createBlankNode(bnode.getID());
+            case Literal literal when literal.getLanguage().isPresent() ->
+                NodeFactory.createLiteral(literal.getLabel(), literal.getLanguage().get());
+            case Literal literal -> NodeFactory.createLiteral(literal.getLabel(),
+                    TypeMapper.getInstance().getSafeTypeByName(literal.getDatatype().stringValue()));
+            default -> throw new IllegalArgumentException("Unknown RDF term " + value);
+        };
+    }
+}
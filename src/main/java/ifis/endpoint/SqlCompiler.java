@@ -0,0 +1,829 @@
+package ifis.endpoint;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QueryParseException;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpTable;
+import org.apache.jena.sparql.algebra.op.OpUnion;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.E_Bound;
+import org.apache.jena.sparql.expr.E_Coalesce;
+import org.apache.jena.sparql.expr.E_Conditional;
+import org.apache.jena.sparql.expr.E_Datatype;
+import org.apache.jena.sparql.expr.E_Equals;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_GreaterThanOrEqual;
+import org.apache.jena.sparql.expr.E_LessThan;
+import org.apache.jena.sparql.expr.E_LessThanOrEqual;
+import org.apache.jena.sparql.expr.E_LogicalAnd;
+import org.apache.jena.sparql.expr.E_LogicalNot;
+import org.apache.jena.sparql.expr.E_LogicalOr;
+import org.apache.jena.sparql.expr.E_NotEquals;
+import org.apache.jena.sparql.expr.E_OneOf;
+import org.apache.jena.sparql.expr.E_Regex;
+import org.apache.jena.sparql.expr.E_SameTerm;
+import org.apache.jena.sparql.expr.E_StrLength;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggCount;
+import org.apache.jena.sparql.expr.aggregate.AggCountVar;
+import org.apache.jena.sparql.expr.aggregate.AggSum;
+import org.apache.jena.sparql.expr.nodevalue.XSDFuncOp;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.apache.jena.vocabulary.RDF;
+
+import ifis.endpoint.ObdaMapping.Mapping;
+import ifis.endpoint.ObdaMapping.Term;
+import ifis.endpoint.ObdaMapping.TripleMap;
+import ifis.exception.NotCompilableException;
+
+/**
+ * Compiles the generated queries into SQL over the sources of an ObdaMapping, so they don't have to take
+ * the way over a SPARQL endpoint. Covers what the OBDA dialect (see SPARQLGenerator) writes: triple
+ * patterns with constant predicates, UNION, FILTER and GROUP BY with COUNT and SUM. Anything else throws
+ * a NotCompilableException.
+ *
+ * Every combination of mappings the triple patterns can come from is a SQL query of its own:
+ *   SELECT t0.s0, COUNT(*), SUM(CASE WHEN (CHAR_LENGTH(t1.o0) <= 17) THEN 1 ELSE 0 END)
+ *   FROM (SELECT DISTINCT m.id AS s0 FROM (source) m WHERE m.id IS NOT NULL) t0, (...) t1
+ *   WHERE t0.s0 = t1.s0
+ *   GROUP BY t0.s0
+ * The derived tables hold the distinct triples of their mappings, mappings writing their terms the same
+ * way share one, so a triple from two of them still counts once. The rows of all queries get merged into
+ * the rows of the SPARQL query, HAVING and the projected expressions are evaluated on those. Mappings
+ * writing a term in different ways that may still give the same term (:{id} and :bk{nr}) would have
+ * their triples counted twice, only DISTINCT rows of such queries are compiled.
+ */
+public class SqlCompiler {
+
+    /**
+     * XSD datatype of a column of a mapping's source, null if it isn't known.
+     */
+    public interface ColumnTypes {
+        String datatype(Mapping mapping, String column);
+    }
+
+    /**
+     * Runs a SQL query, every row gets handed over as the text of its columns.
+     */
+    public interface Rows {
+        void select(String sql, Consumer<String[]> row);
+    }
+
+    // Combinations of mappings beyond that are left to the endpoint
+    private static final int MAX_BRANCHES = 64;
+
+    private static final String TRUE = "1 = 1";
+    private static final String FALSE = "1 = 0";
+
+    private static final Set<String> INTEGER_TYPES = Set.of(XSDDatatype.XSDinteger, XSDDatatype.XSDint,
+            XSDDatatype.XSDlong, XSDDatatype.XSDshort, XSDDatatype.XSDbyte, XSDDatatype.XSDnonNegativeInteger,
+            XSDDatatype.XSDpositiveInteger, XSDDatatype.XSDnonPositiveInteger, XSDDatatype.XSDnegativeInteger,
+            XSDDatatype.XSDunsignedInt, XSDDatatype.XSDunsignedLong, XSDDatatype.XSDunsignedShort,
+            XSDDatatype.XSDunsignedByte).stream().map(XSDDatatype::getURI).collect(Collectors.toSet());
+    private static final Set<String> NUMERIC_TYPES = Set.of(XSDDatatype.XSDdecimal.getURI(),
+            XSDDatatype.XSDdouble.getURI(), XSDDatatype.XSDfloat.getURI());
+    private static final Set<String> STRING_TYPES = Set.of(XSDDatatype.XSDstring.getURI(), RDF.langString.getURI());
+
+    private final ObdaMapping mapping;
+    private final ColumnTypes columnTypes;
+    private final String regex;
+    private final boolean backslashEscapes;
+
+    /**
+     * @param regex            SQL of a regex match with the column and the quoted pattern as %s, null if the
+     *                         database has none
+     * @param backslashEscapes whether a backslash escapes the next character in string literals of the
+     *                         database (MySQL, MariaDB)
+     */
+    public SqlCompiler(ObdaMapping mapping, ColumnTypes columnTypes, String regex, boolean backslashEscapes) {
+        this.mapping = mapping;
+        this.columnTypes = columnTypes;
+        this.regex = regex;
+        this.backslashEscapes = backslashEscapes;
+    }
+
+    /*
+     * QUERY
+     */
+
+    // What happens to the rows of the pattern: grouped by vars and aggregated, or projected to vars
+    private record Head(boolean grouped, List<Var> vars, List<ExprAggregator> aggregates, List<Op> post,
+            List<Var> projection, boolean distinct) {
+    }
+
+    // A term of the pattern in a SQL query: its columns there and how they make the term
+    private record Slot(List<String> columns, Term term, String datatype) {
+    }
+
+    private record Branch(String sql, List<Slot> slots, List<Boolean> integerAggregates) {
+    }
+
+    /**
+     * The SQL queries of a SPARQL query, and how their rows make its rows.
+     */
+    public static class SqlQuery {
+        private final Head head;
+        private final List<Branch> branches;
+
+        private SqlQuery(Head head, List<Branch> branches) {
+            this.head = head;
+            this.branches = branches;
+        }
+
+        /**
+         * Runs the SQL queries and hands every row of the SPARQL query to the sink. A single query
+         * gets streamed, the rows of several are merged first.
+         *
+         * @return the number of rows
+         */
+        public long execute(Rows rows, Consumer<Binding> sink) {
+            var count = new long[1];
+            Consumer<Binding> emit = (binding) -> {
+                binding = post(binding);
+                if (binding != null) {
+                    sink.accept(binding);
+                    count[0]++;
+                }
+            };
+
+            if (branches.size() == 1) {
+                var branch = branches.getFirst();
+                rows.select(branch.sql(), (row) -> emit.accept(toBinding(branch, row)));
+            } else if (head.grouped()) {
+                // Counts and sums of the same group add up
+                var groups = new LinkedHashMap<List<Node>, NodeValue[]>();
+                for (var branch : branches) {
+                    rows.select(branch.sql(), (row) -> {
+                        var binding = toBinding(branch, row);
+                        var key = head.vars().stream().map(binding::get).toList();
+                        var values = head.aggregates().stream().map((a) -> NodeValue.makeNode(binding.get(a.getVar())))
+                                .toArray(NodeValue[]::new);
+                        groups.merge(key, values, (a, b) -> {
+                            for (int i = 0; i < a.length; i++)
+                                a[i] = XSDFuncOp.numAdd(a[i], b[i]);
+                            return a;
+                        });
+                    });
+                }
+                // Without GROUP BY there is a row even if nothing matched
+                if (groups.isEmpty() && head.vars().isEmpty())
+                    groups.put(List.of(), head.aggregates().stream().map((a) -> NodeValue.nvZERO)
+                            .toArray(NodeValue[]::new));
+                groups.forEach((key, values) -> {
+                    var builder = BindingFactory.builder();
+                    for (int i = 0; i < key.size(); i++)
+                        builder.add(head.vars().get(i), key.get(i));
+                    for (int i = 0; i < values.length; i++)
+                        builder.add(head.aggregates().get(i).getVar(), values[i].asNode());
+                    emit.accept(builder.build());
+                });
+            } else {
+                var seen = new HashSet<Binding>();
+                for (var branch : branches) {
+                    rows.select(branch.sql(), (row) -> {
+                        var binding = toBinding(branch, row);
+                        if (!head.distinct() || seen.add(binding))
+                            emit.accept(binding);
+                    });
+                }
+            }
+            return count[0];
+        }
+
+        private Binding toBinding(Branch branch, String[] row) {
+            var builder = BindingFactory.builder();
+            var column = 0;
+            for (int i = 0; i < head.vars().size(); i++) {
+                var slot = branch.slots().get(i);
+                var values = List.of(row).subList(column, column + slot.columns().size());
+                builder.add(head.vars().get(i), slot.term().toNode(values, slot.datatype()));
+                column += slot.columns().size();
+            }
+            for (int i = 0; i < branch.integerAggregates().size(); i++) {
+                var value = new BigDecimal(row[column + i]);
+                builder.add(head.aggregates().get(i).getVar(), (branch.integerAggregates().get(i)
+                        ? NodeValue.makeInteger(value.toBigIntegerExact())
+                        : NodeValue.makeDecimal(value)).asNode());
+            }
+            return builder.build();
+        }
+
+        // Projected expressions, HAVING and the projection, null if HAVING drops the row
+        private Binding post(Binding binding) {
+            var env = new FunctionEnvBase();
+            for (var op : head.post()) {
+                switch (op) {
+                    case OpExtend extend -> {
+                        for (var var : extend.getVarExprList().getVars()) {
+                            try {
+                                var value = extend.getVarExprList().getExpr(var).eval(binding, env);
+                                binding = BindingFactory.binding(binding, var, value.asNode());
+                            } catch (ExprEvalException e) {
+                                // Stays unbound
+                            }
+                        }
+                    }
+                    case OpFilter filter -> {
+                        for (var expr : filter.getExprs()) {
+                            if (!expr.isSatisfied(binding, env))
+                                return null;
+                        }
+                    }
+                    default -> throw new IllegalStateException(op.getName());
+                }
+            }
+
+            var builder = BindingFactory.builder();
+            for (var var : head.projection()) {
+                var node = binding.get(var);
+                if (node != null)
+                    builder.add(var, node);
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @throws NotCompilableException if the query is more than this covers
+     */
+    public SqlQuery compile(String sparql) {
+        Op op;
+        try {
+            op = Algebra.compile(QueryFactory.create(sparql));
+        } catch (QueryParseException e) {
+            throw new NotCompilableException(e.getMessage(), e);
+        }
+
+        var distinct = op instanceof OpDistinct;
+        if (op instanceof OpDistinct opDistinct)
+            op = opDistinct.getSubOp();
+        if (!(op instanceof OpProject project))
+            throw new NotCompilableException("Query without projection");
+        op = project.getSubOp();
+
+        // Between the projection and the group
+        var post = new ArrayList<Op>();
+        var sub = op;
+        while (sub instanceof OpFilter || sub instanceof OpExtend) {
+            post.addFirst(sub);
+            sub = sub instanceof OpFilter filter ? filter.getSubOp() : ((OpExtend) sub).getSubOp();
+        }
+
+        Head head;
+        if (sub instanceof OpGroup group) {
+            var groupVars = group.getGroupVars();
+            for (var var : groupVars.getVars()) {
+                if (groupVars.getExpr(var) != null)
+                    throw new NotCompilableException("Grouped by an expression");
+            }
+            head = new Head(true, groupVars.getVars(), group.getAggregators(), post, project.getVars(), distinct);
+            op = group.getSubOp();
+        } else {
+            // Filters without a group belong to the pattern
+            if (post.stream().anyMatch((o) -> o instanceof OpExtend))
+                throw new NotCompilableException("Projected expressions without GROUP BY");
+            head = new Head(false, project.getVars(), List.of(), List.of(), project.getVars(), distinct);
+        }
+
+        var branches = new ArrayList<Branch>();
+        for (var pattern : flatten(op))
+            compileBranch(pattern, head, branches);
+        return new SqlQuery(head, branches);
+    }
+
+    /*
+     * PATTERN
+     * The pattern as a union of branches, each only triples and filters.
+     */
+
+    private record Pattern(List<Triple> triples, List<Expr> filters) {
+
+        Set<Var> vars() {
+            var vars = new HashSet<Var>();
+            for (var triple : triples) {
+                for (var node : List.of(triple.getSubject(), triple.getPredicate(), triple.getObject())) {
+                    if (node.isVariable())
+                        vars.add(Var.alloc(node));
+                }
+            }
+            return vars;
+        }
+    }
+
+    private static List<Pattern> flatten(Op op) {
+        return switch (op) {
+            case OpBGP bgp -> List.of(new Pattern(bgp.getPattern().getList(), List.of()));
+            case OpTable table when table.isJoinIdentity() -> List.of(new Pattern(List.of(), List.of()));
+            case OpJoin join -> product(flatten(join.getLeft()), flatten(join.getRight()));
+            case OpSequence sequence -> {
+                var patterns = List.of(new Pattern(List.of(), List.of()));
+                for (var element : sequence.getElements())
+                    patterns = product(patterns, flatten(element));
+                yield patterns;
+            }
+            case OpUnion union -> {
+                var patterns = new ArrayList<>(flatten(union.getLeft()));
+                patterns.addAll(flatten(union.getRight()));
+                yield patterns;
+            }
+            case OpFilter filter -> {
+                var patterns = new ArrayList<Pattern>();
+                for (var pattern : flatten(filter.getSubOp())) {
+                    // Moving the filter up to the whole query would change what it sees otherwise
+                    if (!pattern.vars().containsAll(filter.getExprs().getVarsMentioned()))
+                        throw new NotCompilableException("Filter on variables from outside its group");
+                    var filters = new ArrayList<>(pattern.filters());
+                    filter.getExprs().forEach(filters::add);
+                    patterns.add(new Pattern(pattern.triples(), filters));
+                }
+                yield patterns;
+            }
+            default -> throw new NotCompilableException("No SQL for " + op.getName());
+        };
+    }
+
+    private static List<Pattern> product(List<Pattern> left, List<Pattern> right) {
+        var patterns = new ArrayList<Pattern>();
+        for (var l : left) {
+            for (var r : right) {
+                var triples = new ArrayList<>(l.triples());
+                triples.addAll(r.triples());
+                var filters = new ArrayList<>(l.filters());
+                filters.addAll(r.filters());
+                patterns.add(new Pattern(triples, filters));
+            }
+        }
+        return patterns;
+    }
+
+    /*
+     * MAPPINGS
+     */
+
+    // A triple map a triple pattern can come from, with the datatypes of its literals
+    private record Candidate(Mapping mapping, TripleMap triple, String objectType) {
+
+        // Candidates with the same key produce terms written the same way
+        List<Object> key() {
+            return List.of(triple.subject().template().parts(), triple.object().iri(),
+                    triple.object().template().parts(), String.valueOf(objectType));
+        }
+    }
+
+    private List<List<Candidate>> candidates(Triple triple) {
+        if (!triple.getPredicate().isURI())
+            throw new NotCompilableException("Triple pattern without a constant predicate");
+        for (var node : List.of(triple.getSubject(), triple.getObject())) {
+            if (!node.isVariable() && !node.isURI())
+                throw new NotCompilableException("Literal or blank node in a triple pattern");
+        }
+
+        var groups = new LinkedHashMap<List<Object>, List<Candidate>>();
+        for (var m : mapping.getMappings()) {
+            for (var tripleMap : m.triples()) {
+                if (!tripleMap.predicate().equals(triple.getPredicate())
+                        || !produces(tripleMap.subject(), triple.getSubject())
+                        || !produces(tripleMap.object(), triple.getObject()))
+                    continue;
+
+                var candidate = new Candidate(m, tripleMap, datatype(m, tripleMap.object()));
+                groups.computeIfAbsent(candidate.key(), (k) -> new ArrayList<>()).add(candidate);
+            }
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static boolean mayOverlap(List<List<Candidate>> groups) {
+        for (int i = 0; i < groups.size(); i++) {
+            for (int j = i + 1; j < groups.size(); j++) {
+                if (mayOverlap(groups.get(i).getFirst(), groups.get(j).getFirst()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the triple maps of two candidates may produce the same triple
+    private static boolean mayOverlap(Candidate a, Candidate b) {
+        var subject = a.triple().subject();
+        var object = a.triple().object();
+        return subject.iri() == b.triple().subject().iri()
+                && subject.template().mayOverlap(b.triple().subject().template(), subject.iri())
+                && object.iri() == b.triple().object().iri()
+                && Objects.equals(a.objectType(), b.objectType())
+                && object.template().mayOverlap(b.triple().object().template(), object.iri());
+    }
+
+    private static boolean produces(Term term, Node node) {
+        return node.isVariable() || (term.iri() && term.template().match(node.getURI(), true) != null);
+    }
+
+    // Datatype of a literal, null for IRIs and if the database doesn't tell
+    private String datatype(Mapping m, Term term) {
+        if (term.iri())
+            return null;
+        if (term.lang() != null)
+            return RDF.langString.getURI();
+        if (term.datatype() != null)
+            return term.datatype();
+
+        // Text around the column makes it a string, a bare column has the type of the column
+        var template = term.template();
+        if (template.columns().size() == 1 && template.parts().stream().allMatch(String::isEmpty))
+            return columnTypes.datatype(m, template.columns().getFirst());
+        return XSDDatatype.XSDstring.getURI();
+    }
+
+    /*
+     * SQL
+     */
+
+    private void compileBranch(Pattern pattern, Head head, List<Branch> branches) {
+        var alternatives = new ArrayList<List<List<Candidate>>>();
+        long combinations = 1;
+        for (var triple : pattern.triples()) {
+            var groups = candidates(triple);
+            if (groups.isEmpty())
+                return; // Nothing produces the triple
+            // A triple of two groups comes out of two SQL queries, only merging distinct rows drops one
+            if ((head.grouped() || !head.distinct()) && mayOverlap(groups))
+                throw new NotCompilableException("Mappings of <" + triple.getPredicate().getURI()
+                        + "> may write the same triple in different ways");
+            alternatives.add(groups);
+            combinations *= groups.size();
+        }
+        if (branches.size() + combinations > MAX_BRANCHES)
+            throw new NotCompilableException("More than " + MAX_BRANCHES + " SQL queries");
+
+        var choice = new int[alternatives.size()];
+        for (long c = 0; c < combinations; c++) {
+            var chosen = new ArrayList<List<Candidate>>();
+            for (int i = 0; i < choice.length; i++)
+                chosen.add(alternatives.get(i).get(choice[i]));
+            var branch = compileCombination(pattern, chosen, head);
+            if (branch != null)
+                branches.add(branch);
+
+            // Next combination
+            for (int i = 0; i < choice.length && ++choice[i] == alternatives.get(i).size(); i++)
+                choice[i] = 0;
+        }
+    }
+
+    // The SQL query of one combination, null if it can't have any rows
+    private Branch compileCombination(Pattern pattern, List<List<Candidate>> chosen, Head head) {
+        var from = new ArrayList<String>();
+        var where = new ArrayList<String>();
+        var vars = new HashMap<Var, Slot>();
+
+        for (int i = 0; i < chosen.size(); i++) {
+            var triple = pattern.triples().get(i);
+            var candidates = chosen.get(i);
+            var alias = "t" + i;
+            from.add("(" + derivedTable(candidates) + ") " + alias);
+
+            var first = candidates.getFirst();
+            var nodes = new Node[] { triple.getSubject(), triple.getObject() };
+            var slots = new Slot[] {
+                    new Slot(columns(alias, "s", first.triple().subject()), first.triple().subject(), null),
+                    new Slot(columns(alias, "o", first.triple().object()), first.triple().object(),
+                            first.objectType()) };
+
+            for (int position = 0; position < 2; position++) {
+                var node = nodes[position];
+                var slot = slots[position];
+
+                if (node.isVariable()) {
+                    var known = vars.putIfAbsent(Var.alloc(node), slot);
+                    if (known != null && !join(known, slot, where))
+                        return null;
+                } else {
+                    var values = slot.term().template().match(node.getURI(), true);
+                    for (int k = 0; k < values.size(); k++)
+                        where.add(slot.columns().get(k) + " = " + quote(values.get(k)));
+                }
+            }
+        }
+
+        for (var filter : pattern.filters()) {
+            var condition = bool(filter, vars);
+            if (condition.equals(FALSE) || condition.equals(ERROR))
+                return null;
+            if (!condition.equals(TRUE))
+                where.add(condition);
+        }
+
+        var slots = new ArrayList<Slot>();
+        var select = new ArrayList<String>();
+        for (var var : head.vars()) {
+            var slot = vars.get(var);
+            if (slot == null)
+                throw new NotCompilableException("?" + var.getVarName() + " isn't bound by the pattern");
+            slots.add(slot);
+            select.addAll(slot.columns());
+        }
+        var groupBy = List.copyOf(select);
+
+        var integerAggregates = new ArrayList<Boolean>();
+        for (var aggregate : head.aggregates()) {
+            var number = aggregate(aggregate, vars);
+            select.add(number.sql());
+            integerAggregates.add(number.integer());
+        }
+        if (select.isEmpty())
+            throw new NotCompilableException("Nothing to select");
+
+        var sql = new StringBuilder("SELECT ");
+        if (!head.grouped() && head.distinct())
+            sql.append("DISTINCT ");
+        sql.append(String.join(", ", select));
+        sql.append("\nFROM ").append(String.join(",\n     ", from));
+        if (!where.isEmpty())
+            sql.append("\nWHERE ").append(String.join("\n  AND ", where));
+        if (head.grouped() && !groupBy.isEmpty())
+            sql.append("\nGROUP BY ").append(String.join(", ", groupBy));
+
+        return new Branch(sql.toString(), slots, integerAggregates);
+    }
+
+    // The distinct terms of the triples of the candidates, which write them the same way
+    private static String derivedTable(List<Candidate> candidates) {
+        var selects = new ArrayList<String>();
+        for (var candidate : candidates) {
+            var columns = new ArrayList<String>();
+            var notNull = new ArrayList<String>();
+            for (var position : List.of("s", "o")) {
+                var term = position.equals("s") ? candidate.triple().subject() : candidate.triple().object();
+                var templateColumns = term.template().columns();
+                for (int k = 0; k < templateColumns.size(); k++) {
+                    columns.add("m." + templateColumns.get(k) + " AS " + position + k);
+                    notNull.add("m." + templateColumns.get(k) + " IS NOT NULL");
+                }
+            }
+            if (columns.isEmpty())
+                columns.add("1 AS one");
+
+            selects.add("SELECT " + (candidates.size() == 1 ? "DISTINCT " : "") + String.join(", ", columns)
+                    + " FROM (" + candidate.mapping().source() + ") m"
+                    + (notNull.isEmpty() ? "" : " WHERE " + String.join(" AND ", notNull)));
+        }
+        // UNION drops the duplicates between the mappings
+        return String.join(" UNION ", selects);
+    }
+
+    private static List<String> columns(String alias, String position, Term term) {
+        var columns = new ArrayList<String>();
+        for (int k = 0; k < term.template().columns().size(); k++)
+            columns.add(alias + "." + position + k);
+        return columns;
+    }
+
+    // Conditions making two occurrences of a variable the same term, false if they never are
+    private static boolean join(Slot known, Slot slot, List<String> where) {
+        if (known.term().iri() != slot.term().iri())
+            return false;
+        if (!known.term().iri() && !String.valueOf(known.datatype()).equals(String.valueOf(slot.datatype())))
+            return false;
+
+        if (known.term().template().parts().equals(slot.term().template().parts())) {
+            for (int k = 0; k < known.columns().size(); k++)
+                where.add(known.columns().get(k) + " = " + slot.columns().get(k));
+            return true;
+        }
+        if (!known.term().template().mayOverlap(slot.term().template(), slot.term().iri()))
+            return false;
+        throw new NotCompilableException("Join of terms written in different ways");
+    }
+
+    /*
+     * EXPRESSIONS
+     * Errors of SPARQL are NULL in SQL, which ends up the same: a filter with an error drops the row,
+     * false && error is false, true || error is true, the rest of && || ! with an error is an error,
+     * IF(error, ...) is one as well and COALESCE skips them.
+     */
+
+    private static final String ERROR = "NULL";
+
+    private record Number(String sql, boolean integer) {
+    }
+
+    private Number aggregate(ExprAggregator aggregate, Map<Var, Slot> vars) {
+        return switch (aggregate.getAggregator()) {
+            case AggCount count -> new Number("COUNT(*)", true);
+            // Everything bound by the pattern is bound in every row
+            case AggCountVar count when count.getExprList().get(0) instanceof ExprVar var ->
+                new Number(vars.containsKey(var.asVar()) ? "COUNT(*)" : "0", true);
+            case AggSum sum -> {
+                var number = number(sum.getExprList().get(0), vars);
+                if (number.sql().equals(ERROR))
+                    throw new NotCompilableException("SUM of an error");
+                yield new Number("SUM(" + number.sql() + ")", number.integer());
+            }
+            default -> throw new NotCompilableException("No SQL for " + aggregate.getAggregator());
+        };
+    }
+
+    private Number number(Expr expr, Map<Var, Slot> vars) {
+        return switch (expr) {
+            case NodeValue value when value.isInteger() -> new Number(value.getInteger().toString(), true);
+            case NodeValue value when value.isDecimal() -> new Number(value.getDecimal().toPlainString(), false);
+            case NodeValue value when value.isDouble() || value.isFloat() ->
+                new Number(Double.toString(value.getDouble()), false);
+            case ExprVar var -> {
+                var slot = literal(var, vars);
+                if (slot == null || !(is(INTEGER_TYPES, slot) || is(NUMERIC_TYPES, slot)))
+                    yield new Number(ERROR, false);
+                yield new Number(column(var, slot), is(INTEGER_TYPES, slot));
+            }
+            case E_StrLength length when length.getArg() instanceof ExprVar var -> {
+                var slot = literal(var, vars);
+                yield new Number(slot == null || !is(STRING_TYPES, slot)
+                        ? ERROR
+                        : "CHAR_LENGTH(" + column(var, slot) + ")", true);
+            }
+            case E_Conditional conditional -> {
+                var condition = bool(conditional.getArg(1), vars);
+                var then = number(conditional.getArg(2), vars);
+                var otherwise = number(conditional.getArg(3), vars);
+                var integer = then.integer() && otherwise.integer();
+                if (condition.equals(TRUE) || condition.equals(FALSE) || condition.equals(ERROR))
+                    yield condition.equals(TRUE) ? then : condition.equals(FALSE) ? otherwise
+                            : new Number(ERROR, integer);
+                yield new Number("CASE WHEN " + condition + " THEN " + then.sql() + " WHEN NOT (" + condition
+                        + ") THEN " + otherwise.sql() + " END", integer);
+            }
+            case E_Coalesce coalesce -> {
+                var args = new ArrayList<String>();
+                var integer = true;
+                for (var arg : coalesce.getArgs()) {
+                    var number = number(arg, vars);
+                    if (!number.sql().equals(ERROR))
+                        args.add(number.sql());
+                    integer &= number.integer();
+                }
+                yield new Number(args.isEmpty() ? ERROR
+                        : args.size() == 1 ? args.getFirst()
+                        : "COALESCE(" + String.join(", ", args) + ")", integer);
+            }
+            default -> throw new NotCompilableException("No SQL for " + expr);
+        };
+    }
+
+    private String bool(Expr expr, Map<Var, Slot> vars) {
+        return switch (expr) {
+            case NodeValue value when value.isBoolean() -> value.getBoolean() ? TRUE : FALSE;
+            case E_LogicalAnd and -> and(bool(and.getArg1(), vars), bool(and.getArg2(), vars));
+            case E_LogicalOr or -> or(bool(or.getArg1(), vars), bool(or.getArg2(), vars));
+            case E_LogicalNot not -> {
+                var arg = bool(not.getArg(), vars);
+                yield arg.equals(TRUE) ? FALSE : arg.equals(FALSE) ? TRUE : arg.equals(ERROR) ? ERROR
+                        : "NOT (" + arg + ")";
+            }
+            case E_Bound bound when bound.getArg() instanceof ExprVar var ->
+                vars.containsKey(var.asVar()) ? TRUE : FALSE;
+            case E_SameTerm sameTerm when sameTerm.getArg1() instanceof ExprVar var
+                    && sameTerm.getArg2() instanceof NodeValue value && value.isIRI() ->
+                sameIri(var, value, vars);
+            case E_Equals equals when equals.getArg1() instanceof E_Datatype datatype
+                    && datatype.getArg() instanceof ExprVar var && equals.getArg2() instanceof NodeValue value
+                    && value.isIRI() -> {
+                var slot = vars.get(var.asVar());
+                if (slot == null || slot.term().iri())
+                    yield ERROR;
+                if (slot.datatype() == null)
+                    throw new NotCompilableException("Datatype of ?" + var.getVarName() + " unknown");
+                yield slot.datatype().equals(value.asNode().getURI()) ? TRUE : FALSE;
+            }
+            // An IRI is never equal to a literal, no error there
+            case E_Equals equals when equals.getArg1() instanceof ExprVar var
+                    && equals.getArg2() instanceof NodeValue value && value.isIRI() ->
+                sameIri(var, value, vars);
+            case E_OneOf oneOf when oneOf.getLHS() instanceof ExprVar var -> {
+                var condition = FALSE;
+                for (var element : oneOf.getRHS()) {
+                    condition = or(condition, element instanceof NodeValue value && value.isIRI()
+                            ? sameIri(var, value, vars)
+                            : compare(new E_Equals(var, element), vars));
+                }
+                yield condition;
+            }
+            case E_Regex regexp when regexp.getArg(1) instanceof ExprVar var
+                    && regexp.getArg(2) instanceof NodeValue pattern && pattern.isString()
+                    && regexp.getArgs().size() == 2 -> {
+                var slot = literal(var, vars);
+                if (slot == null || !is(STRING_TYPES, slot))
+                    yield ERROR;
+                if (regex == null)
+                    throw new NotCompilableException("No regex in this database");
+                yield regex.formatted(column(var, slot), quote(pattern.getString()));
+            }
+            case ExprFunction2 comparison -> compare(comparison, vars);
+            default -> throw new NotCompilableException("No SQL for " + expr);
+        };
+    }
+
+    // Only numbers, the only kind the generated queries compare
+    private String compare(ExprFunction2 comparison, Map<Var, Slot> vars) {
+        var operator = switch (comparison) {
+            case E_Equals e -> "=";
+            case E_NotEquals e -> "<>";
+            case E_LessThan e -> "<";
+            case E_LessThanOrEqual e -> "<=";
+            case E_GreaterThan e -> ">";
+            case E_GreaterThanOrEqual e -> ">=";
+            default -> throw new NotCompilableException("No SQL for " + comparison);
+        };
+        var left = number(comparison.getArg1(), vars);
+        var right = number(comparison.getArg2(), vars);
+        if (left.sql().equals(ERROR) || right.sql().equals(ERROR))
+            return ERROR;
+        return "(" + left.sql() + " " + operator + " " + right.sql() + ")";
+    }
+
+    private String sameIri(ExprVar var, NodeValue value, Map<Var, Slot> vars) {
+        var slot = vars.get(var.asVar());
+        if (slot == null)
+            return ERROR;
+        if (!slot.term().iri())
+            return FALSE;
+
+        var values = slot.term().template().match(value.asNode().getURI(), true);
+        if (values == null)
+            return FALSE;
+        var condition = TRUE;
+        for (int k = 0; k < values.size(); k++)
+            condition = and(condition, slot.columns().get(k) + " = " + quote(values.get(k)));
+        return condition;
+    }
+
+    // The slot of a variable bound to a literal, null if it is unbound or an IRI (errors for literal functions)
+    private static Slot literal(ExprVar var, Map<Var, Slot> vars) {
+        var slot = vars.get(var.asVar());
+        if (slot == null || slot.term().iri())
+            return null;
+        if (slot.datatype() == null)
+            throw new NotCompilableException("Datatype of ?" + var.getVarName() + " unknown");
+        return slot;
+    }
+
+    // The column of a literal that is exactly the column
+    private static String column(ExprVar var, Slot slot) {
+        if (slot.columns().size() != 1 || !slot.term().template().parts().stream().allMatch(String::isEmpty))
+            throw new NotCompilableException("?" + var.getVarName() + " isn't a column");
+        return slot.columns().getFirst();
+    }
+
+    private static boolean is(Set<String> datatypes, Slot slot) {
+        return slot.datatype() != null && datatypes.contains(slot.datatype());
+    }
+
+    // Constants get folded, so branches that can't match are dropped before they get to the database
+    private static String and(String left, String right) {
+        if (left.equals(FALSE) || right.equals(FALSE))
+            return FALSE;
+        return left.equals(TRUE) ? right : right.equals(TRUE) ? left : "(" + left + " AND " + right + ")";
+    }
+
+    private static String or(String left, String right) {
+        if (left.equals(TRUE) || right.equals(TRUE))
+            return TRUE;
+        return left.equals(FALSE) ? right : right.equals(FALSE) ? left : "(" + left + " OR " + right + ")";
+    }
+
+    private String quote(String text) {
+        if (backslashEscapes)
+            text = text.replace("\\", "\\\\");
+        return "'" + text.replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,212 @@
+package ifis.endpoint;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.query.QueryExecException;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+import ifis.endpoint.ObdaMapping.Mapping;
+import ifis.exception.NotCompilableException;
+
+/**
+ * Runs the queries as SQL right on the database behind Ontop, compiled by the SqlCompiler from the same
+ * .obda mapping. Whatever the compiler doesn't cover goes to the SPARQL endpoint as before.
+ * Only worth it with the OBDA dialect, the SPARQL one is mostly OPTIONAL and property paths.
+ */
+public class SqlEndpoint implements Endpoint {
+
+    // Rows fetched per round trip, drivers that buffer the whole result (PostgreSQL) stream with it
+    private static final int FETCH_SIZE = 1000;
+
+    private final Endpoint fallback;
+    private final String url;
+    private final Properties credentials = new Properties();
+    private final SqlCompiler compiler;
+
+    // Connections between queries, opened on demand so there are as many as queries in flight
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    // Column types of the sources by mapping id, column names ignore case like SQL does
+    private final Map<String, Map<String, String>> columnTypes = new ConcurrentHashMap<>();
+
+    // Why queries went to the fallback, each only logged once
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param properties connection of the database in Ontop's notation (jdbc.url, jdbc.user,
+     *                   jdbc.password, jdbc.driver)
+     */
+    public SqlEndpoint(ObdaMapping mapping, Properties properties, Endpoint fallback) {
+        this.fallback = fallback;
+        this.url = properties.getProperty("jdbc.url");
+        if (url == null)
+            throw new IllegalArgumentException("No jdbc.url in the connection properties");
+        if (properties.getProperty("jdbc.user") != null)
+            credentials.setProperty("user", properties.getProperty("jdbc.user"));
+        if (properties.getProperty("jdbc.password") != null)
+            credentials.setProperty("password", properties.getProperty("jdbc.password"));
+
+        // Older drivers don't register themselves
+        if (properties.getProperty("jdbc.driver") != null) {
+            try {
+                Class.forName(properties.getProperty("jdbc.driver"));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("JDBC driver " + e.getMessage() + " not on the class path");
+            }
+        }
+
+        var product = withConnection((connection) -> connection.getMetaData().getDatabaseProductName());
+        this.compiler = new SqlCompiler(mapping, this::columnType, regex(product), backslashEscapes(product));
+    }
+
+    /**
+     * Reads the mapping and Ontop's connection.properties.
+     */
+    public static SqlEndpoint of(Path mapping, Path properties, Endpoint fallback) throws IOException {
+        var connection = new Properties();
+        try (Reader reader = Files.newBufferedReader(properties)) {
+            connection.load(reader);
+        }
+        return new SqlEndpoint(ObdaMapping.parse(mapping), connection, fallback);
+    }
+
+    @Override
+    public long select(String sparql, Consumer<Binding> sink) {
+        SqlCompiler.SqlQuery query;
+        try {
+            query = compiler.compile(sparql);
+        } catch (NotCompilableException e) {
+            if (unsupported.add(e.getMessage()))
+                System.err.println("Not compiled to SQL, left to " + fallback.getName() + ": " + e.getMessage());
+            return fallback.select(sparql, sink);
+        }
+
+        return withConnection((connection) -> query.execute((sql, row) -> {
+            try (var statement = connection.createStatement()) {
+                statement.setFetchSize(FETCH_SIZE);
+                try (var results = statement.executeQuery(sql)) {
+                    var columns = results.getMetaData().getColumnCount();
+                    while (results.next()) {
+                        var values = new String[columns];
+                        for (int i = 0; i < columns; i++)
+                            values[i] = text(results.getObject(i + 1));
+                        row.accept(values);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new QueryExecException(e.getMessage() + "\n" + sql, e);
+            }
+        }, sink));
+    }
+
+    // Same endpoint as far as caches and concurrency limits go, only faster
+    @Override
+    public String getName() {
+        return fallback.getName();
+    }
+
+    /*
+     * DATABASE
+     */
+
+    private interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    // Runs on an idle connection, broken ones are closed instead of handed out again
+    private <T> T withConnection(Work<T> work) {
+        var connection = idle.poll();
+        try {
+            if (connection == null) {
+                connection = DriverManager.getConnection(url, credentials);
+                // Cursors only stream inside a transaction
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+            }
+            var result = work.run(connection);
+            connection.rollback();
+            idle.add(connection);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e instanceof SQLException sqlException
+                    ? new QueryExecException(sqlException.getMessage(), sqlException)
+                    : (RuntimeException) e;
+        }
+    }
+
+    private String columnType(Mapping mapping, String column) {
+        var types = columnTypes.computeIfAbsent(mapping.id(), (id) -> withConnection((connection) -> {
+            var columns = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            try (var statement = connection.createStatement();
+                    var results = statement.executeQuery("SELECT * FROM (" + mapping.source() + ") m WHERE 1 = 0")) {
+                var meta = results.getMetaData();
+                for (int i = 1; i <= meta.getColumnCount(); i++)
+                    columns.put(meta.getColumnLabel(i), datatype(meta.getColumnType(i)));
+            }
+            return columns;
+        }));
+        return types.get(column);
+    }
+
+    private static String datatype(int sqlType) {
+        var datatype = switch (sqlType) {
+            case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> XSDDatatype.XSDinteger;
+            case Types.DECIMAL, Types.NUMERIC -> XSDDatatype.XSDdecimal;
+            case Types.REAL, Types.FLOAT, Types.DOUBLE -> XSDDatatype.XSDdouble;
+            case Types.BOOLEAN, Types.BIT -> XSDDatatype.XSDboolean;
+            case Types.DATE -> XSDDatatype.XSDdate;
+            case Types.TIMESTAMP -> XSDDatatype.XSDdateTime;
+            default -> XSDDatatype.XSDstring;
+        };
+        return datatype.getURI();
+    }
+
+    // Values in their XSD notation
+    private static String text(Object value) {
+        return switch (value) {
+            case null -> null;
+            case BigDecimal decimal -> decimal.toPlainString();
+            case Timestamp timestamp -> timestamp.toLocalDateTime().toString();
+            default -> value.toString();
+        };
+    }
+
+    private static String regex(String product) {
+        return switch (product) {
+            case "H2" -> "REGEXP_LIKE(%s, %s)";
+            case "PostgreSQL" -> "(%s ~ %s)";
+            // Case sensitive like SPARQL, they follow the collation otherwise
+            case "MySQL", "MariaDB", "Oracle" -> "REGEXP_LIKE(%s, %s, 'c')";
+            default -> null;
+        };
+    }
+
+    // A backslash escapes in their string literals, unless the server runs with NO_BACKSLASH_ESCAPES
+    private static boolean backslashEscapes(String product) {
+        return product.equals("MySQL") || product.equals("MariaDB");
+    }
+}
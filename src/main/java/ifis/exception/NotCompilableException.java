@@ -0,0 +1,16 @@
+package ifis.exception;
+
+/**
+ * A query is more than the SqlCompiler covers, it has to go another way.
+ */
+public class NotCompilableException extends RuntimeException {
+
+    public NotCompilableException(String message) {
+        super(message);
+    }
+
+    public NotCompilableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
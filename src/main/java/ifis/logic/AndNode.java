@@ -1,12 +1,12 @@
 package ifis.logic;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Shape;
 
+import ifis.collection.Bitmaps;
+
 public class AndNode extends SHACLNode {
 
     public AndNode(Shape shape) {
@@ -32,7 +32,7 @@ public class AndNode extends SHACLNode {
         // Determine child with smallest focus as optimisation
         SHACLNode smallest_child = _children.get(0);
         for (var current_child : _children)
-            smallest_child = (smallest_child.validFocus.size() < current_child.validFocus.size()) ? smallest_child
+            smallest_child = (smallest_child.validFocus.cardinality() < current_child.validFocus.cardinality()) ? smallest_child
                     : current_child;
 
         // Construct a list of all other children expect the smallest
@@ -40,19 +40,13 @@ public class AndNode extends SHACLNode {
         var others = (List<SHACLNode>) _children.clone();
         others.remove(smallest_child);
 
-        // Construct the set of valid focus nodes by checking for every focus node in
-        // the smallest child, wether it is also valid in all other children
-        this.validFocus = smallest_child.validFocus
-                .stream()
-                .parallel()
-                .filter(focus -> {
-                    for (var other : others) {
-                        if (!other.validFocus.contains(focus))
-                            return false;
-                    }
-                    return true;
-                })
-                .collect(Collectors.toSet());
+        // Construct the set of valid focus nodes by intersecting the smallest child
+        // with all other children
+        var focus = smallest_child.validFocus;
+        for (var other : others)
+            focus = Bitmaps.and(focus, other.validFocus);
+
+        this.validFocus = focus;
     }
 
     /*
@@ -3,10 +3,10 @@ package ifis.logic;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.engine.constraint.ConstraintOp;
+import org.apache.jena.shacl.engine.constraint.HasValueConstraint;
 import org.apache.jena.shacl.engine.constraint.MaxCount;
 import org.apache.jena.shacl.engine.constraint.MinCount;
 import org.apache.jena.shacl.parser.Constraint;
@@ -14,6 +14,7 @@ import org.apache.jena.shacl.parser.Shape;
 import org.apache.jena.sparql.engine.binding.Binding;
 
 import ifis.BindingFilter;
+import ifis.collection.Bitmaps;
 import ifis.exception.ValidationException;
 
 /* Represents a reachable node from a target node */
@@ -46,41 +47,57 @@ public class ConstraintNode extends SHACLNode {
     @Override
     // Determines the set of valid Focus by using the parent PShape
     protected void constructFromChildren() {
+        var pshape = getPShape();
 
-        validFocus =
-            getPShape()
-            .getCountMap()
-            .entrySet()
-            .stream()
-            .parallel()
-            .filter(entry -> {
-                var focus       = entry.getKey();
-                var count       = entry.getValue();
-                var validCount  = this.countMap.get(focus);
-                
-                // A focus is trivially valid if it has no values, and no minimum cardinality
-                if (count == 0 && !(min != null && min.getMinCount() > 0)) return true;
+        // Below a NodeShape the query counted the root targets which are valid themselves
+        if (pshape == null) {
+            validFocus = Bitmaps.of(getTargetFocus().stream().filter(focus -> countMap.get(focus, 0) > 0));
+            return;
+        }
 
-                // If a focus node (with values, from here on out) has no valid value nodes it cannot be valid
-                if (countMap == null) return false;
+        var counts = pshape.getCountMap();
 
-                // If all values are valid, the focus is valid, barring the count is not in the cardinality range
-                if (count == validCount) {
-                                    
-                    if (min != null && count < min.getMinCount()) return false;
-                    if (max != null && count > max.getMaxCount()) return false;
+        // Usually the PShape counted every focus node. If it only got the violating ones, the
+        // candidates are the root targets and everything it didn't return is valid.
+        var candidates = pshape.isViolationsOnly()
+                ? getTargetFocus().stream()
+                : counts.keys();
 
-                    return true;
-                }
+        var requiresValue = requiresValue();
 
-                return false;
+        validFocus = Bitmaps.of(candidates
+            .parallel()
+            .filter(focus -> {
+                var count = counts.get(focus, -1);
+                if (count == -1) return true;
 
-            })
-            .map(entry -> entry.getKey())
-            .collect(Collectors.toSet());
+                return isValid(focus, count, requiresValue);
+            }));
         
     }
 
+    private boolean isValid(int focus, int count, boolean requiresValue) {
+        var validCount  = this.countMap.get(focus, -1);
+                
+        // A focus without values is trivially valid, unless it needs some (minimum cardinality or sh:hasValue).
+        // A fused count query has counted it anyway, so this can't be left to the validCount.
+        if (count == 0) return !(min != null && min.getMinCount() > 0) && !requiresValue;
+
+        // If a focus node (with values, from here on out) has no valid value nodes it cannot be valid
+        if (validCount == -1) return false;
+
+        // If all values are valid, the focus is valid, barring the count is not in the cardinality range
+        if (count == validCount) {
+                            
+            if (min != null && count < min.getMinCount()) return false;
+            if (max != null && count > max.getMaxCount()) return false;
+
+            return true;
+        }
+
+        return false;
+    }
+
     @Override
     public boolean validates(Node atom) {
         // TODO Auto-generated method stub
@@ -115,6 +132,11 @@ public class ConstraintNode extends SHACLNode {
         return constraints;
     }
 
+    // sh:hasValue needs at least one value node, even without a minCount
+    public boolean requiresValue() {
+        return constraints.stream().anyMatch(c -> c instanceof HasValueConstraint);
+    }
+
     public void addConstraint(Constraint c) {
         if (c instanceof ConstraintOp)
             throw new ValidationException("Internal: Tried to add a OpConstraint to a ConstrainedSHACLNode");
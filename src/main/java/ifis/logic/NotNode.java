@@ -1,13 +1,12 @@
 package ifis.logic;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Shape;
 
+import ifis.collection.Bitmaps;
 import ifis.exception.ValidationException;
 
 public class NotNode extends SHACLNode {
@@ -28,47 +27,25 @@ public class NotNode extends SHACLNode {
         validFocus = isUnderPshape ? getValidFocusWithPropertyMap() : getValidFocusWithTargets();
     }
 
-    private Set<List<Node>> getValidFocusWithTargets() {
+    private BitSet getValidFocusWithTargets() {
         var child = _children.get(0);
 
-        // get root targets
-        var targetNodes = this.getRootNode().targetNodes; 
-
         // Es sollten die targetNodes populiert sein
-        return targetNodes
-            .stream()
-            .parallel()
-            .map(target -> {
-                // Nicht schön aber selten.
-                var templist = new ArrayList<Node>();
-                templist.add(target);
-                return templist;
-            })
-            .filter(target -> (child.validFocus.contains(target)))
-            .collect(Collectors.toSet());
+        // Every root target the child doesn't validate
+        return Bitmaps.andNot(getTargetFocus(), child.validFocus);
         
     }
 
-    private Set<List<Node>> getValidFocusWithPropertyMap() {
+    private BitSet getValidFocusWithPropertyMap() {
         var childFocus = _children.get(0).validFocus;
+        var counts = getPShape().getCountMap();
+
+        // Focus nodes which have no value nodes are superior
+        var empty = Bitmaps.of(counts.keys().filter(focus -> counts.get(focus, 0) == 0));
 
-        return getPShape()
-                .getCountMap()
-                .entrySet()
-                .stream()
-                .parallel()
-                .filter(entry -> {
-                    var focus = entry.getKey();
-                    var count = entry.getValue();
-
-                    // Focus nodes which have no value nodes are superior
-                    if (count == 0)
-                        return true;
-
-                    return !childFocus.contains(focus);
-                })
-                .map(entry -> entry.getKey())
-                .collect(Collectors.toSet());
+        var validFocus = Bitmaps.andNot(Bitmaps.of(counts.keys()), childFocus);
+        validFocus.or(empty);
+        return validFocus;
     }
 
     @Override
@@ -83,27 +60,27 @@ public class NotNode extends SHACLNode {
     }
 
     @Override
-    public boolean validatesRes(Node atom, Set<SHACLNode> valNodes) {
+    public boolean validatesRes(int atom, Set<SHACLNode> valNodes) {
         // If valid Targets arent extracted from validBindings, do it now and memoize
         if (validTargets == null)
             extractValidTargets();
         // If this Node contains, add it to valNodes
 
         if (inverted) {
-            if (!validTargets.contains(atom))
+            if (!validTargets.get(atom))
                 valNodes.add(this);
             // Check the children
             for (var child : _children)
                 child.validatesRes(atom, valNodes);
-            return !validTargets.contains(atom);
+            return !validTargets.get(atom);
 
         } else {
-            if (validTargets.contains(atom))
+            if (validTargets.get(atom))
                 valNodes.add(this);
             // Check the children
             for (var child : _children)
                 child.validatesRes(atom, valNodes);
-            return validTargets.contains(atom);
+            return validTargets.get(atom);
 
         }
 
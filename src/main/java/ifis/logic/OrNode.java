@@ -1,8 +1,5 @@
 package ifis.logic;
 
-import java.util.Set;
-import java.util.stream.Collectors;
-
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Shape;
 
@@ -36,7 +33,7 @@ public class OrNode extends SHACLNode {
     protected void constructFromChildren() {       
         // We can assume that all children have had their validBindings constructed
         for (var child:_children) {
-            validFocus.addAll(child.validFocus);
+            validFocus.or(child.validFocus);
         }        
     }
 
@@ -1,13 +1,13 @@
 package ifis.logic;
 
 import java.util.HashSet;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Constraint;
 import org.apache.jena.shacl.parser.PropertyShape;
 import org.apache.jena.sparql.path.Path;
 import ifis.SPARQLGenerator.Query;
+import ifis.collection.Bitmaps;
 
 /* A PathNode is esentially a PropertyShape. It represents all the Valuenodes of a PShape and how to reach them */
 public class PShapeNode extends SHACLNode {
@@ -18,6 +18,18 @@ public class PShapeNode extends SHACLNode {
     public boolean elevate = true;
     private HashSet<Constraint> engineConstraints = new HashSet<>();
     private Query countQuery;
+
+    // If set, the countMap only holds the focus nodes violating one of the ConstraintNodes,
+    // all other focus nodes (of the root targets) are valid
+    private boolean violationsOnly = false;
+
+    public boolean isViolationsOnly() {
+        return violationsOnly;
+    }
+
+    public void setViolationsOnly(boolean violationsOnly) {
+        this.violationsOnly = violationsOnly;
+    }
     
 
     public Query getCountQuery() {
@@ -60,10 +72,10 @@ public class PShapeNode extends SHACLNode {
         // If there are no children, the validBindings have been populated per Query.
         if (_children.size() == 0) return;   
 
-        if (_children.get(0).validFocus.size() == 0) return;
+        if (_children.get(0).validFocus.isEmpty()) return;
         // If this is the end highest propertyshape, were finished
 
-        var childNumVars = _children.get(0).validFocus.iterator().next().size();
+        var childNumVars = dictionary.length(_children.get(0).validFocus.nextSetBit(0));
 
         elevate = childNumVars != 1;
 
@@ -73,6 +85,7 @@ public class PShapeNode extends SHACLNode {
         // We use an AndNode to do this
 
         var sub = new AndNode(shape);
+        sub.dictionary = dictionary;
         for (var child:_children) {
             sub.addChild(child);
         }
@@ -82,10 +95,7 @@ public class PShapeNode extends SHACLNode {
 
         validFocus =
             elevate ? 
-                sub.validFocus
-                .stream()
-                .map(b->b.subList(0, childNumVars-1))
-                .collect(Collectors.toSet())
+                Bitmaps.map(sub.validFocus, dictionary::prefix)
             : sub.validFocus;
 
     }
@@ -15,6 +15,15 @@ public class QualifiedNode extends SHACLNode {
         this.maxCount = maxCount;
     }
 
+    // -1 if unbounded
+    public Integer getMinCount() {
+        return minCount;
+    }
+
+    public Integer getMaxCount() {
+        return maxCount;
+    }
+
     @Override
     protected void constructFromChildren() {
         // TODO Auto-generated method stub
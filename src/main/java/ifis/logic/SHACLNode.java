@@ -1,16 +1,20 @@
 package ifis.logic;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Constraint;
 import org.apache.jena.shacl.parser.Shape;
 
+import ifis.collection.Bitmaps;
+import ifis.collection.IntIntMap;
+import ifis.collection.IntList;
+import ifis.collection.NodeDictionary;
+
 public abstract class SHACLNode {
 
     /* 
@@ -28,12 +32,15 @@ public abstract class SHACLNode {
     private Mode mode = Mode.INHERIT;
     
     // Holds the valid focus nodes per ShaclNode
-    protected Set<List<Node>> validFocus = new HashSet<List<Node>>();
-    protected HashMap<List<Node>, Integer> countMap; // Only applies if in Counts Mode
-    protected HashMap<List<Node>, List<Node>> nodeMap; // Only applies if in NODES mode
+    // Focus nodes and terms are ids of the validation's NodeDictionary, the sets are bitmaps over them
+    protected BitSet validFocus = new BitSet();
+    protected IntIntMap countMap; // Only applies if in Counts Mode
+    protected HashMap<Integer, IntList> nodeMap; // Only applies if in NODES mode
+
+    protected NodeDictionary dictionary;
 
 
-    public void setNodeMap(HashMap<List<Node>, List<Node>> nodeMap) {
+    public void setNodeMap(HashMap<Integer, IntList> nodeMap) {
         this.nodeMap = nodeMap;
     }
 
@@ -41,29 +48,64 @@ public abstract class SHACLNode {
     protected final ArrayList<SHACLNode> _children;
     protected final Shape shape;
     
-    protected Set<Node> validTargets = null;
+    protected BitSet validTargets = null;
 
     protected SHACLNode parent;
     // List of all parents up to the root, starts with the direct parent
     // Gets filled in if a query is ever generated for this SHACLNode
     protected List<SHACLNode> lineage;
 
+    // Set if the valid focus comes straight from a query (see Validation, JUNCTOR PUSHDOWN),
+    // there is nothing left to construct then
     private boolean populated;
 
-    protected List<Node> targetNodes;
+    // Position in the tree ("0", "0.1", ...), identifies the node in reports
+    private String nodeId;
+
+    // Term ids of the root targets
+    protected IntList targetNodes;
+    // The root targets as focus nodes, memoized by the root
+    private BitSet targetFocus;
     
 
 
-    public List<Node> getTargetNodes() {
+    public IntList getTargetNodes() {
         return targetNodes;
     }
 
 
-    public void setTargetNodes(List<Node> targetNodes) {
+    public void setTargetNodes(IntList targetNodes) {
         this.targetNodes = targetNodes;
     }
 
 
+    /**
+     * @return bitmap of the root targets as focus nodes (tuples of just the target),
+     *         shared by everyone negating against them
+     */
+    public BitSet getTargetFocus() {
+        var root = getRootNode();
+        synchronized (root) {
+            if (root.targetFocus == null)
+                root.targetFocus = Bitmaps.of(root.targetNodes.stream()
+                        .map(target -> dictionary.tuple(NodeDictionary.EMPTY, target)));
+            return root.targetFocus;
+        }
+    }
+
+
+    public NodeDictionary getDictionary() {
+        return dictionary;
+    }
+
+
+    // Sets the dictionary of the whole subtree
+    public void setDictionary(NodeDictionary dictionary) {
+        this.dictionary = dictionary;
+        _children.forEach((child) -> child.setDictionary(dictionary));
+    }
+
+
     /**
      * Return the mode of this node by inheritance or its explicit value.
      * @return this node's mode
@@ -103,6 +145,13 @@ public abstract class SHACLNode {
 
     }
 
+    // Construct only this node, the caller makes sure the children are constructed already
+    // (used by the DataflowScheduler, which constructs nodes as soon as their inputs arrive)
+    public void constructSelf() {
+        if (!populated)
+            constructFromChildren();
+    }
+
 
 
     public List<SHACLNode> getLineage() {
@@ -169,18 +218,18 @@ public abstract class SHACLNode {
     /**
         A bit slower, meta information for Report
      */
-    public boolean validatesRes(Node atom, Set<SHACLNode> valNodes) {
+    public boolean validatesRes(int atom, Set<SHACLNode> valNodes) {
         
         // If valid Targets arent extracted from validBindings, do it now and memoize
         if (validTargets == null) extractValidTargets();
         
         // If this Node contains, add it to valNodes
-        if (validTargets.contains(atom)) valNodes.add(this);
+        if (validTargets.get(atom)) valNodes.add(this);
         
         // Check the children
         for (var child:_children) child.validatesRes(atom, valNodes);
         
-        return validTargets.contains(atom);
+        return validTargets.get(atom);
     }
 
     public ArrayList<SHACLNode> getChildren() {
@@ -194,11 +243,11 @@ public abstract class SHACLNode {
     public abstract String getReportString();
 
 
-    public Set<List<Node>> getValidFocus() {
+    public BitSet getValidFocus() {
         return validFocus;
     }
 
-    public void setValidFocus(Set<List<Node>> validBindings) {
+    public void setValidFocus(BitSet validBindings) {
         this.validFocus = validBindings;
     }
 
@@ -207,11 +256,11 @@ public abstract class SHACLNode {
     }
 
 
-    public HashMap<List<Node>, Integer> getCountMap() {
+    public IntIntMap getCountMap() {
         return countMap;
     }
 
-    public void setCountMap(HashMap<List<Node>, Integer> countMap) {
+    public void setCountMap(IntIntMap countMap) {
         this.countMap = countMap;
     }
 
@@ -227,7 +276,15 @@ public abstract class SHACLNode {
     // 
     /** Just takes the first variable from each focus node list (?targets) */
     protected void extractValidTargets(){
-        this.validTargets = validFocus.stream().map(b->b.get(0)).collect(Collectors.toSet());
+        this.validTargets = Bitmaps.map(validFocus, dictionary::first);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
     }
 
     public boolean isPopulated() {
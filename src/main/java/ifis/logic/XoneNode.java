@@ -1,13 +1,12 @@
 package ifis.logic;
 
-import java.util.HashMap;
-import java.util.List;
+import java.util.BitSet;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.shacl.parser.Shape;
 
+
 public class XoneNode extends SHACLNode{
 
     
@@ -44,7 +43,7 @@ public class XoneNode extends SHACLNode{
     }
 
     @Override
-    public boolean validatesRes(Node atom, Set<SHACLNode> valNodes) {
+    public boolean validatesRes(int atom, Set<SHACLNode> valNodes) {
         /* 
          * Iff exactly one child validates
          * the Xone validates.
@@ -74,18 +73,19 @@ public class XoneNode extends SHACLNode{
     protected void constructFromChildren() {       
         // We can assume that all children have had their validBindings constructed
         // If its in more than one,
-        var uniqueMap = new HashMap<List<Node>, Boolean>();
+        // Focus nodes valid in at least one and in at least two children
+        var once = new BitSet();
+        var twice = new BitSet();
         
         for (var child:_children) {
-            for (var b:child.validFocus) {
-                var c = uniqueMap.get(b);
-                uniqueMap.put(b, c == null ? true : false);
-            }
+            var again = (BitSet) once.clone();
+            again.and(child.validFocus);
+            twice.or(again);
+            once.or(child.validFocus);
         }
         
-        this.validFocus = uniqueMap.keySet().stream()
-        .filter(b -> uniqueMap.get(b))
-        .collect(Collectors.toSet());
+        once.andNot(twice);
+        this.validFocus = once;
 
     }
     
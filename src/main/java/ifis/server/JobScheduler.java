@@ -0,0 +1,217 @@
+package ifis.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs validation jobs of several clients on a fixed number of workers.
+ *
+ * - Admission: a job is rejected right away if the queue is full or the heap in use is over budget, so
+ *   a busy server answers quickly instead of piling up work it can't hold
+ * - Priorities: a worker always takes an INTERACTIVE job before a BATCH job
+ * - Fairness: within a priority, clients take turns, one job each, so a client with a hundred queued
+ *   jobs doesn't hold back the others
+ *
+ * The cap on queries in flight against the endpoint is the DataflowScheduler's, which all jobs share.
+ */
+public class JobScheduler implements AutoCloseable {
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    private record Job(String client, Callable<?> task, CompletableFuture<Object> result, long enqueued) {
+    }
+
+    private final int queueCapacity;
+    private final long heapBudget;
+
+    // Per priority the queued jobs of every client, in the order the clients take turns
+    private final EnumMap<Priority, LinkedHashMap<String, ArrayDeque<Job>>> queues = new EnumMap<>(Priority.class);
+    private int queued = 0;
+    private boolean closed = false;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    // Metrics
+    private final AtomicLong running = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitNanosTotal = new AtomicLong();
+    private final AtomicLong waitNanosMax = new AtomicLong();
+
+    /**
+     * @param workers       number of jobs running at once
+     * @param queueCapacity number of jobs waiting at most, over all clients and priorities
+     * @param heapBudget    bytes of heap in use above which jobs are rejected, 0 for no check
+     */
+    public JobScheduler(int workers, int queueCapacity, long heapBudget) {
+        this.queueCapacity = queueCapacity;
+        this.heapBudget = heapBudget;
+
+        for (var priority : Priority.values())
+            queues.put(priority, new LinkedHashMap<>());
+
+        for (int i = 0; i < Math.max(1, workers); i++)
+            this.workers.add(Thread.ofVirtual().name("job-worker-" + i).start(this::work));
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @return completes with the job's result once it ran
+     * @throws RejectedExecutionException if the queue is full, the heap is over budget or the scheduler
+     *                                    is closed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(String client, Priority priority, Callable<T> task) {
+        if (heapBudget > 0 && usedHeap() > heapBudget) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Heap over budget, try again later");
+        }
+
+        var job = new Job(client, task, new CompletableFuture<>(), System.nanoTime());
+
+        synchronized (this) {
+            if (closed)
+                throw new RejectedExecutionException("Scheduler is closed");
+            if (queued >= queueCapacity) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Queue is full (" + queueCapacity + " jobs), try again later");
+            }
+
+            queues.get(priority).computeIfAbsent(client, (c) -> new ArrayDeque<>()).add(job);
+            queued++;
+            notify();
+        }
+
+        return (CompletableFuture<T>) job.result();
+    }
+
+    /**
+     * Stops the workers. Jobs still queued are never run, their futures fail with a
+     * RejectedExecutionException so nobody waits on them forever.
+     */
+    @Override
+    public void close() {
+        var dropped = new ArrayList<Job>();
+        synchronized (this) {
+            closed = true;
+            for (var clients : queues.values()) {
+                clients.values().forEach(dropped::addAll);
+                clients.clear();
+            }
+            queued = 0;
+            notifyAll();
+        }
+        for (var job : dropped)
+            job.result().completeExceptionally(new RejectedExecutionException("Scheduler closed before the job ran"));
+        for (var worker : workers)
+            worker.interrupt();
+    }
+
+    /*
+     * WORKERS
+     */
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            var wait = System.nanoTime() - job.enqueued();
+            waitNanosTotal.addAndGet(wait);
+            waitNanosMax.accumulateAndGet(wait, Math::max);
+
+            running.incrementAndGet();
+            try {
+                job.result().complete(job.task().call());
+                completed.incrementAndGet();
+            } catch (Throwable e) {
+                job.result().completeExceptionally(e);
+                failed.incrementAndGet();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (closed)
+                throw new InterruptedException();
+
+            for (var clients : queues.values()) {
+                var it = clients.entrySet().iterator();
+                if (!it.hasNext())
+                    continue;
+
+                // First client in line takes its turn and goes to the back
+                var entry = it.next();
+                it.remove();
+                var job = entry.getValue().poll();
+                if (!entry.getValue().isEmpty())
+                    clients.put(entry.getKey(), entry.getValue());
+
+                queued--;
+                return job;
+            }
+
+            wait();
+        }
+    }
+
+    /*
+     * METRICS
+     */
+
+    public synchronized int queueDepth(Priority priority) {
+        return queues.get(priority).values().stream().mapToInt(ArrayDeque::size).sum();
+    }
+
+    public long running() {
+        return running.get();
+    }
+
+    public long completed() {
+        return completed.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    // Over all jobs that were started
+    public long waitMillisTotal() {
+        return waitNanosTotal.get() / 1_000_000;
+    }
+
+    public long waitMillisMax() {
+        return waitNanosMax.get() / 1_000_000;
+    }
+
+    public long heapBudget() {
+        return heapBudget;
+    }
+
+    public static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
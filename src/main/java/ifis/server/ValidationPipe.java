@@ -0,0 +1,110 @@
+package ifis.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.jena.shared.JenaException;
+
+import ifis.Options;
+import ifis.endpoint.Endpoint;
+
+/**
+ * Validates a stream of shapes documents read from stdin, one after the other in the same JVM, and writes
+ * one framed report per document to stdout. Saves the caller a temp file and a JVM start per validation.
+ *
+ * A frame is a header line and that many bytes of UTF-8:
+ *   in:  <length>\n<shapes as Turtle>
+ *   out: ok <length>\n<report>   or   error <length>\n<report up to the error, or the error alone>
+ *
+ * Reports come in the order of the documents, in the format of --report (default text). Everything the
+ * validation logs goes to stderr, stdout only carries frames. The pipe ends with stdin.
+ */
+public class ValidationPipe {
+
+    private final Validator validator;
+    private final Options options;
+
+    public ValidationPipe(Endpoint endpoint, Options options) {
+        this.validator = new Validator(endpoint, options);
+        this.options = options;
+    }
+
+    /**
+     * Runs until in ends.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        in = new BufferedInputStream(in);
+        out = new BufferedOutputStream(out);
+
+        byte[] document;
+        while ((document = readFrame(in)) != null) {
+            var report = new ByteArrayOutputStream();
+            var ok = true;
+
+            try (var writer = new OutputStreamWriter(report, StandardCharsets.UTF_8)) {
+                var shapes = Validator.parse(new String(document, StandardCharsets.UTF_8));
+                ok = validator.validate(shapes, options, writer);
+            } catch (JenaException e) {
+                // Broken Turtle or broken SHACL, either way there is nothing to validate
+                report.reset();
+                report.writeBytes(String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                ok = false;
+            }
+
+            out.write(((ok ? "ok " : "error ") + report.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+            report.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Starts the pipe on stdin and stdout. Logging moves to stderr, so nothing but frames ends up on stdout.
+     */
+    public static void main(Endpoint endpoint, Options options) throws IOException {
+        // The raw stdout, System.out may be wrapped by the console colors
+        var stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+
+        new ValidationPipe(endpoint, options).run(System.in, stdout);
+    }
+
+    /*
+     * FRAMING
+     */
+
+    // null once the input ended between frames
+    private static byte[] readFrame(InputStream in) throws IOException {
+        var header = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (header.isEmpty())
+                    return null;
+                throw new EOFException("Input ended in a frame header");
+            }
+            if (c != '\r')
+                header.append((char) c);
+        }
+
+        int length;
+        try {
+            length = Integer.parseInt(header.toString().strip());
+        } catch (NumberFormatException e) {
+            throw new IOException("Expected the length of a shapes document, got '" + header + "'");
+        }
+
+        var document = in.readNBytes(length);
+        if (document.length < length)
+            throw new EOFException("Input ended after " + document.length + " of " + length + " bytes");
+        return document;
+    }
+}
@@ -0,0 +1,216 @@
+package ifis.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.jena.shacl.Shapes;
+import org.apache.jena.shared.JenaException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ifis.Options;
+import ifis.QueryTemplates;
+import ifis.endpoint.Endpoint;
+import ifis.server.JobScheduler.Priority;
+
+/**
+ * Keeps a JVM warm and validates shapes posted over HTTP, so a validation only costs its queries.
+ *
+ * POST /validate?format=<format>&client=<name>&priority=interactive|batch  with the shapes as Turtle in the body
+ *   The report is streamed back in the given format (see Options.reportFormat, default ndjson).
+ *   ndjson and ntriples are written while validating, so clients see the tree and the first results
+ *   before the validation is finished.
+ *   Validations run as jobs of the JobScheduler. The client defaults to the remote address, the priority
+ *   to interactive for a single shape and batch for more. A full queue or heap answers 503.
+ * POST /cache/invalidate
+ *   Drops the cached query results (see QueryCache.invalidate), for when the data behind the endpoint
+ *   changed. The server keeps the cache and its TTL (--cache-ttl, default 10 minutes) of the command line,
+ *   whatever loads the data is expected to call this instead, or start the server with --cache-mb=0.
+ * GET /health
+ * GET /metrics  queue, job and query counters in the Prometheus text format
+ *
+ * All requests share the endpoint's concurrency limit, query cache and HTTP connections.
+ */
+public class ValidationServer {
+
+    private final Options options;
+    private final Validator validator;
+    private final JobScheduler jobs;
+
+    private HttpServer server;
+
+    public ValidationServer(Endpoint endpoint, Options options) {
+        this.options = options;
+        validator = new Validator(endpoint, options);
+
+        var heapBudget = options.heapBudgetMegabytes > 0
+                ? options.heapBudgetMegabytes * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 10 * 8;
+        jobs = new JobScheduler(options.jobWorkers, options.jobQueue, heapBudget);
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(options.port), 0);
+        // Requests mostly wait on the endpoint
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+
+        server.createContext("/validate", this::handleValidate);
+        server.createContext("/cache/invalidate", this::handleInvalidate);
+        server.createContext("/health", (exchange) -> respond(exchange, 200, "ok\n"));
+        server.createContext("/metrics", (exchange) -> respond(exchange, 200, metrics()));
+
+        server.start();
+        System.out.println("Validating against " + validator.getEndpoint().getName() + ", listening on port "
+                + server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+        jobs.close();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /*
+     * HANDLERS
+     */
+
+    private void handleValidate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "POST the shapes as Turtle\n");
+                return;
+            }
+
+            Options requestOptions;
+            Shapes shapes;
+            Priority priority;
+            var params = query(exchange);
+            try {
+                // Only the report format is up to the request, everything else is the server's
+                requestOptions = options.copy();
+                requestOptions.reportFormat = Options.parse(new String[] {
+                        "--report=" + params.getOrDefault("format", "ndjson") }, 0).reportFormat;
+
+                shapes = Validator.parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+                priority = params.containsKey("priority")
+                        ? Priority.valueOf(params.get("priority").toUpperCase())
+                        : shapes.numRootShapes() > 1 ? Priority.BATCH : Priority.INTERACTIVE;
+            } catch (JenaException | IllegalArgumentException e) {
+                // Broken Turtle or SHACL, or an unknown format or priority
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+
+            var client = params.getOrDefault("client", exchange.getRemoteAddress().getAddress().getHostAddress());
+            var submitted = System.nanoTime();
+
+            try {
+                jobs.submit(client, priority, () -> {
+                    var waited = (System.nanoTime() - submitted) / 1_000_000;
+                    exchange.getResponseHeaders().set("Content-Type", contentType(requestOptions.reportFormat));
+                    exchange.getResponseHeaders().set("X-Queue-Wait-Ms", String.valueOf(waited));
+                    // Chunked, the length isn't known before we're done
+                    exchange.sendResponseHeaders(200, 0);
+
+                    try (var out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+                            StandardCharsets.UTF_8))) {
+                        // The status is long gone, a failed validation only shows in the body
+                        validator.validate(shapes, requestOptions, out);
+                    }
+                    return null;
+                }).join();
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                respond(exchange, 503, e.getMessage() + "\n");
+            } catch (CompletionException e) {
+                // Still queued when the server stopped, nothing was sent yet
+                if (e.getCause() instanceof RejectedExecutionException rejected) {
+                    respond(exchange, 503, rejected.getMessage() + "\n");
+                    return;
+                }
+                // Most likely the client went away, the response is gone either way
+                System.err.println("Validation job of " + client + " failed: " + e.getCause());
+            }
+        }
+    }
+
+    private void handleInvalidate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "POST to drop the cached query results\n");
+                return;
+            }
+            var dropped = validator.getCache().invalidate();
+            respond(exchange, 200, "Dropped " + dropped + " cached results\n");
+        }
+    }
+
+    private String metrics() {
+        var sb = new StringBuilder();
+        for (var priority : Priority.values())
+            sb.append("validation_jobs_queued{priority=\"").append(priority.name().toLowerCase()).append("\"} ")
+                    .append(jobs.queueDepth(priority)).append('\n');
+        sb.append("validation_jobs_running ").append(jobs.running()).append('\n');
+        sb.append("validation_jobs_completed_total ").append(jobs.completed()).append('\n');
+        sb.append("validation_jobs_failed_total ").append(jobs.failed()).append('\n');
+        sb.append("validation_jobs_rejected_total ").append(jobs.rejected()).append('\n');
+        sb.append("validation_jobs_wait_milliseconds_total ").append(jobs.waitMillisTotal()).append('\n');
+        sb.append("validation_jobs_wait_milliseconds_max ").append(jobs.waitMillisMax()).append('\n');
+        sb.append("validation_queries_in_flight ").append(validator.getScheduler().queriesInFlight()).append('\n');
+        sb.append("validation_queries_waiting ").append(validator.getScheduler().queriesWaiting()).append('\n');
+        sb.append("validation_query_templates ").append(QueryTemplates.SHARED.size()).append('\n');
+        sb.append("validation_query_template_hits_total ").append(QueryTemplates.SHARED.hits()).append('\n');
+        sb.append("validation_query_template_misses_total ").append(QueryTemplates.SHARED.misses()).append('\n');
+        sb.append("validation_heap_used_bytes ").append(JobScheduler.usedHeap()).append('\n');
+        sb.append("validation_heap_budget_bytes ").append(jobs.heapBudget()).append('\n');
+        return sb.toString();
+    }
+
+    /*
+     * HELPERS
+     */
+
+    private static String contentType(String format) {
+        return switch (format) {
+            case "ndjson" -> "application/x-ndjson; charset=utf-8";
+            case "ntriples" -> "application/n-triples; charset=utf-8";
+            default -> "text/plain; charset=utf-8";
+        };
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        var params = new HashMap<String, String>();
+        var query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return params;
+
+        for (var pair : query.split("&")) {
+            var split = pair.split("=", 2);
+            params.put(URLDecoder.decode(split[0], StandardCharsets.UTF_8),
+                    split.length > 1 ? URLDecoder.decode(split[1], StandardCharsets.UTF_8) : "");
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
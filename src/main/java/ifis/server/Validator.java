@@ -0,0 +1,118 @@
+package ifis.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.shacl.Shapes;
+import org.apache.jena.shacl.parser.ShaclParseException;
+
+import ifis.DataflowScheduler;
+import ifis.NdjsonReport;
+import ifis.Options;
+import ifis.QueryCache;
+import ifis.RdfReport;
+import ifis.Validation;
+import ifis.ValidationListener;
+import ifis.endpoint.Endpoint;
+
+/**
+ * Validates shapes documents one after the other in the same JVM. All validations share the endpoint's
+ * concurrency limit, query cache and HTTP connections. Used by the ValidationServer and the ValidationPipe.
+ */
+public class Validator {
+
+    private final Endpoint endpoint;
+    private final DataflowScheduler scheduler;
+    private final QueryCache cache;
+
+    public Validator(Endpoint endpoint, Options options) {
+        this.endpoint = endpoint;
+
+        scheduler = new DataflowScheduler(options.maxConcurrentQueries);
+        cache = new QueryCache(
+                endpoint.getName(),
+                options.cacheMegabytes * 1024 * 1024,
+                options.cacheDirectory == null ? null : Path.of(options.cacheDirectory),
+                Duration.ofSeconds(options.cacheTtlSeconds));
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public DataflowScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public QueryCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @throws org.apache.jena.riot.RiotException if the Turtle is broken
+     * @throws ShaclParseException              if it is fine as RDF but not as SHACL
+     */
+    public static Shapes parse(String turtle) {
+        var graph = RDFParser.fromString(turtle).lang(Lang.TTL).toGraph();
+
+        Shapes shapes;
+        try {
+            shapes = Shapes.parse(graph);
+        } catch (ClassCastException e) {
+            // Jena's parser doesn't check the datatypes of some values, e.g. sh:minCount "x"
+            throw new ShaclParseException("Value of the wrong type: " + e.getMessage(), e);
+        }
+        return shapes;
+    }
+
+    /**
+     * Validates all shapes and writes the report in the format of the options to out.
+     * ndjson and ntriples are written while validating, text and grouped after each shape.
+     *
+     * @return false if a validation failed, the error is the last thing in the report then
+     */
+    public boolean validate(Shapes shapes, Options options, Writer out) throws IOException {
+        ValidationListener streamed = switch (options.reportFormat) {
+            case "ndjson" -> new NdjsonReport(out);
+            case "ntriples" -> new RdfReport(out);
+            default -> null;
+        };
+
+        var ok = true;
+        try {
+            for (var shape : shapes) {
+                var val = new Validation(shape, endpoint, scheduler, cache, options);
+                if (streamed != null)
+                    val.setListener(streamed);
+
+                val.exec();
+
+                if (streamed == null)
+                    val.writeReport(out);
+                out.flush();
+            }
+        } catch (RuntimeException e) {
+            // Whatever was written is already out, the error can only be added to it
+            if (streamed instanceof NdjsonReport ndjson)
+                ndjson.error(e.getMessage());
+            else
+                out.write("\nValidation failed: " + e.getMessage() + "\n");
+            e.printStackTrace();
+            ok = false;
+        }
+
+        // Finishes the report, the writer is closed by the caller right after anyway
+        if (streamed instanceof AutoCloseable report) {
+            try {
+                report.close();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        return ok;
+    }
+}
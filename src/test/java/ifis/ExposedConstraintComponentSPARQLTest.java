@@ -0,0 +1,74 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.shacl.Shapes;
+import org.apache.jena.shacl.engine.constraint.ConstraintComponentSPARQL;
+import org.junit.jupiter.api.Test;
+
+import ifis.exception.ValidationException;
+
+class ExposedConstraintComponentSPARQLTest {
+
+    @Test
+    void testExposeWithoutReflection() {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph("shapes/rest/custom_ASK.ttl"));
+        var pshape = shapes.iterator().next().getPropertyShapes().iterator().next();
+        var custom = (ConstraintComponentSPARQL) pshape.getConstraints().stream()
+                .filter(c -> c instanceof ConstraintComponentSPARQL)
+                .findFirst()
+                .orElseThrow();
+
+        var exposed = ExposedConstraintComponentSPARQL.expose(pshape, custom);
+
+        assertTrue(exposed.getSparqlComponent().getQuery().isAskType());
+
+        var params = exposed.getParameterMap();
+        assertEquals(1, params.keySet().size());
+        var lang = params.keySet().iterator().next();
+        assertEquals("lang", lang.getSparqlName());
+        assertEquals("Japanisch", params.get(lang).iterator().next().getLiteralLexicalForm());
+
+        assertEquals(custom.toString(), exposed.toString());
+    }
+
+    // Two components whose constraints both print as ASK{Param[lang]=[de]}
+    private static final String TWINS = """
+            @prefix sh: <http://www.w3.org/ns/shacl#> .
+            @prefix a: <http://example.com/a#> .
+            @prefix b: <http://example.com/b#> .
+            @prefix : <http://example.com/ns#> .
+
+            a:Component a sh:ConstraintComponent ;
+                sh:parameter [ sh:path a:lang ] ;
+                sh:validator [ a sh:SPARQLAskValidator ; sh:ask "ASK { FILTER (lang($value) = $lang) }" ] .
+
+            b:Component a sh:ConstraintComponent ;
+                sh:parameter [ sh:path b:lang ] ;
+                sh:validator [ a sh:SPARQLAskValidator ; sh:ask "ASK { FILTER (lang($value) != $lang) }" ] .
+
+            :Shape a sh:NodeShape ;
+                sh:targetClass :Material ;
+                sh:property [ sh:path :name ; a:lang "de" ; b:lang "de" ] .
+            """;
+
+    @Test
+    void testExposeRefusesIndistinguishableComponents() {
+        var shapes = Shapes.parse(RDFParser.fromString(TWINS).lang(Lang.TTL).toGraph());
+        var pshape = shapes.iterator().next().getPropertyShapes().iterator().next();
+
+        // Jena's constraints can't be told apart
+        var custom = pshape.getConstraints().stream()
+                .filter(c -> c instanceof ConstraintComponentSPARQL)
+                .map(c -> (ConstraintComponentSPARQL) c)
+                .toList();
+        assertEquals(2, custom.size());
+        assertEquals(custom.get(0).toString(), custom.get(1).toString());
+        assertThrows(ValidationException.class, () -> ExposedConstraintComponentSPARQL.expose(pshape, custom.get(0)));
+    }
+}
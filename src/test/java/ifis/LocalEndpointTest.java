@@ -0,0 +1,265 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.shacl.Shapes;
+import org.apache.jena.shacl.vocabulary.SHACL;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.system.Txn;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ifis.endpoint.Endpoint;
+import ifis.endpoint.LocalEndpoint;
+import ifis.logic.AndNode;
+
+/**
+ * Runs validations against the sample data in a local in-memory dataset,
+ * so no Ontop instance is needed.
+ */
+class LocalEndpointTest {
+
+    private static final String INPUT_DIR = "shapes/test/input/";
+    private static final String DATA = "shapes/test/data/prototyp.ttl";
+    private static final String PREFIX = "urn:absolute/prototyp#";
+
+    private static Endpoint endpoint;
+
+    @BeforeAll
+    static void loadData() {
+        endpoint = LocalEndpoint.inMemory(DATA);
+    }
+
+    private static Set<String> invalidTargets(String shapesFile) {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + shapesFile));
+        var val = new Validation(shapes.iterator().next(), endpoint);
+        val.exec();
+
+        return val.getResults()
+                .stream()
+                .filter((res) -> !res.isValid())
+                .map((res) -> res.getAtom().getURI().replace(PREFIX, ""))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void testMinExclusive() {
+        assertEquals(Set.of("bk3", "bk4"), invalidTargets("1_BlockierkraftGrNull.ttl"));
+    }
+
+    @Test
+    void testDatatype() {
+        assertEquals(Set.of("k2"), invalidTargets("Datatype.ttl"));
+    }
+
+    @Test
+    void testStringConstraints() {
+        assertEquals(Set.of("g2", "g3"), invalidTargets("String.ttl"));
+    }
+
+    // Target, verdict and the ids of all validating nodes, which is what the report shows
+    private static Set<String> verdicts(String shapesFile, String... options) {
+        return verdicts(shapesFile, Options.parse(options, 0), null);
+    }
+
+    private static Set<String> verdicts(String shapesFile, Options options, ShapePlan plan) {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + shapesFile));
+        var val = new Validation(shapes.iterator().next(), endpoint,
+                new DataflowScheduler(options.maxConcurrentQueries), QueryCache.disabled(), options);
+        val.setPlan(plan);
+        val.exec();
+
+        return val.getResults()
+                .stream()
+                .map((res) -> res.getAtom().getURI().replace(PREFIX, "") + " " + res.isValid() + " "
+                        + res.getValidatingNodes().stream().map((node) -> node.getNodeId()).sorted().toList())
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void testJunctorsInSparql() {
+        for (var shapesFile : List.of("3_GitterkonstanenExplicitAnd.ttl", "4_NotBlockierkraftAndNotFeldOrSpannung.ttl")) {
+            assertEquals(verdicts(shapesFile), verdicts(shapesFile, "--junctors=sparql"), shapesFile);
+            assertEquals(verdicts(shapesFile), verdicts(shapesFile, "--junctors=auto"), shapesFile);
+        }
+    }
+
+    private static List<String> inputFiles() throws IOException {
+        try (var files = Files.list(Path.of(INPUT_DIR))) {
+            return files.map((file) -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    @Test
+    void testFusedQueriesMatchSeparateQueries() throws Exception {
+        // Client-side junctors, so every PShapeNode runs its own count query
+        for (var shapesFile : inputFiles())
+            assertEquals(verdicts(shapesFile, "--junctors=client", "--fuse=false"),
+                    verdicts(shapesFile, "--junctors=client", "--fuse=true"), shapesFile);
+    }
+
+    @Test
+    void testHavingMatchesClientSideChecks() throws Exception {
+        for (var shapesFile : inputFiles())
+            assertEquals(verdicts(shapesFile, "--junctors=client", "--having=false"),
+                    verdicts(shapesFile, "--junctors=client", "--having=true"), shapesFile);
+    }
+
+    @Test
+    void testPlannedRunMatchesGeneratedRun(@TempDir Path dir) throws Exception {
+        // Generating a query used to add the node to its own cached lineage, and the folders counted on
+        // that. A run taking its queries from the plan generates nothing, so it read the wrong focus vars.
+        var options = new Options();
+        for (var shapesFile : List.of("1_BlockElasto.ttl", "3_GitterkonstanenExplicitAnd.ttl")) {
+            var generated = ShapePlan.of(dir, Path.of(INPUT_DIR + shapesFile), options);
+            var expected = verdicts(shapesFile, options, generated);
+            generated.save();
+
+            var planned = ShapePlan.of(dir, Path.of(INPUT_DIR + shapesFile), options);
+            assertEquals(expected, verdicts(shapesFile, options, planned), shapesFile);
+            assertEquals(verdicts(shapesFile, options, null), expected, shapesFile);
+        }
+    }
+
+    @Test
+    void testHasValue() {
+        // m3 has no values at all, the others don't have m1a among them
+        assertEquals(Set.of("m2", "m3", "m4"), invalidTargets("HasValueProperty.ttl"));
+        // On a NodeShape the focus node itself has to be the value
+        assertEquals(Set.of("m2", "m3", "m4"), invalidTargets("HasValueNode.ttl"));
+    }
+
+    @Test
+    void testBoundsKeepTheirPrecision() {
+        // As a float the bound was 5.0, so bk1's 5.0 passed
+        assertEquals(Set.of("bk1", "bk3", "bk4"), invalidTargets("BlockierkraftPrecise.ttl"));
+    }
+
+    @Test
+    void testIn() {
+        // p3's name is the integer 5, not the string "5", and p2's material is the IRI m3, not the string
+        assertEquals(Set.of("p2", "p3"), invalidTargets("InMixed.ttl"));
+        // Nothing is in the empty list
+        assertEquals(Set.of("p1", "p2", "p3"), invalidTargets("InEmpty.ttl"));
+    }
+
+    @Test
+    void testNotOnRootLevel() {
+        // A NOT on root level kept the targets its child validated, so it didn't negate anything
+        assertEquals(Set.of("bk1"), invalidTargets("1_NotBlockierkraftGrNull.ttl"));
+        assertEquals(Set.of("bk1", "bk3", "bk4"), invalidTargets("2_BlockElastoInverse.ttl"));
+
+        // The targets stay valid, but the AND below the NOT doesn't validate them anymore
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + "4_NotBlockierkraftAndNotFeldOrSpannung.ttl"));
+        var val = new Validation(shapes.iterator().next(), endpoint);
+        val.exec();
+
+        assertEquals(5, val.getResults().size());
+        for (var res : val.getResults()) {
+            assertTrue(res.isValid());
+            assertTrue(res.getValidatingNodes().stream().noneMatch((node) -> node instanceof AndNode));
+        }
+    }
+
+    @Test
+    void testSubjectsOfTargets() {
+        // bk4 has two values, the target query returned it once per value
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + "WertSubjectsOf.ttl"));
+        var val = new Validation(shapes.iterator().next(), endpoint);
+        val.exec();
+
+        assertEquals(13, val.getResults().size());
+        assertEquals(Set.of("bk1", "m4c", "k2"), invalidTargets("WertSubjectsOf.ttl"));
+    }
+
+    @Test
+    void testCountsAbove127() {
+        // The counts were compared as Integer objects, which are only cached up to 127
+        var data = new StringBuilder("@prefix : <" + PREFIX + "> .\n");
+        data.append(":r1 a :Messreihe ; :hat_Wert -1");
+        for (int i = 0; i < 200; i++)
+            data.append(", ").append(i);
+        data.append(" .\n:r2 a :Messreihe ; :hat_Wert 0");
+        for (int i = 1; i < 200; i++)
+            data.append(", ").append(i);
+        data.append(" .\n");
+
+        var dataset = DatasetGraphFactory.createTxnMem();
+        Txn.executeWrite(dataset, () -> RDFParser.fromString(data.toString()).lang(Lang.TTL).parse(dataset));
+
+        var shapes = Shapes.parse(RDFParser.fromString("""
+                @prefix sh: <http://www.w3.org/ns/shacl#> .
+                @prefix : <urn:absolute/prototyp#> .
+                :Messreihe a sh:NodeShape ;
+                    sh:targetClass :Messreihe ;
+                    sh:property [ sh:path :hat_Wert ; sh:minInclusive 0 ] .
+                """).lang(Lang.TTL).toGraph());
+        var val = new Validation(shapes.iterator().next(), new LocalEndpoint("mem:Messreihe", dataset));
+        val.exec();
+
+        var invalid = val.getResults().stream().filter((res) -> !res.isValid()).map((res) -> res.getAtom().getURI());
+        assertEquals(List.of(PREFIX + "r1"), invalid.toList());
+    }
+
+    @Test
+    void testNdjsonReport() throws Exception {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + "1_BlockierkraftGrNull.ttl"));
+        var out = new StringWriter();
+
+        try (var ndjson = new NdjsonReport(out)) {
+            var val = new Validation(shapes.iterator().next(), endpoint);
+            val.setListener(ndjson);
+            val.exec();
+        }
+
+        // One tree record, one record per target, one summary
+        var lines = out.toString().lines().toList();
+        assertEquals(1 + 3 + 1, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"type\":\"shape\""));
+        assertTrue(lines.get(4).contains("\"targets\":3,\"valid\":1,\"invalid\":2"));
+    }
+
+    @Test
+    void testRdfReport() throws Exception {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + "1_BlockierkraftGrNull.ttl"));
+        var out = new StringWriter();
+
+        try (var rdf = new RdfReport(out)) {
+            var val = new Validation(shapes.iterator().next(), endpoint);
+            val.setListener(rdf);
+            val.exec();
+        }
+
+        var report = GraphFactory.createDefaultGraph();
+        RDFParser.fromString(out.toString()).lang(Lang.NTRIPLES).parse(report);
+
+        // bk3 and bk4 violate sh:minExclusive
+        var results = report.find(Node.ANY, SHACL.sourceConstraintComponent, SHACL.MinExclusiveConstraintComponent);
+        assertEquals(2, results.toList().size());
+        assertTrue(report.contains(Node.ANY, SHACL.conforms, NodeFactory.createLiteral("false", XSDDatatype.XSDboolean)));
+    }
+
+    @Test
+    void testSelectStreamsAllRows() {
+        var rows = endpoint.select("SELECT ?s WHERE { ?s a <" + PREFIX + "MSM-Material> }", (binding) -> {
+        });
+        assertEquals(4, rows);
+    }
+}
@@ -0,0 +1,162 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class QueryCacheTest {
+
+    private static final String TARGETS = "SELECT ?targets WHERE { ?targets a <urn:absolute/prototyp#Material> }";
+
+    private static String targets(String type) {
+        return "SELECT ?targets WHERE { ?targets a <urn:absolute/prototyp#" + type + "> }";
+    }
+
+    // Runs the query through the cache, the endpoint answers with one row and counts how often it is asked
+    private static List<Binding> query(QueryCache cache, String sparql, AtomicInteger executions) {
+        var rows = new ArrayList<Binding>();
+        cache.query(sparql, rows::add, (sink) -> {
+            executions.incrementAndGet();
+            sink.accept(BindingFactory.binding(Var.alloc("targets"), NodeFactory.createURI("urn:absolute/prototyp#m1")));
+            return 1;
+        });
+        return rows;
+    }
+
+    @Test
+    void testRunningQueryIsShared() throws Exception {
+        var cache = new QueryCache("urn:test", 1 << 20, null, Duration.ofMinutes(1));
+        var executions = new AtomicInteger();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        try (var pool = Executors.newFixedThreadPool(4)) {
+            var received = new ArrayList<Future<Long>>();
+            for (int i = 0; i < 4; i++) {
+                received.add(pool.submit(() -> {
+                    var rows = Collections.synchronizedList(new ArrayList<Binding>());
+                    return cache.query(TARGETS, rows::add, (sink) -> {
+                        executions.incrementAndGet();
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        for (int r = 0; r < 3; r++)
+                            sink.accept(BindingFactory.binding(Var.alloc("targets"),
+                                    NodeFactory.createURI("urn:absolute/prototyp#m" + r)));
+                        return 3;
+                    }) == rows.size() ? (long) rows.size() : -1L;
+                }));
+            }
+
+            // Give the others time to find the first one running
+            started.await();
+            Thread.sleep(200);
+            release.countDown();
+
+            for (var rows : received)
+                assertEquals(Long.valueOf(3), rows.get());
+        }
+
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() {
+        // A row takes 160 estimated bytes, so two of them fit
+        var cache = new QueryCache("urn:test", 400, null, Duration.ofMinutes(1));
+        var executions = new AtomicInteger();
+
+        query(cache, targets("A"), executions);
+        query(cache, targets("B"), executions);
+        query(cache, targets("A"), executions);
+        assertEquals(2, executions.get());
+
+        // B is the least recently used one
+        query(cache, targets("C"), executions);
+        query(cache, targets("A"), executions);
+        query(cache, targets("C"), executions);
+        assertEquals(3, executions.get());
+        query(cache, targets("B"), executions);
+        assertEquals(4, executions.get());
+    }
+
+    @Test
+    void testDiskRoundTrip(@TempDir Path dir) {
+        var executions = new AtomicInteger();
+        var fetched = query(new QueryCache("urn:test", 1 << 20, dir, Duration.ofMinutes(1)), TARGETS, executions);
+
+        // A fresh cache has nothing in memory and reads the file
+        var read = query(new QueryCache("urn:test", 1 << 20, dir, Duration.ofMinutes(1)), TARGETS, executions);
+        assertEquals(1, executions.get());
+        assertEquals(fetched, read);
+
+        // Other endpoints have their own entries
+        query(new QueryCache("urn:other", 1 << 20, dir, Duration.ofMinutes(1)), TARGETS, executions);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    void testStaleEntryIsFetchedAgain(@TempDir Path dir) throws Exception {
+        var cache = new QueryCache("urn:test", 1 << 20, dir, Duration.ofMillis(100));
+        var executions = new AtomicInteger();
+
+        query(cache, TARGETS, executions);
+        query(cache, TARGETS, executions);
+        assertEquals(1, executions.get());
+
+        // Stale in memory and on disk
+        Thread.sleep(200);
+        query(cache, TARGETS, executions);
+        assertEquals(2, executions.get());
+        query(cache, TARGETS, executions);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    void testInvalidatedEntryIsFetchedAgain(@TempDir Path dir) {
+        var cache = new QueryCache("urn:test", 1 << 20, dir, Duration.ofMinutes(1));
+        var executions = new AtomicInteger();
+
+        query(cache, targets("A"), executions);
+        query(cache, targets("B"), executions);
+        assertEquals(2, cache.invalidate());
+
+        // Gone from memory and from disk
+        query(cache, targets("A"), executions);
+        query(new QueryCache("urn:test", 1 << 20, dir, Duration.ofMinutes(1)), targets("B"), executions);
+        assertEquals(4, executions.get());
+    }
+
+    @Test
+    void testRowsFetchedBeforeInvalidationArentCached() {
+        var cache = new QueryCache("urn:test", 1 << 20, null, Duration.ofMinutes(1));
+        var executions = new AtomicInteger();
+
+        // The data changes while the query runs
+        cache.query(TARGETS, (binding) -> {}, (sink) -> {
+            executions.incrementAndGet();
+            cache.invalidate();
+            return 0;
+        });
+        query(cache, TARGETS, executions);
+        assertEquals(2, executions.get());
+    }
+}
@@ -0,0 +1,67 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_LessThan;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.path.P_Link;
+import org.junit.jupiter.api.Test;
+
+class QueryOptimizerTest {
+
+    private static final Var TARGETS = Var.alloc("targets");
+    private static final Var A = Var.alloc("a");
+    private static final Var B = Var.alloc("b");
+
+    private static final P_Link P = new P_Link(NodeFactory.createURI("urn:p"));
+    private static final P_Link Q = new P_Link(NodeFactory.createURI("urn:q"));
+
+    @Test
+    void testGroupedQueryIsNotDistinct() {
+        var query = new SPARQLGenerator(true, null).newQuery();
+        query.addTriple(TARGETS, P, A);
+        query.project(List.of(TARGETS));
+        query.project(Var.alloc("count"), query.aggregate(AggregatorFactory.createCountExpr(false, new ExprVar(A))));
+        query.groupBy(List.of(TARGETS));
+
+        var sparql = query.getSparqlString();
+        assertFalse(sparql.contains("DISTINCT"), sparql);
+        assertTrue(QueryFactory.create(sparql).hasGroupBy());
+    }
+
+    @Test
+    void testUnusedOptionalIsDropped() {
+        var query = new SPARQLGenerator(true, null).newQuery();
+        query.addTriple(TARGETS, P, A);
+        query.addOptionalTriple(SPARQLGenerator.triplePath(A, Q, B));
+        query.project(TARGETS);
+
+        var sparql = query.getSparqlString();
+        assertFalse(sparql.contains("OPTIONAL"), sparql);
+
+        // Still there if its variable is projected
+        query.project(B);
+        assertTrue(query.getSparqlString().contains("OPTIONAL"));
+    }
+
+    @Test
+    void testFilterIsPlacedAfterItsTriple() {
+        var query = new SPARQLGenerator(true, null).newQuery();
+        query.addTriple(TARGETS, P, A);
+        query.addTriple(Triple.create(A, NodeFactory.createURI("urn:q"), B));
+        query.addFilter(new E_LessThan(new ExprVar(A), NodeValue.makeInteger(3)));
+
+        var sparql = query.getSparqlString();
+        assertTrue(sparql.indexOf("FILTER") < sparql.indexOf("<urn:q>"), sparql);
+        QueryFactory.create(sparql);
+    }
+}
@@ -0,0 +1,50 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_LessThanOrEqual;
+import org.apache.jena.sparql.expr.E_StrLength;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.path.P_Link;
+import org.junit.jupiter.api.Test;
+
+class QueryTemplatesTest {
+
+    private static final Var TARGETS = Var.alloc("targets");
+    private static final Var A = Var.alloc("a");
+
+    // Like the query of a ConstraintNode with sh:maxLength
+    private static SPARQLGenerator.Query query(QueryTemplates templates, String path, int maxLength) {
+        var query = new SPARQLGenerator(true, templates).newQuery();
+        query.addTriple(TARGETS, new P_Link(NodeFactory.createURI(path)), A);
+        query.addFilter(new E_LessThanOrEqual(new E_StrLength(new ExprVar(A)), NodeValue.makeInteger(maxLength)));
+        query.project(List.of(TARGETS));
+        query.project(Var.alloc("count"), query.aggregate(AggregatorFactory.createCountExpr(false, new ExprVar(A))));
+        query.groupBy(List.of(TARGETS));
+        return query;
+    }
+
+    @Test
+    void testSameStructureSharesTemplate() {
+        var templates = new QueryTemplates();
+
+        var first = query(templates, "urn:hat_Name", 17).getSparqlString();
+        var second = query(templates, "urn:hat_Kurzname", 5).getSparqlString();
+
+        assertEquals(1, templates.size());
+        assertEquals(1, templates.hits());
+
+        // Same queries as without the template
+        assertEquals(QueryFactory.create(query(null, "urn:hat_Name", 17).getSparqlString()),
+                QueryFactory.create(first));
+        assertEquals(QueryFactory.create(query(null, "urn:hat_Kurzname", 5).getSparqlString()),
+                QueryFactory.create(second));
+    }
+}
@@ -0,0 +1,32 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testShardsKeepOrder() throws Exception {
+        var entries = IntStream.range(0, 5000).boxed().toList();
+        var expected = "header\n" + entries.stream().map(i -> i + "✅\n").collect(Collectors.joining());
+
+        for (var threads : new int[] { 1, 3 }) {
+            var file = dir.resolve("report" + threads + ".log");
+            new ReportWriter(threads).write(file, "header\n", entries,
+                    (i, sb) -> sb.append(i).append("✅\n"));
+
+            assertEquals(expected, Files.readString(file, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.path.PathParser;
+import org.junit.jupiter.api.Test;
+
+class SPARQLGeneratorTest {
+
+    private static final Var TARGETS = Var.alloc("targets");
+    private static final Var A = Var.alloc("a");
+
+    private static final String DATA = """
+            @prefix : <urn:> .
+            :x :p :m1, :m2 .
+            :m1 :q :v .
+            :m2 :q :v .
+            :w :r :m2 .
+            :y :p :m3 .
+            """;
+
+    private static SPARQLGenerator.Query countQuery(boolean expandPaths) {
+        var query = new SPARQLGenerator(true, expandPaths, null).newQuery();
+        query.addTriple(TARGETS, PathParser.parse("<urn:p>/(<urn:q>|^<urn:r>)", PrefixMapping.Standard), A);
+        query.project(List.of(TARGETS));
+        query.project(Var.alloc("count"), query.aggregate(AggregatorFactory.createCountExpr(false, new ExprVar(A))));
+        query.groupBy(List.of(TARGETS));
+        return query;
+    }
+
+    private static int count(Model model, String sparql, String target) {
+        try (var exec = QueryExecutionFactory.create(sparql, model)) {
+            var results = exec.execSelect();
+            while (results.hasNext()) {
+                var row = results.next();
+                if (row.getResource("targets").getURI().equals(target))
+                    return row.getLiteral("count").getInt();
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    void testExpandedPathsCountTheSame() {
+        var model = ModelFactory.createDefaultModel().read(new StringReader(DATA), null, "TTL");
+
+        var paths = countQuery(false).getSparqlString();
+        var expanded = countQuery(true).getSparqlString();
+
+        // Only triples and UNION left
+        assertFalse(QueryFactory.create(expanded).toString().contains("|"), expanded);
+
+        // Duplicates over different intermediate nodes included
+        assertEquals(3, count(model, paths, "urn:x"));
+        for (var target : new String[] { "urn:x", "urn:y" })
+            assertEquals(count(model, paths, target), count(model, expanded, target), target);
+    }
+}
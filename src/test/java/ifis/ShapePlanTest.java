@@ -0,0 +1,63 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.shacl.Shapes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShapePlanTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testQueriesSurviveOnlyWithTheSameTree() throws Exception {
+        var shapesFile = Path.of("shapes/test/input/1_BlockElasto.ttl");
+        var shape = Shapes.parse(RDFDataMgr.loadGraph(shapesFile.toString())).iterator().next();
+        var options = new Options();
+
+        var first = ShapePlan.of(dir, shapesFile, options);
+        first.checkTree(shape, "0 PShapeNode;");
+        assertEquals("SELECT 1", first.query(shape, "0", () -> "SELECT 1"));
+        first.save();
+
+        // Same file, same tree: the stored query is used
+        var second = ShapePlan.of(dir, shapesFile, options);
+        second.checkTree(shape, "0 PShapeNode;");
+        assertEquals("SELECT 1", second.query(shape, "0", () -> "SELECT 2"));
+
+        // Another tree: it gets generated again
+        second.checkTree(shape, "0 AndNode;");
+        assertEquals("SELECT 3", second.query(shape, "0", () -> "SELECT 3"));
+
+        // Other options, other plan
+        options.pushHaving = true;
+        assertEquals("SELECT 4", ShapePlan.of(dir, shapesFile, options).query(shape, "0", () -> "SELECT 4"));
+        try (var plans = Files.list(dir)) {
+            assertEquals(1, plans.count());
+        }
+    }
+
+    @Test
+    void testOptionsOfTheQueriesArePartOfThePlan() throws Exception {
+        var shapesFile = Path.of("shapes/test/input/1_BlockElasto.ttl");
+        var shape = Shapes.parse(RDFDataMgr.loadGraph(shapesFile.toString())).iterator().next();
+
+        var plain = ShapePlan.of(dir, shapesFile, new Options());
+        plain.checkTree(shape, "0 PShapeNode;");
+        plain.query(shape, "0", () -> "SELECT 1");
+        plain.save();
+
+        for (var arg : new String[] { "--fuse=false", "--having=true", "--junctors=sparql", "--optimize=false",
+                "--templates=false", "--dialect=obda" }) {
+            var options = Options.parse(new String[] { arg }, 0);
+            assertEquals("SELECT 2", ShapePlan.of(dir, shapesFile, options).query(shape, "0", () -> "SELECT 2"),
+                    arg);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ifis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.shacl.Shapes;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import ifis.endpoint.Endpoint;
+import ifis.endpoint.LocalEndpoint;
+import ifis.endpoint.ObdaMapping;
+import ifis.endpoint.SqlCompiler;
+import ifis.endpoint.SqlEndpoint;
+
+/**
+ * Runs validations as SQL on an embedded H2 database, mapped by the sample prototyp.obda.
+ * Same targets as in LocalEndpointTest, the data is the relevant part of prototyp.ttl.
+ * prototyp.properties points to the same database, for Ontop in-process (obda:...).
+ */
+class SqlEndpointTest {
+
+    private static final String INPUT_DIR = "shapes/test/input/";
+    private static final String MAPPING = "shapes/test/data/prototyp.obda";
+    private static final String URL = "jdbc:h2:mem:prototyp;DB_CLOSE_DELAY=-1";
+    private static final String PREFIX = "urn:absolute/prototyp#";
+
+    private static SqlEndpoint endpoint;
+    private static Properties properties;
+    private static Endpoint fallback;
+    private static int fallbackQueries;
+
+    @BeforeAll
+    static void createDatabase() throws Exception {
+        try (var connection = DriverManager.getConnection(URL);
+                var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE material (id VARCHAR(20))");
+            statement.execute("CREATE TABLE parameter (id VARCHAR(20), material_id VARCHAR(20), art VARCHAR(40),"
+                    + " wert DECIMAL(10, 2), name VARCHAR(40))");
+            statement.execute("CREATE TABLE probe (nr INTEGER, bezeichnung VARCHAR(40), material_id VARCHAR(20))");
+            statement.execute("""
+                    INSERT INTO parameter VALUES
+                        ('bk1', NULL, 'Blockierkraft', 5.0, 'Blockierkraft'),
+                        ('bk3', NULL, 'Blockierkraft', -2.0, NULL),
+                        ('bk4', NULL, 'Blockierkraft', 0.0, NULL),
+                        ('bk4', NULL, 'Blockierkraft', 3.0, NULL),
+                        ('x2', NULL, 'Gitterkonstante', NULL, 'Gitterkonstante a'),
+                        ('g2', NULL, 'Gitterkonstante', NULL, 'Gitterkonstante ab'),
+                        ('g3', NULL, 'Gitterkonstante', NULL, NULL)
+                    """);
+            statement.execute("INSERT INTO material VALUES ('m1'), ('m3')");
+            statement.execute("INSERT INTO probe VALUES (1, 'Probe 1', 'm1')");
+        }
+
+        properties = new Properties();
+        properties.setProperty("jdbc.url", URL);
+
+        // Counts what isn't compiled to SQL
+        var local = LocalEndpoint.inMemory("shapes/test/data/prototyp.ttl");
+        fallback = new Endpoint() {
+            @Override
+            public long select(String sparql, Consumer<Binding> sink) {
+                fallbackQueries++;
+                return local.select(sparql, sink);
+            }
+
+            @Override
+            public String getName() {
+                return local.getName();
+            }
+        };
+        endpoint = new SqlEndpoint(ObdaMapping.parse(Path.of(MAPPING)), properties, fallback);
+    }
+
+    private static Set<String> invalidTargets(String shapesFile) {
+        var shapes = Shapes.parse(RDFDataMgr.loadGraph(INPUT_DIR + shapesFile));
+        var options = Options.parse(new String[] { "--dialect=obda" }, 0);
+        var val = new Validation(shapes.iterator().next(), endpoint,
+                new DataflowScheduler(options.maxConcurrentQueries), QueryCache.disabled(), options);
+        val.exec();
+
+        return val.getResults()
+                .stream()
+                .filter((res) -> !res.isValid())
+                .map((res) -> res.getAtom().getURI().replace(PREFIX, ""))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void testMinExclusive() {
+        var before = fallbackQueries;
+        assertEquals(Set.of("bk3", "bk4"), invalidTargets("1_BlockierkraftGrNull.ttl"));
+        assertEquals(before, fallbackQueries);
+    }
+
+    @Test
+    void testStringConstraints() {
+        var before = fallbackQueries;
+        assertEquals(Set.of("g2", "g3"), invalidTargets("String.ttl"));
+        assertEquals(before, fallbackQueries);
+    }
+
+    @Test
+    void testDecimalsCompareByValue() {
+        // wert is DECIMAL(10, 2), the database hands out 5.00 for 5.0
+        var before = fallbackQueries;
+        var values = new ArrayList<String>();
+        endpoint.select("SELECT ?s ?w WHERE { ?s <" + PREFIX + "hat_Wert> ?w FILTER (?w = 5.0) }", (binding) -> {
+            values.add(binding.get("s").getURI().replace(PREFIX, "") + "=" + binding.get("w").getLiteralLexicalForm());
+        });
+
+        assertEquals(before, fallbackQueries);
+        assertEquals(List.of("bk1=5.00"), values);
+    }
+
+    @Test
+    void testOverlappingMappingsLeftToEndpoint() {
+        // :bk{nr} writes the values of the Blockierkräfte a second time, in terms :{id} may write as well
+        var overlapping = new SqlEndpoint(ObdaMapping.parse("""
+                [PrefixDeclaration]
+                :		urn:absolute/prototyp#
+                xsd:		http://www.w3.org/2001/XMLSchema#
+
+                [MappingDeclaration] @collection [[
+                mappingId	parameter
+                target		:{id} :hat_Wert {wert}^^xsd:decimal .
+                source		SELECT id, wert FROM parameter
+
+                mappingId	blockierkraft
+                target		:bk{nr} :hat_Wert {wert}^^xsd:decimal .
+                source		SELECT SUBSTRING(id, 3) AS nr, wert FROM parameter WHERE art = 'Blockierkraft'
+                ]]
+                """), properties, fallback);
+
+        // Distinct rows get merged, so they can still be compiled
+        var before = fallbackQueries;
+        var rows = overlapping.select("SELECT DISTINCT ?s WHERE { ?s <" + PREFIX + "hat_Wert> ?w }", (binding) -> {
+        });
+        assertEquals(before, fallbackQueries);
+        assertEquals(3, rows);
+
+        // Counts would add up both
+        var counts = new ArrayList<String>();
+        overlapping.select("SELECT ?s (COUNT(?w) AS ?c) WHERE { ?s <" + PREFIX + "hat_Wert> ?w } GROUP BY ?s",
+                (binding) -> counts.add(binding.get("s").getURI().replace(PREFIX, "") + "="
+                        + binding.get("c").getLiteralLexicalForm()));
+        assertEquals(before + 1, fallbackQueries);
+        assertTrue(counts.contains("bk1=1"), counts.toString());
+    }
+
+    @Test
+    void testBackslashesQuotedForMySql() throws Exception {
+        // The pattern is \d', MySQL and MariaDB read '\d' as just d
+        var sparql = "SELECT ?s WHERE { ?s <" + PREFIX + "hat_Name> ?n FILTER regex(?n, \"\\\\d'\") }";
+        var mapping = ObdaMapping.parse(Path.of(MAPPING));
+        SqlCompiler.ColumnTypes strings = (m, column) -> "http://www.w3.org/2001/XMLSchema#string";
+
+        for (var backslashEscapes : List.of(false, true)) {
+            var sql = new ArrayList<String>();
+            new SqlCompiler(mapping, strings, "REGEXP_LIKE(%s, %s, 'c')", backslashEscapes).compile(sparql)
+                    .execute((query, row) -> sql.add(query), (binding) -> {
+                    });
+            assertTrue(sql.getFirst().contains(backslashEscapes ? "'\\\\d'''" : "'\\d'''"), sql.getFirst());
+        }
+    }
+
+    @Test
+    void testOptionalLeftToEndpoint() {
+        var before = fallbackQueries;
+        var rows = endpoint.select("SELECT ?s ?w WHERE { ?s a <" + PREFIX + "Blockierkraft> "
+                + "OPTIONAL { ?s <" + PREFIX + "hat_Wert> ?w } }", (binding) -> {
+                });
+
+        assertEquals(before + 1, fallbackQueries);
+        assertTrue(rows > 0);
+    }
+
+    @Test
+    void testOntopUsesOntology() {
+        var embedded = Endpoint.of("obda:" + MAPPING);
+
+        // MSM-Material is an Element_einer_Materialklasse, so is the material of a Probe (range of hat_Material)
+        var rows = embedded.select("SELECT DISTINCT ?s WHERE { ?s a <" + PREFIX + "Element_einer_Materialklasse> }",
+                (binding) -> {
+                });
+        assertEquals(2, rows);
+    }
+
+    @Test
+    void testOntopRunsOptionalInProcess() {
+        var embedded = Endpoint.of("obda:" + MAPPING);
+
+        var values = new ArrayList<String>();
+        embedded.select("SELECT ?s ?w WHERE { ?s a <" + PREFIX + "Blockierkraft> "
+                + "OPTIONAL { ?s <" + PREFIX + "hat_Wert> ?w } }", (binding) -> {
+                    values.add(binding.get("s").getURI().replace(PREFIX, "") + "="
+                            + ((Number) binding.get("w").getLiteralValue()).intValue());
+                });
+
+        // Not compilable to SQL by us, Ontop reformulated it
+        assertEquals(4, values.size());
+        assertTrue(values.contains("bk3=-2"), values.toString());
+    }
+}
@@ -0,0 +1,79 @@
+package ifis.collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.NodeFactory;
+import org.junit.jupiter.api.Test;
+
+class NodeDictionaryTest {
+
+    private static final String PREFIX = "urn:absolute/prototyp#";
+
+    @Test
+    void testTermsRoundTrip() {
+        var dictionary = new NodeDictionary();
+
+        var iri = NodeFactory.createURI(PREFIX + "bk1");
+        var urn = NodeFactory.createURI("urn:plain");
+        var literal = NodeFactory.createLiteral("5.0", XSDDatatype.XSDdecimal);
+
+        var iriId = dictionary.encode(iri);
+        var urnId = dictionary.encode(urn);
+        var literalId = dictionary.encode(literal);
+
+        // Same term, same id, no matter which Node instance
+        assertEquals(iriId, dictionary.encode(NodeFactory.createURI(PREFIX + "bk1")));
+        assertNotEquals(iriId, dictionary.encode(NodeFactory.createURI(PREFIX + "bk10")));
+        // A literal with the lexical form of an IRI is still another term
+        assertNotEquals(iriId, dictionary.encode(NodeFactory.createLiteral(PREFIX + "bk1")));
+
+        assertEquals(iri, dictionary.decode(iriId));
+        assertEquals(urn, dictionary.decode(urnId));
+        assertEquals(literal, dictionary.decode(literalId));
+    }
+
+    @Test
+    void testTuples() {
+        var dictionary = new NodeDictionary();
+        var a = dictionary.encode(NodeFactory.createURI(PREFIX + "a"));
+        var b = dictionary.encode(NodeFactory.createURI(PREFIX + "b"));
+
+        var ab = dictionary.tuple(dictionary.tuple(NodeDictionary.EMPTY, a), b);
+
+        assertEquals(ab, dictionary.tuple(dictionary.tuple(NodeDictionary.EMPTY, a), b));
+        assertNotEquals(ab, dictionary.tuple(dictionary.tuple(NodeDictionary.EMPTY, b), a));
+
+        assertEquals(2, dictionary.length(ab));
+        assertEquals(a, dictionary.first(ab));
+        assertEquals(dictionary.tuple(NodeDictionary.EMPTY, a), dictionary.prefix(ab));
+    }
+
+    @Test
+    void testGrowth() {
+        var dictionary = new NodeDictionary();
+        var seen = new BitSet();
+        var counts = new IntIntMap();
+
+        for (int i = 0; i < 100_000; i++) {
+            var id = dictionary.single(NodeFactory.createURI(PREFIX + "n" + i));
+            assertFalse(seen.get(id));
+            seen.set(id);
+            counts.put(id, i);
+        }
+
+        assertEquals(100_000, dictionary.size());
+        assertEquals(100_000, seen.cardinality());
+        assertEquals(100_000, counts.size());
+
+        var id = dictionary.single(NodeFactory.createURI(PREFIX + "n4711"));
+        assertTrue(seen.get(id));
+        assertEquals(4711, counts.get(id, -1));
+        assertEquals(-1, counts.get(dictionary.single(NodeFactory.createURI(PREFIX + "x")), -1));
+    }
+}
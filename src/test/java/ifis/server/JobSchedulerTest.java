@@ -0,0 +1,90 @@
+package ifis.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import ifis.server.JobScheduler.Priority;
+
+class JobSchedulerTest {
+
+    @Test
+    void testPriorityThenTurns() throws Exception {
+        try (var jobs = new JobScheduler(1, 16, 0)) {
+            // Keep the only worker busy until everything is queued
+            var gate = new CountDownLatch(1);
+            var blocker = jobs.submit("x", Priority.BATCH, () -> {
+                gate.await();
+                return null;
+            });
+            while (jobs.running() == 0)
+                Thread.sleep(1);
+
+            var order = Collections.synchronizedList(new ArrayList<String>());
+            var futures = new ArrayList<CompletableFuture<?>>();
+            for (var job : List.of("a-batch1", "a-batch2", "a-int1", "a-int2", "a-int3", "b-int1")) {
+                var priority = job.contains("int") ? Priority.INTERACTIVE : Priority.BATCH;
+                futures.add(jobs.submit(job.substring(0, 1), priority, () -> order.add(job)));
+            }
+            assertEquals(4, jobs.queueDepth(Priority.INTERACTIVE));
+            assertEquals(2, jobs.queueDepth(Priority.BATCH));
+
+            gate.countDown();
+            blocker.join();
+            futures.forEach(CompletableFuture::join);
+
+            assertEquals(List.of("a-int1", "b-int1", "a-int2", "a-int3", "a-batch1", "a-batch2"), order);
+            assertEquals(7, jobs.completed());
+        }
+    }
+
+    @Test
+    void testFullQueueRejects() throws Exception {
+        try (var jobs = new JobScheduler(1, 1, 0)) {
+            var gate = new CountDownLatch(1);
+            jobs.submit("a", Priority.BATCH, () -> {
+                gate.await();
+                return null;
+            });
+            while (jobs.running() == 0)
+                Thread.sleep(1);
+
+            var queued = jobs.submit("a", Priority.INTERACTIVE, () -> 42);
+            assertThrows(RejectedExecutionException.class, () -> jobs.submit("b", Priority.INTERACTIVE, () -> 0));
+            assertEquals(1, jobs.rejected());
+
+            gate.countDown();
+            assertEquals(Integer.valueOf(42), queued.join());
+        }
+    }
+
+    @Test
+    void testCloseFailsQueuedJobs() throws Exception {
+        CompletableFuture<Integer> queued;
+        var gate = new CountDownLatch(1);
+        try (var jobs = new JobScheduler(1, 4, 0)) {
+            jobs.submit("a", Priority.BATCH, () -> {
+                gate.await();
+                return null;
+            });
+            while (jobs.running() == 0)
+                Thread.sleep(1);
+
+            queued = jobs.submit("b", Priority.INTERACTIVE, () -> 42);
+        }
+        gate.countDown();
+
+        var e = assertThrows(CompletionException.class, queued::join);
+        assertTrue(e.getCause() instanceof RejectedExecutionException, e.toString());
+    }
+}
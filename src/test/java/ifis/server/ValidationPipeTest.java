@@ -0,0 +1,66 @@
+package ifis.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import ifis.Options;
+import ifis.endpoint.LocalEndpoint;
+
+class ValidationPipeTest {
+
+    private static final String DATA = "shapes/test/data/prototyp.ttl";
+    private static final String SHAPES = "shapes/test/input/1_BlockElasto.ttl";
+
+    @Test
+    void testOneFramePerDocument() throws IOException {
+        var shapes = Files.readString(Path.of(SHAPES));
+
+        // Fine as Turtle, but the property shape has no sh:path
+        var noPath = "@prefix sh: <http://www.w3.org/ns/shacl#> . @prefix : <urn:x#> . "
+                + ":S a sh:NodeShape ; sh:targetClass :C ; sh:property [ sh:minCount 1 ] .";
+
+        var in = new ByteArrayOutputStream();
+        for (var document : new String[] { shapes, "@prefix broken", noPath, shapes }) {
+            var bytes = document.getBytes(StandardCharsets.UTF_8);
+            in.writeBytes((bytes.length + "\n").getBytes(StandardCharsets.US_ASCII));
+            in.writeBytes(bytes);
+        }
+
+        var out = new ByteArrayOutputStream();
+        new ValidationPipe(LocalEndpoint.inMemory(DATA), new Options())
+                .run(new ByteArrayInputStream(in.toByteArray()), out);
+
+        // Read the frames back
+        var frames = new ArrayList<String[]>();
+        var bytes = out.toByteArray();
+        var pos = 0;
+        while (pos < bytes.length) {
+            var newline = pos;
+            while (bytes[newline] != '\n')
+                newline++;
+            var header = new String(bytes, pos, newline - pos, StandardCharsets.US_ASCII).split(" ");
+            var length = Integer.parseInt(header[1]);
+            frames.add(new String[] { header[0], new String(bytes, newline + 1, length, StandardCharsets.UTF_8) });
+            pos = newline + 1 + length;
+        }
+
+        assertEquals(4, frames.size());
+        assertEquals("ok", frames.get(0)[0]);
+        assertTrue(frames.get(0)[1].startsWith("🔍 VALIDATION REPORT:"));
+        assertEquals("error", frames.get(1)[0]);
+        assertEquals("error", frames.get(2)[0]);
+        assertTrue(frames.get(2)[1].contains("sh:path"));
+        assertEquals("ok", frames.get(3)[0]);
+        assertEquals(frames.get(0)[1].length(), frames.get(3)[1].length());
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/bash
+# Compares the startup of shacl-obda.sh with and without the CDS archive (mvn -P cds package).
+# Every run validates a small shape against the local test dataset, so no endpoint is needed.
+# usage: ./startup-benchmark.sh [runs]
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+RUNS=${1:-10}
+SHAPE=$DIR/shapes/test/input/1_BlockElasto.ttl
+DATA=mem:$DIR/shapes/test/data/prototyp.ttl
+
+if [ ! -f "$DIR/target/shacl-obda.jsa" ]; then
+    echo "No CDS archive, run mvn -P cds package first" >&2
+    exit 1
+fi
+
+# Reports go to a scratch directory
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+cd "$WORK" || exit 1
+
+bench() {
+    local total=0
+    for ((i = 0; i < RUNS; i++)); do
+        local start=$(date +%s%N)
+        env "$@" "$DIR/shacl-obda.sh" "$SHAPE" "$DATA" > /dev/null 2>&1 || { echo "Run failed" >&2; exit 1; }
+        total=$((total + $(date +%s%N) - start))
+    done
+    echo $((total / RUNS / 1000000))
+}
+
+# One warm up each, so both find the jar in the page cache
+NO_CDS=1 "$DIR/shacl-obda.sh" "$SHAPE" "$DATA" > /dev/null 2>&1
+"$DIR/shacl-obda.sh" "$SHAPE" "$DATA" > /dev/null 2>&1
+
+plain=$(bench NO_CDS=1)
+cds=$(bench)
+
+echo "Mean over $RUNS runs"
+echo "  without CDS: ${plain} ms"
+echo "  with CDS:    ${cds} ms"